@@ -1,3 +1,4 @@
+import otp.OTPCalculator;
 import otp.network.*;
 import java.io.*;
 import java.rmi.*;
@@ -16,7 +17,9 @@ import java.rmi.*;
  * ( voir : http://www.cs.umd.edu/~harry/jotp/ ). Cette
  * reponse est envoye au serveur, puis l'attente d'une reponse
  * de reussite ou d'echec d'authentification est attendue
- * de la part du serveur.
+ * de la part du serveur.<br>
+ * Avec l'option -calc, le client calcule lui-meme la reponse
+ * a partir de la pass-phrase saisie, grace a OTPCalculator.
  * @author Thomas Chemineau
  * @version 0.1
 **/
@@ -31,10 +34,12 @@ public class MyOTPClient {
 	**/
 	public static void main( String [] args ) throws Exception {
 	
-		if( args.length!=2 ) {
-			System.out.println( "Usage : MyOTPClient <hostname[:port]> <nameOfRMIServer>" );
+		if( args.length<2 || args.length>3 || ( args.length==3 && !args[2].equals( "-calc" ) ) ) {
+			System.out.println( "Usage : MyOTPClient <hostname[:port]> <nameOfRMIServer> [-calc]" );
 			System.exit( 0 );
 		}
+
+		boolean calc = args.length==3;
 		
 		String host = args[0];
 		String rminame = args[1];
@@ -57,8 +62,16 @@ public class MyOTPClient {
 			System.exit( 0 );
 		}
 
-		System.out.print( "OTP Challenge: " + challenge + "\nResponse: " );
-		String otp = lireString();
+		String otp;
+
+		if( calc ) {
+			System.out.print( "OTP Challenge: " + challenge + "\nSecret pass phrase: " );
+			OTPCalculator calculator = new OTPCalculator( challenge, lireString() );
+			otp = calculator.getResponse( challenge );
+		} else {
+			System.out.print( "OTP Challenge: " + challenge + "\nResponse: " );
+			otp = lireString();
+		}
 		boolean access = serveur.checkChallengeAnswer( login, otp );
 		
 		if( access ) {
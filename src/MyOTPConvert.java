@@ -0,0 +1,47 @@
+import otp.*;
+
+/**
+ * Outil Serveur qui convertit un fichier d'utilisateurs
+ * entre le format texte ( une ligne OTPUser.toString() par
+ * utilisateur ) et le format binaire de OTPMappedStore.<br>
+ * Le sens de la conversion est donne par le fichier source :
+ * un fichier binaire est converti en texte, un fichier texte
+ * en binaire. Le fichier destination est ecrase.<br>
+ * Avec -offheap, un fichier texte est converti au format de
+ * OTPOffHeapStore ; un fichier OTPOffHeapStore est toujours
+ * converti en texte.
+ * @version 0.1
+**/
+
+public class MyOTPConvert {
+
+	/**
+	 * Methode principale.
+	 * @param args [-offheap] Le fichier source et le fichier destination.
+	**/
+	public static void main( String args[] ) {
+
+		boolean offheap = args.length==3 && args[0].equals( "-offheap" );
+		if( args.length!=2 && !offheap ) {
+			System.out.println( "Usage : MyOTPConvert [-offheap] <source> <destination>" );
+			System.exit( 0 );
+		}
+		String from = args[args.length - 2];
+		String to = args[args.length - 1];
+
+		try {
+			int n;
+			if( offheap || OTPOffHeapStore.isOffHeap( from ) )
+				n = OTPOffHeapStore.convert( from, to );
+			else
+				n = OTPMappedStore.convert( from, to );
+			System.out.println( n + " users converted to " + to
+				+ ( OTPOffHeapStore.isOffHeap( to ) ? " (off-heap)."
+					: OTPMappedStore.isMapped( to ) ? " (binary)." : " (text)." ) );
+		} catch( Exception e ) {
+			System.out.println( "Conversion failed : " + e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+}
@@ -44,6 +44,8 @@ public class MyOTPPasswd {
 			if( args.length==2 ) {
 				if( args[1].compareTo( "md5" )==0 ) {
 					algo = OTPFactory.HASHID_MD5;
+				} else if( args[1].compareTo( "md4" )==0 ) {
+					algo = OTPFactory.HASHID_MD4;
 				} else if( args[1].compareTo( "sha1" )==0 ) {
 					algo = OTPFactory.HASHID_SHA1;
 				} else {
@@ -51,7 +53,7 @@ public class MyOTPPasswd {
 					System.exit( 0 );
 				}
 			} else {
-				System.out.println( "Usage : MyOTPPasswd <login> [md5|sha1]" );
+				System.out.println( "Usage : MyOTPPasswd <login> [md4|md5|sha1]" );
 				System.exit( 0 );
 			}
 		}
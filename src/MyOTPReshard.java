@@ -0,0 +1,38 @@
+import otp.*;
+
+/**
+ * Outil Serveur qui repartit un fichier d'utilisateurs sur
+ * N fichiers ( shards ), hors ligne. La base peut etre un seul
+ * fichier ou deja repartie ; ses journaux sont rejoues avant la
+ * repartition. Avec N=1, la base redevient un seul fichier.<br>
+ * Le serveur ne doit pas tourner pendant la repartition.
+ * Les nouveaux fichiers sont ecrits en fichier.reshard*, puis
+ * l'ancienne base est renommee en *.old le temps de les mettre en
+ * place ( voir OTPShardedDatabase.reshard() ).
+ * @version 0.1
+**/
+
+public class MyOTPReshard {
+
+	/**
+	 * Methode principale.
+	 * @param args Le fichier d'utilisateurs et le nombre de shards.
+	**/
+	public static void main( String args[] ) {
+
+		if( args.length!=2 ) {
+			System.out.println( "Usage : MyOTPReshard <fichier> <shards>" );
+			System.exit( 0 );
+		}
+
+		try {
+			int n = Integer.parseInt( args[1] );
+			int users = OTPShardedDatabase.reshard( args[0], n );
+			System.out.println( users + " users written to " + n + ( n>1 ? " shards." : " file." ) );
+		} catch( Exception e ) {
+			System.out.println( "Resharding failed : " + e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+}
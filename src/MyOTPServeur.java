@@ -1,4 +1,7 @@
+import otp.OTPDurability;
+import otp.OTPStoreFactory;
 import otp.network.*;
+import java.util.Arrays;
 import java.rmi.*;
 import java.rmi.registry.*;
 
@@ -45,7 +48,29 @@ public class MyOTPServeur {
 		// Creation du serveur.
 		try {
 
-			serveur = new OTPServer( "users.db", 5, 180 );
+			// Stockage : -Dotp.store=file|packed|offheap|sql ( voir OTPStoreFactory )
+			// offheap : plusieurs serveurs peuvent partager le meme -Dotp.file
+			// Journal des connexions : -Dotp.journal=true
+			// Lecture a la demande : -Dotp.index=true
+			// Relecture de users.db ecrit par MyOTPPasswd : -Dotp.reload=true
+			// Base SQL : -Dotp.sql.url=jdbc:... -Dotp.sql.pool=n
+			// Cache des utilisateurs actifs : -Dotp.cache=n ( sauf offheap )
+			serveur = new OTPServer( OTPStoreFactory.create( System.getProperties() ), 5, 180 );
+
+			// Durabilite : -Dotp.durability=sync|group|async
+			// -Dotp.group.delay=ms -Dotp.group.size=n
+			int durability = Arrays.asList( OTPDurability.MODES )
+				.indexOf( System.getProperty( "otp.durability", "sync" ) );
+			if( durability<0 ) {
+				System.out.println( "Durabilite inconnue." );
+				System.exit( 0 );
+			}
+			serveur.getDatabase().setDurability( durability,
+				Integer.getInteger( "otp.group.delay", 2 ), Integer.getInteger( "otp.group.size", 64 ) );
+
+			// Fenetre de verification : -Dotp.window=k -Dotp.window.budget=n
+			serveur.getAuth().setWindow( Integer.getInteger( "otp.window", 1 ),
+				Integer.getInteger( "otp.window.budget", 100 ), 60000 );
 			java.rmi.Naming.rebind( name, serveur );
 			
 			System.out.println( "RMI Servername: " + name );
@@ -55,6 +80,9 @@ public class MyOTPServeur {
 		} catch( RemoteException e ) {
 			System.out.println( "Pas de reseau." );
 			System.exit( 0 );
+		} catch( IllegalArgumentException e ) {
+			System.out.println( e.getMessage() );
+			System.exit( 0 );
 		}
 
     }
@@ -6,23 +6,58 @@ import otp.OTPUser;
 import otp.hash.OTPHash;
 import java.util.Date;
 import java.util.Calendar;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Gere une authentification.
+ * Une fenetre de verification permet d'accepter la reponse d'un
+ * client en avance de quelques pas sur le serveur : la reponse
+ * est hashee jusqu'a window fois. Les hashages en plus du premier
+ * sont limites par utilisateur a budget hashages par periode.
 **/
 
 public class OTPAuth {
 
 	/** Indique si il y a authentification. **/
 	private boolean isChecking;
+	/** Le nombre maximum de hashages d'une reponse. **/
+	private int window;
+	/** Le nombre de hashages de fenetre par utilisateur et par periode. **/
+	private int budget;
+	/** La duree d'une periode, en millisecondes. **/
+	private long period;
+	/** Les hashages de fenetre consommes par utilisateur. **/
+	private ConcurrentHashMap<String,Budget> budgets;
+
+	/** Nombre de verifications passees par la fenetre. **/
+	private AtomicLong windowChecks;
+	/** Nombre de reponses acceptees grace a la fenetre. **/
+	private AtomicLong windowHits;
+	/** Nombre de hashages faits dans la fenetre. **/
+	private AtomicLong windowHashes;
+	/** Nombre de verifications refusees faute de budget. **/
+	private AtomicLong budgetDenials;
+	/** Nombre de reponses mal formees. **/
+	private AtomicLong rejected;
 
 // Constructeur
 
 	/**
-	 * Cree un nouvel objet d'authentification.
+	 * Cree un nouvel objet d'authentification,
+	 * sans fenetre de verification.
 	**/
 	public OTPAuth() {
 		isChecking = false;
+		window = 1;
+		budget = 0;
+		period = 60000;
+		budgets = new ConcurrentHashMap<String,Budget>();
+		windowChecks = new AtomicLong();
+		windowHits = new AtomicLong();
+		windowHashes = new AtomicLong();
+		budgetDenials = new AtomicLong();
+		rejected = new AtomicLong();
 	}
 
 // Methodes
@@ -42,17 +77,23 @@ public class OTPAuth {
 
 		try {
 
-			String hexStr = OTPHash.parseOTPStringToHexString( otpStr );
-			OTPHash hash = (OTPHash) user.getHash().clone();
-			hash.setSequence( hash.getSequence()-1 );
-			hash.setHash( hexStr );
-			hash.hashOneTime();
+			// La reponse est decodee une seule fois, puis verifiee
+			// et appliquee sur le hash de l'utilisateur directement.
 
-			if( !hash.equal( user.getHash() ) )
+			// Une reponse mal formee ou au checksum faux est
+			// rejetee ici, sans hashage ni exception.
+			long response[] = new long[1];
+			if( otpStr==null || OTPHash.parseResponse( otpStr, response )!=OTPHash.PARSE_OK ) {
+				rejected.incrementAndGet();
+				return false;
+			}
+
+			// Le premier hashage sert a verify() et a la fenetre.
+			OTPHash hash = user.getHash();
+			long hashed = hash.getChain().step( response[0] );
+			if( !hash.verifyHashed( response[0], hashed ) && !checkWindow( user, response[0], hashed ) )
 				return false;
 
-			user.getHash().setHash( hexStr );
-			user.getHash().setSequence( user.getHash().getSequence()-1 );
 			user.setDate( Calendar.getInstance().getTime() );
 
 		} catch( Exception e ) {
@@ -65,6 +106,49 @@ public class OTPAuth {
 		return true;
 	}
 
+	/**
+	 * Verifie une reponse refusee au premier hashage en la hashant
+	 * jusqu'a window fois, dans la limite du budget de l'utilisateur.
+	 * @param user Un utilisateur.
+	 * @param response La reponse, sur 64 bits.
+	 * @param hashed La reponse hashee une fois, deja comparee au hash courant.
+	 * @return boolean True si la reponse est acceptee.
+	**/
+	protected boolean checkWindow( OTPUser user, long response, long hashed ) {
+
+		if( window<=1 )
+			return false;
+
+		Budget b = budgets.get( user.getLogin() );
+		if( b==null ) {
+			budgets.putIfAbsent( user.getLogin(), new Budget() );
+			b = budgets.get( user.getLogin() );
+		}
+
+		// Le premier hashage est deja fait : la fenetre en
+		// calcule au plus window-1 de plus.
+		int allowed = b.take( window-1, budget, period );
+		if( allowed<=0 ) {
+			budgetDenials.incrementAndGet();
+			return false;
+		}
+
+		windowChecks.incrementAndGet();
+		int steps = user.getHash().verifyHashed( response, hashed, allowed+1 );
+
+		if( steps==0 ) {
+			windowHashes.addAndGet( allowed );
+			return false;
+		}
+
+		// On rend les hashages non utilises.
+		b.giveBack( allowed+1-steps );
+		windowHashes.addAndGet( steps-1 );
+		windowHits.incrementAndGet();
+
+		return true;
+	}
+
 	/**
 	 * Recupere un challenge a partir d'un nom d'utilisateur.
 	 * @param user Un nom d'utilisateur.
@@ -87,4 +171,61 @@ public class OTPAuth {
 	**/
 	public void setIsChecking( boolean b ) { isChecking = b; }
 
+	/**
+	 * Configure la fenetre de verification.
+	 * @param window Le nombre maximum de hashages d'une reponse, 1 pour aucune fenetre.
+	 * @param budget Le nombre de hashages de fenetre par utilisateur et par periode.
+	 * @param period La duree d'une periode, en millisecondes.
+	**/
+	public void setWindow( int window, int budget, long period ) {
+		this.window = Math.max( window, 1 );
+		this.budget = budget;
+		this.period = period;
+	}
+
+	public int getWindow() { return window; }
+	public int getBudget() { return budget; }
+	public long getPeriod() { return period; }
+
+	public long getWindowChecks() { return windowChecks.get(); }
+	public long getWindowHits() { return windowHits.get(); }
+	public long getWindowHashes() { return windowHashes.get(); }
+	public long getBudgetDenials() { return budgetDenials.get(); }
+	public long getRejected() { return rejected.get(); }
+
+// Classes internes
+
+	/**
+	 * Les hashages de fenetre consommes par un utilisateur
+	 * dans la periode courante.
+	**/
+	private static class Budget {
+
+		private long start;
+		private int spent;
+
+		/**
+		 * Reserve des hashages.
+		 * @return int Le nombre de hashages accordes.
+		**/
+		synchronized int take( int wanted, int budget, long period ) {
+
+			long now = System.currentTimeMillis();
+			if( now - start >= period ) {
+				start = now;
+				spent = 0;
+			}
+
+			int allowed = Math.min( wanted, budget - spent );
+			if( allowed>0 )
+				spent += allowed;
+
+			return allowed;
+		}
+
+		synchronized void giveBack( int n ) {
+			spent = Math.max( spent - n, 0 );
+		}
+	}
+
 }
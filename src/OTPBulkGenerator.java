@@ -0,0 +1,255 @@
+package otp;
+
+import otp.hash.OTPChain;
+import otp.hash.OTPHash;
+import otp.hash.OTPLanes;
+import otp.exception.NoHashSupportException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+/**
+ * Generation en masse de chaines OTP.
+ * Les chaines sont calculees en parallele sur un pool
+ * fork-join, et retournees sous forme d'objets OTPUser
+ * prets a etre ajoutes dans un OTPDatabase.
+ * Les demandes sont regroupees par algorithme et decoupees
+ * en tranches de OTPLanes.WIDTH chaines, avancees ensemble
+ * par OTPChain.steps().
+ *
+ * @version 0.2
+**/
+
+public class OTPBulkGenerator {
+
+	/** Le pool de calcul. **/
+	private ForkJoinPool pool;
+	/** Le numero de sequence des chaines generees. **/
+	private int sequence;
+	/** Le rapport de la derniere generation. **/
+	private Report report;
+
+// Constructeurs
+
+	/**
+	 * Cree un generateur sur le pool commun ( tous les coeurs ).
+	**/
+	public OTPBulkGenerator() {
+		this( ForkJoinPool.commonPool() );
+	}
+
+	/**
+	 * Cree un generateur sur un pool donne.
+	 * @param pool Un pool fork-join.
+	**/
+	public OTPBulkGenerator( ForkJoinPool pool ) {
+		this.pool = pool;
+		sequence = OTPFactory.INITIAL_SEQUENCE;
+	}
+
+// Methodes
+
+	/**
+	 * Genere les chaines de toutes les demandes.
+	 * @param requests Les demandes d'enrolement.
+	 * @return List Les utilisateurs, dans l'ordre des demandes.
+	**/
+	public List<OTPUser> generate( Stream<Request> requests ) {
+
+		Request tab[] = requests.toArray( Request[]::new );
+		OTPUser users[] = new OTPUser[tab.length];
+
+		long start = System.nanoTime();
+
+		for( int i = 0; i < tab.length; i++ )
+			users[i] = create( tab[i] );
+
+		// On regroupe les utilisateurs par algorithme.
+
+		Map<String,List<Integer>> groups = new LinkedHashMap<String,List<Integer>>();
+		for( int i = 0; i < tab.length; i++ ) {
+			List<Integer> group = groups.get( tab[i].getAlgo() );
+			if( group==null ) {
+				group = new ArrayList<Integer>();
+				groups.put( tab[i].getAlgo(), group );
+			}
+			group.add( i );
+		}
+
+		List<Task> tasks = new ArrayList<Task>();
+		for( List<Integer> group : groups.values() ) {
+			int idx[] = new int[group.size()];
+			for( int i = 0; i < idx.length; i++ )
+				idx[i] = group.get( i );
+			tasks.add( new Task( tab, users, idx, 0, idx.length ) );
+		}
+
+		pool.invoke( new RecursiveAction() {
+			protected void compute() { invokeAll( tasks ); }
+		} );
+
+		report = new Report( tab.length, (long) tab.length * ( sequence+1 ),
+			System.nanoTime() - start );
+
+		return new ArrayList<OTPUser>( Arrays.asList( users ) );
+	}
+
+	/**
+	 * Cree un utilisateur, sans calculer sa chaine.
+	 * @param request Une demande d'enrolement.
+	 * @return OTPUser L'utilisateur.
+	**/
+	protected OTPUser create( Request request ) {
+
+		String seed = request.getSeed()!=null ? request.getSeed() : OTPFactory.createSeed();
+		OTPUser user = new OTPUser( request.getLogin(), request.getAlgo(), sequence, seed, null );
+
+		if( user.getHash()==null )
+			throw new NoHashSupportException( request.getAlgo() );
+
+		return user;
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le rapport de la derniere generation.
+	 * @return Report Le rapport, null si aucune generation.
+	**/
+	public Report getReport() { return report; }
+
+	public int getSequence() { return sequence; }
+	public void setSequence( int seq ) { sequence = seq; }
+
+// Classes internes
+
+	/**
+	 * Une demande d'enrolement.
+	**/
+	public static class Request {
+
+		private String login;
+		private String algo;
+		private String seed;
+		private String pass;
+
+		/**
+		 * Cree une demande d'enrolement.
+		 * @param login Le nom d'utilisateur.
+		 * @param algo L'HASHID de l'algorithme de hashage.
+		 * @param seed La semence, null pour en generer une.
+		 * @param pass La pass-phrase.
+		**/
+		public Request( String login, String algo, String seed, String pass ) {
+			this.login = login;
+			this.algo = algo;
+			this.seed = seed;
+			this.pass = pass;
+		}
+
+		public String getLogin() { return login; }
+		public String getAlgo() { return algo; }
+		public String getSeed() { return seed; }
+		public String getPass() { return pass; }
+	}
+
+	/**
+	 * Le rapport d'une generation.
+	**/
+	public static class Report {
+
+		private int users;
+		private long hashes;
+		private long nanos;
+
+		Report( int users, long hashes, long nanos ) {
+			this.users = users;
+			this.hashes = hashes;
+			this.nanos = nanos;
+		}
+
+		public int getUsers() { return users; }
+		public long getHashes() { return hashes; }
+		public long getNanos() { return nanos; }
+
+		/**
+		 * Retourne le debit de la generation.
+		 * @return double Le nombre de hashages par seconde.
+		**/
+		public double getHashesPerSecond() {
+			return nanos==0 ? 0 : hashes * 1e9 / nanos;
+		}
+
+		/**
+		 * Retourne le debit de la generation.
+		 * @return double Le nombre d'utilisateurs par seconde.
+		**/
+		public double getUsersPerSecond() {
+			return nanos==0 ? 0 : users * 1e9 / nanos;
+		}
+
+		public String toString() {
+			return users + " users, " + hashes + " hashes in "
+				+ ( nanos / 1000000 ) + " ms ("
+				+ (long) getUsersPerSecond() + " users/s, "
+				+ (long) getHashesPerSecond() + " hashes/s)";
+		}
+	}
+
+	/**
+	 * Calcule une tranche d'utilisateurs d'un meme algorithme,
+	 * en la divisant tant qu'elle depasse OTPLanes.WIDTH.
+	 * Les tranches sont coupees sur des multiples de OTPLanes.WIDTH.
+	**/
+	private class Task extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Request requests[];
+		private OTPUser users[];
+		private int idx[];
+		private int from, to;
+
+		Task( Request requests[], OTPUser users[], int idx[], int from, int to ) {
+			this.requests = requests;
+			this.users = users;
+			this.idx = idx;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+
+			if( to - from > OTPLanes.WIDTH ) {
+				int mid = from + ( ( to - from ) / OTPLanes.WIDTH / 2 ) * OTPLanes.WIDTH;
+				if( mid==from )
+					mid += OTPLanes.WIDTH;
+				invokeAll( new Task( requests, users, idx, from, mid ),
+					new Task( requests, users, idx, mid, to ) );
+				return;
+			}
+
+			OTPChain chain = users[idx[from]].getHash().getChain();
+
+			// Le premier hashage porte sur la semence et la pass-phrase,
+			// les suivants sont faits sur toute la tranche a la fois.
+
+			long h[] = new long[to - from];
+			for( int i = 0; i < h.length; i++ ) {
+				OTPHash hash = users[idx[from+i]].getHash();
+				h[i] = chain.hashTo64Bits( ( hash.getSeed() + requests[idx[from+i]].getPass() ).getBytes() );
+			}
+
+			chain.steps( h, sequence );
+
+			for( int i = 0; i < h.length; i++ )
+				users[idx[from+i]].getHash().setValue( h[i] );
+		}
+	}
+
+}
@@ -0,0 +1,142 @@
+package otp;
+
+import java.util.List;
+
+/**
+ * Cache borne ( OTPUserCache ) devant un stockage sur disque.
+ * get() et contains() consultent d'abord le cache : les logins
+ * actifs restent en memoire, les comptes dormants restent sur le
+ * disque. Les ecritures sont transmises au stockage ( write-through ) :
+ * un utilisateur retire du cache n'a rien a ecrire. Un utilisateur
+ * dont l'ecriture est refusee par le stockage est retire du cache,
+ * pour etre relu a la prochaine demande.
+ *
+ * @version 0.1
+**/
+
+public class OTPCachedStore implements OTPStore {
+
+	/** Le stockage sur disque. **/
+	private OTPStore store;
+	/** Le cache. **/
+	private OTPUserCache cache;
+
+// Constructeurs
+
+	/**
+	 * Met un cache devant un stockage.
+	 * @param store Le stockage.
+	 * @param capacity Le nombre maximal d'utilisateurs en memoire.
+	**/
+	public OTPCachedStore( OTPStore store, int capacity ) {
+		this.store = store;
+		cache = new OTPUserCache( capacity );
+	}
+
+// Methodes
+
+	public boolean add( OTPUser user ) {
+		if( !store.add( user ) )
+			return false;
+		cache.put( user );
+		return true;
+	}
+
+	public boolean contains( String username ) {
+		return cache.contains( username ) || store.contains( username );
+	}
+
+	public OTPUser delete( String username ) {
+		cache.remove( username );
+		return store.delete( username );
+	}
+
+	public OTPUser get( String username ) {
+
+		OTPUser user = cache.get( username );
+		if( user!=null )
+			return user;
+
+		user = store.get( username );
+		if( user!=null )
+			cache.put( user );
+		return user;
+	}
+
+	public OTPUser getFirst() {
+		return store.getFirst();
+	}
+
+	/**
+	 * Retourne tous les utilisateurs, lus dans le stockage sans
+	 * passer par le cache.
+	 * @return List Les utilisateurs.
+	**/
+	public List<OTPUser> getUsers() {
+		return store.getUsers();
+	}
+
+	public boolean isEmpty() {
+		return store.isEmpty();
+	}
+
+	public boolean loadData() {
+		cache.clear();
+		return store.loadData();
+	}
+
+	public boolean saveData() {
+		return store.saveData();
+	}
+
+	public long write( OTPUser user ) {
+
+		long ticket = store.write( user );
+		if( ticket<0 )
+			cache.remove( user.getLogin() );
+		return ticket;
+	}
+
+	public boolean commit( long ticket ) {
+		return store.commit( ticket );
+	}
+
+	public boolean update( OTPUser user ) {
+		return commit( write( user ) );
+	}
+
+	/**
+	 * Le stockage fait le compare-and-set ; l'utilisateur du cache,
+	 * qui ne le voit pas, est retire.
+	**/
+	public boolean compareAndUpdate( String username, int seq, long expected, int newSeq, long newHash ) {
+		cache.remove( username );
+		boolean result = store.compareAndUpdate( username, seq, expected, newSeq, newHash );
+		cache.remove( username );
+		return result;
+	}
+
+	public void setDurability( int mode, long delay, int batch ) {
+		store.setDurability( mode, delay, batch );
+	}
+
+	public void close() {
+		store.close();
+		cache.clear();
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le stockage sur disque.
+	 * @return OTPStore Le stockage.
+	**/
+	public OTPStore getStore() { return store; }
+
+	/**
+	 * Retourne le cache, pour ses compteurs ( hits, misses, evictions ).
+	 * @return OTPUserCache Le cache.
+	**/
+	public OTPUserCache getCache() { return cache; }
+
+}
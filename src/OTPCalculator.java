@@ -0,0 +1,153 @@
+package otp;
+
+import otp.hash.OTPChain;
+import otp.hash.OTPHash;
+import otp.exception.InvalidHashException;
+import otp.exception.NoHashSupportException;
+
+/**
+ * Calculatrice OTP.
+ * Calcule les reponses aux challenges d'une meme chaine
+ * ( meme algorithme et meme semence ), pour des numeros de
+ * sequence decroissants d'un challenge a l'autre.
+ * Plutot que de refaire toute la chaine a chaque reponse, la
+ * calculatrice garde des points de reprise le long de la chaine :
+ * a chaque calcul, elle pose un point au milieu de l'intervalle
+ * restant ( pebbling binaire ). Il y a au plus log2(n) points,
+ * et une reponse coute en moyenne O(log n) hashages.
+ * La pass-phrase n'est pas gardee : seul le premier hashage
+ * de la chaine l'est.
+ *
+ * @version 0.1
+**/
+
+public class OTPCalculator {
+
+	/** Le nombre maximum de points de reprise. **/
+	private static final int MAX_PEBBLES = 64;
+
+	/** Le hash qui porte l'algorithme et la semence. **/
+	private OTPHash hash;
+	/** Les numeros de sequence des points, croissants. **/
+	private int pos[];
+	/** Les hash des points. **/
+	private long val[];
+	/** Le nombre de points. **/
+	private int size;
+	/** Le nombre de hashages effectues. **/
+	private long hashes;
+
+// Constructeurs
+
+	/**
+	 * Cree une calculatrice pour la chaine d'un challenge.
+	 * @param challenge Un challenge, tel que cree par OTPFactory.createChallenge().
+	 * @param pass La pass-phrase.
+	**/
+	public OTPCalculator( String challenge, String pass ) {
+
+		String tab[] = parseChallenge( challenge );
+
+		hash = OTPFactory.createOTPHash( tab[0], 0, tab[2], null );
+		if( hash==null )
+			throw new NoHashSupportException( tab[0] );
+
+		pos = new int[MAX_PEBBLES];
+		val = new long[MAX_PEBBLES];
+
+		// Le point de depart : le numero de sequence 0.
+		pos[0] = 0;
+		val[0] = hash.getChain().hashTo64Bits( ( hash.getSeed() + pass ).getBytes() );
+		size = 1;
+		hashes = 1;
+	}
+
+// Methodes
+
+	/**
+	 * Retourne la reponse a un challenge, sous forme de 6 mots.
+	 * @param challenge Un challenge de la meme chaine.
+	 * @return String La reponse.
+	**/
+	public String getResponse( String challenge ) {
+
+		String tab[] = parseChallenge( challenge );
+
+		if( !tab[0].equals( OTPFactory.getHashID( hash ) )
+				|| !tab[2].toLowerCase().equals( hash.getSeed() ) )
+			throw new InvalidHashException( "Challenge d'une autre chaine." );
+
+		int seq;
+		try {
+			seq = Integer.parseInt( tab[1] );
+		} catch( NumberFormatException numberformatexception ) {
+			throw new InvalidHashException( "Challenge invalide." );
+		}
+
+		return OTPHash.parseLongToOTPString( getValue( seq ) );
+	}
+
+	/**
+	 * Retourne le hash d'un numero de sequence.
+	 * @param seq Un numero de sequence.
+	 * @return long Le hash sur 64 bits.
+	**/
+	public long getValue( int seq ) {
+
+		if( seq<0 )
+			throw new InvalidHashException( "Numero de sequence negatif." );
+
+		// On oublie les points au dela de seq : les challenges
+		// suivants auront des numeros plus petits.
+
+		while( pos[size-1] > seq )
+			size--;
+
+		// On avance depuis le dernier point en posant un point
+		// au milieu de chaque intervalle restant.
+
+		OTPChain chain = hash.getChain();
+		int p = pos[size-1];
+		long h = val[size-1];
+
+		while( p < seq ) {
+			int next = size < MAX_PEBBLES - 1 ? p + ( seq - p + 1 ) / 2 : seq;
+			h = chain.steps( h, next - p );
+			hashes += next - p;
+			p = next;
+			pos[size] = p;
+			val[size] = h;
+			size++;
+		}
+
+		return h;
+	}
+
+	/**
+	 * Decoupe un challenge : HASHID, numero de sequence, semence.
+	**/
+	private static String[] parseChallenge( String challenge ) {
+
+		String tab[] = challenge.trim().split( "\\s+" );
+
+		if( tab.length<3 )
+			throw new InvalidHashException( "Challenge invalide." );
+
+		return tab;
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le nombre de points de reprise.
+	 * @return int Le nombre de points.
+	**/
+	public int getPebbles() { return size; }
+
+	/**
+	 * Retourne le nombre de hashages effectues depuis la creation.
+	 * @return long Le nombre de hashages.
+	**/
+	public long getHashes() { return hashes; }
+
+}
@@ -0,0 +1,105 @@
+package otp.hash;
+
+import otp.exception.NoHashSupportException;
+
+/**
+ * Moteur de chaine de hash OTP.
+ * Un moteur hashe et replie sur 64 bits directement dans
+ * un entier long, en reutilisant son etat interne d'un
+ * appel a l'autre : aucune allocation par iteration.
+ * Un moteur n'est pas partage entre threads, chaque classe
+ * OTPHash fournit une instance par thread.
+ *
+ * @version 0.1
+**/
+
+public abstract class OTPChain {
+
+// Methodes abstraites
+
+	/**
+	 * Hashe un tableau d'octets et replie le resultat sur 64 bits.
+	 * @param tab Un tableau d'octets a hasher.
+	 * @return long Le resultat replie sur 64 bits.
+	**/
+	public abstract long hashTo64Bits( byte tab[] ) throws NoHashSupportException;
+
+	/**
+	 * Avance la chaine d'un pas : hashe les 8 octets du
+	 * hash courant et replie le resultat sur 64 bits.
+	 * @param h Le hash courant.
+	 * @return long Le hash suivant.
+	**/
+	public abstract long step( long h ) throws NoHashSupportException;
+
+// Methodes
+
+	/**
+	 * Calcule n hashages successifs a partir d'une semence
+	 * concatenee a une pass-phrase.
+	 * @param seedPass La semence suivie de la pass-phrase.
+	 * @param n Le nombre de hashages ( au moins 1 ).
+	 * @return long Le hash obtenu.
+	**/
+	public long chain( byte seedPass[], int n ) {
+
+		long h = hashTo64Bits( seedPass );
+		for( int i = 1; i < n; i++ )
+			h = step( h );
+
+		return h;
+	}
+
+	/**
+	 * Avance la chaine de n pas.
+	 * @param h Le hash de depart.
+	 * @param n Le nombre de pas.
+	 * @return long Le hash obtenu.
+	**/
+	public long steps( long h, int n ) {
+
+		for( int i = 0; i < n; i++ )
+			h = step( h );
+
+		return h;
+	}
+
+	/**
+	 * Avance de n pas toutes les chaines d'un tableau.
+	 * @param h Les hash de depart, remplaces par les hash obtenus.
+	 * @param n Le nombre de pas.
+	**/
+	public void steps( long h[], int n ) {
+		for( int i = 0; i < h.length; i++ )
+			h[i] = steps( h[i], n );
+	}
+
+	/**
+	 * Ecrit un entier long dans un tableau, octet de poids fort en tete.
+	 * @param tab Le tableau destination.
+	 * @param off La position de depart.
+	 * @param l L'entier long.
+	**/
+	protected static void putLong( byte tab[], int off, long l ) {
+		for( int i = 7; i >= 0; i-- ) {
+			tab[off+i] = (byte) l;
+			l >>>= 8;
+		}
+	}
+
+	/**
+	 * Lit un entier long dans un tableau, octet de poids fort en tete.
+	 * @param tab Le tableau source.
+	 * @param off La position de depart.
+	 * @return long L'entier long.
+	**/
+	protected static long getLong( byte tab[], int off ) {
+
+		long l = 0L;
+		for( int i = 0; i < 8; i++ )
+			l = ( l << 8 ) | ( tab[off+i] & 0xff );
+
+		return l;
+	}
+
+}
@@ -0,0 +1,236 @@
+package otp.hash;
+
+/**
+ * Moteur de chaine MD4 ( RFC 1320 ), implemente en Java
+ * car la JVM ne fournit pas MD4.
+ * Le hash de 128 bits est replie sur 64 bits comme pour MD5.
+ * Un pas de chaine ne hashe que 8 octets : le bloc est alors
+ * toujours le meme a part ses deux premiers mots, et il est
+ * traite directement dans des variables entieres.
+ *
+ * @version 0.2
+**/
+
+public class OTPChainMD4 extends OTPChain {
+
+	/** Un moteur par thread. **/
+	private static final ThreadLocal<OTPChain> LOCAL = new ThreadLocal<OTPChain>() {
+		protected OTPChain initialValue() {
+			return new OTPChainMD4();
+		}
+	};
+
+	private static final int A0 = 0x67452301;
+	private static final int B0 = 0xefcdab89;
+	private static final int C0 = 0x98badcfe;
+	private static final int D0 = 0x10325476;
+	private static final int K2 = 0x5a827999;
+	private static final int K3 = 0x6ed9eba1;
+
+	/** Un bloc de 16 mots, reutilise. **/
+	private int x[];
+	/** L'etat courant du hashage. **/
+	private int a, b, c, d;
+
+// Constructeurs
+
+	public OTPChainMD4() {
+		x = new int[16];
+	}
+
+// Methodes
+
+	/**
+	 * Retourne le moteur MD4 du thread courant.
+	 * @return OTPChain Le moteur.
+	**/
+	public static OTPChain get() { return LOCAL.get(); }
+
+	/**
+	 * Hashe un tableau d'octets.
+	 * @param tab Un tableau d'octets a hasher.
+	 * @return byte[] Le hash MD4 de 128 bits.
+	**/
+	public byte[] digest( byte tab[] ) {
+
+		update( tab );
+
+		byte result[] = new byte[16];
+		int h[] = { a, b, c, d };
+		for( int i = 0; i < 16; i++ )
+			result[i] = (byte) ( h[i>>2] >>> ( ( i & 3 ) * 8 ) );
+
+		return result;
+	}
+
+	public long hashTo64Bits( byte tab[] ) {
+		update( tab );
+		return fold( a, b, c, d );
+	}
+
+	public long step( long h ) {
+
+		// Le bloc vaut { x0, x1, 0x80, 0, ..., 0, 64, 0 }.
+		// Les mots sont lus en petit-boutiste.
+
+		int x0 = Integer.reverseBytes( (int) ( h >>> 32 ) );
+		int x1 = Integer.reverseBytes( (int) h );
+		int a = A0, b = B0, c = C0, d = D0;
+
+		// Tour 1.
+		a = Integer.rotateLeft( a + ( ( b & c ) | ( ~b & d ) ) + x0, 3 );
+		d = Integer.rotateLeft( d + ( ( a & b ) | ( ~a & c ) ) + x1, 7 );
+		c = Integer.rotateLeft( c + ( ( d & a ) | ( ~d & b ) ) + 0x80, 11 );
+		b = Integer.rotateLeft( b + ( ( c & d ) | ( ~c & a ) ), 19 );
+		a = Integer.rotateLeft( a + ( ( b & c ) | ( ~b & d ) ), 3 );
+		d = Integer.rotateLeft( d + ( ( a & b ) | ( ~a & c ) ), 7 );
+		c = Integer.rotateLeft( c + ( ( d & a ) | ( ~d & b ) ), 11 );
+		b = Integer.rotateLeft( b + ( ( c & d ) | ( ~c & a ) ), 19 );
+		a = Integer.rotateLeft( a + ( ( b & c ) | ( ~b & d ) ), 3 );
+		d = Integer.rotateLeft( d + ( ( a & b ) | ( ~a & c ) ), 7 );
+		c = Integer.rotateLeft( c + ( ( d & a ) | ( ~d & b ) ), 11 );
+		b = Integer.rotateLeft( b + ( ( c & d ) | ( ~c & a ) ), 19 );
+		a = Integer.rotateLeft( a + ( ( b & c ) | ( ~b & d ) ), 3 );
+		d = Integer.rotateLeft( d + ( ( a & b ) | ( ~a & c ) ), 7 );
+		c = Integer.rotateLeft( c + ( ( d & a ) | ( ~d & b ) ) + 64, 11 );
+		b = Integer.rotateLeft( b + ( ( c & d ) | ( ~c & a ) ), 19 );
+
+		// Tour 2.
+		a = Integer.rotateLeft( a + ( ( b & c ) | ( b & d ) | ( c & d ) ) + x0 + K2, 3 );
+		d = Integer.rotateLeft( d + ( ( a & b ) | ( a & c ) | ( b & c ) ) + K2, 5 );
+		c = Integer.rotateLeft( c + ( ( d & a ) | ( d & b ) | ( a & b ) ) + K2, 9 );
+		b = Integer.rotateLeft( b + ( ( c & d ) | ( c & a ) | ( d & a ) ) + K2, 13 );
+		a = Integer.rotateLeft( a + ( ( b & c ) | ( b & d ) | ( c & d ) ) + x1 + K2, 3 );
+		d = Integer.rotateLeft( d + ( ( a & b ) | ( a & c ) | ( b & c ) ) + K2, 5 );
+		c = Integer.rotateLeft( c + ( ( d & a ) | ( d & b ) | ( a & b ) ) + K2, 9 );
+		b = Integer.rotateLeft( b + ( ( c & d ) | ( c & a ) | ( d & a ) ) + K2, 13 );
+		a = Integer.rotateLeft( a + ( ( b & c ) | ( b & d ) | ( c & d ) ) + 0x80 + K2, 3 );
+		d = Integer.rotateLeft( d + ( ( a & b ) | ( a & c ) | ( b & c ) ) + K2, 5 );
+		c = Integer.rotateLeft( c + ( ( d & a ) | ( d & b ) | ( a & b ) ) + K2, 9 );
+		b = Integer.rotateLeft( b + ( ( c & d ) | ( c & a ) | ( d & a ) ) + 64 + K2, 13 );
+		a = Integer.rotateLeft( a + ( ( b & c ) | ( b & d ) | ( c & d ) ) + K2, 3 );
+		d = Integer.rotateLeft( d + ( ( a & b ) | ( a & c ) | ( b & c ) ) + K2, 5 );
+		c = Integer.rotateLeft( c + ( ( d & a ) | ( d & b ) | ( a & b ) ) + K2, 9 );
+		b = Integer.rotateLeft( b + ( ( c & d ) | ( c & a ) | ( d & a ) ) + K2, 13 );
+
+		// Tour 3.
+		a = Integer.rotateLeft( a + ( b ^ c ^ d ) + x0 + K3, 3 );
+		d = Integer.rotateLeft( d + ( a ^ b ^ c ) + K3, 9 );
+		c = Integer.rotateLeft( c + ( d ^ a ^ b ) + K3, 11 );
+		b = Integer.rotateLeft( b + ( c ^ d ^ a ) + K3, 15 );
+		a = Integer.rotateLeft( a + ( b ^ c ^ d ) + 0x80 + K3, 3 );
+		d = Integer.rotateLeft( d + ( a ^ b ^ c ) + K3, 9 );
+		c = Integer.rotateLeft( c + ( d ^ a ^ b ) + K3, 11 );
+		b = Integer.rotateLeft( b + ( c ^ d ^ a ) + 64 + K3, 15 );
+		a = Integer.rotateLeft( a + ( b ^ c ^ d ) + x1 + K3, 3 );
+		d = Integer.rotateLeft( d + ( a ^ b ^ c ) + K3, 9 );
+		c = Integer.rotateLeft( c + ( d ^ a ^ b ) + K3, 11 );
+		b = Integer.rotateLeft( b + ( c ^ d ^ a ) + K3, 15 );
+		a = Integer.rotateLeft( a + ( b ^ c ^ d ) + K3, 3 );
+		d = Integer.rotateLeft( d + ( a ^ b ^ c ) + K3, 9 );
+		c = Integer.rotateLeft( c + ( d ^ a ^ b ) + K3, 11 );
+		b = Integer.rotateLeft( b + ( c ^ d ^ a ) + K3, 15 );
+
+		return fold( a + A0, b + B0, c + C0, d + D0 );
+	}
+
+	/**
+	 * Hashe un message de taille quelconque : l'etat
+	 * final est laisse dans a, b, c et d.
+	 * @param tab Le message.
+	**/
+	private void update( byte tab[] ) {
+
+		a = A0; b = B0; c = C0; d = D0;
+
+		// Les blocs complets.
+
+		int len = tab.length;
+		int off = 0;
+		for( ; off + 64 <= len; off += 64 ) {
+			for( int i = 0; i < 16; i++ )
+				x[i] = readInt( tab, off + i*4, len );
+			transform();
+		}
+
+		// Le dernier bloc, complete par 0x80, des zeros et
+		// la taille du message en bits. Il peut en faire deux.
+
+		for( int i = 0; i < 16; i++ )
+			x[i] = readInt( tab, off + i*4, len );
+
+		int rest = len - off;
+		x[rest>>2] |= 0x80 << ( ( rest & 3 ) * 8 );
+
+		if( rest >= 56 ) {
+			transform();
+			for( int i = 0; i < 16; i++ )
+				x[i] = 0;
+		}
+
+		long bits = (long) len << 3;
+		x[14] = (int) bits;
+		x[15] = (int) ( bits >>> 32 );
+		transform();
+	}
+
+	/**
+	 * Lit un mot petit-boutiste, complete par des zeros
+	 * au dela de la fin du message.
+	**/
+	private static int readInt( byte tab[], int off, int len ) {
+
+		int w = 0;
+		for( int i = 3; i >= 0; i-- ) {
+			w <<= 8;
+			if( off + i < len )
+				w |= tab[off+i] & 0xff;
+		}
+
+		return w;
+	}
+
+	/**
+	 * Traite le bloc x et met a jour l'etat.
+	**/
+	private void transform() {
+
+		int a = this.a, b = this.b, c = this.c, d = this.d;
+
+		for( int i = 0; i < 16; i += 4 ) {
+			a = Integer.rotateLeft( a + ( ( b & c ) | ( ~b & d ) ) + x[i], 3 );
+			d = Integer.rotateLeft( d + ( ( a & b ) | ( ~a & c ) ) + x[i+1], 7 );
+			c = Integer.rotateLeft( c + ( ( d & a ) | ( ~d & b ) ) + x[i+2], 11 );
+			b = Integer.rotateLeft( b + ( ( c & d ) | ( ~c & a ) ) + x[i+3], 19 );
+		}
+
+		for( int i = 0; i < 4; i++ ) {
+			a = Integer.rotateLeft( a + ( ( b & c ) | ( b & d ) | ( c & d ) ) + x[i] + K2, 3 );
+			d = Integer.rotateLeft( d + ( ( a & b ) | ( a & c ) | ( b & c ) ) + x[i+4] + K2, 5 );
+			c = Integer.rotateLeft( c + ( ( d & a ) | ( d & b ) | ( a & b ) ) + x[i+8] + K2, 9 );
+			b = Integer.rotateLeft( b + ( ( c & d ) | ( c & a ) | ( d & a ) ) + x[i+12] + K2, 13 );
+		}
+
+		for( int i = 0; i < 4; i++ ) {
+			int j = ( i & 1 ) << 1 | ( i >> 1 );
+			a = Integer.rotateLeft( a + ( b ^ c ^ d ) + x[j] + K3, 3 );
+			d = Integer.rotateLeft( d + ( a ^ b ^ c ) + x[j+8] + K3, 9 );
+			c = Integer.rotateLeft( c + ( d ^ a ^ b ) + x[j+4] + K3, 11 );
+			b = Integer.rotateLeft( b + ( c ^ d ^ a ) + x[j+12] + K3, 15 );
+		}
+
+		this.a += a;
+		this.b += b;
+		this.c += c;
+		this.d += d;
+	}
+
+	/**
+	 * Replie l'etat MD4 sur 64 bits, octet de poids fort en tete.
+	**/
+	private static long fold( int a, int b, int c, int d ) {
+		return (long) Integer.reverseBytes( a ^ c ) << 32
+			| ( Integer.reverseBytes( b ^ d ) & 0xffffffffL );
+	}
+
+}
@@ -0,0 +1,39 @@
+package otp.hash;
+
+/**
+ * Moteur de chaine MD5 : le hash de 128 bits est replie
+ * sur 64 bits par un ou-exclusif de ses deux moities.
+ *
+ * @version 0.1
+**/
+
+public class OTPChainMD5 extends OTPDigestChain {
+
+	/** Un moteur par thread. **/
+	private static final ThreadLocal<OTPChain> LOCAL = new ThreadLocal<OTPChain>() {
+		protected OTPChain initialValue() {
+			return new OTPChainMD5();
+		}
+	};
+
+// Constructeurs
+
+	public OTPChainMD5() {
+		super( "MD5", 16 );
+	}
+
+// Methodes
+
+	/**
+	 * Retourne le moteur MD5 du thread courant.
+	 * @return OTPChain Le moteur.
+	**/
+	public static OTPChain get() { return LOCAL.get(); }
+
+	protected OTPLanes createLanes() { return new OTPLanesMD5(); }
+
+	protected long fold() {
+		return getLong( out, 0 ) ^ getLong( out, 8 );
+	}
+
+}
@@ -0,0 +1,43 @@
+package otp.hash;
+
+/**
+ * Moteur de chaine SHA-1 : le hash de 160 bits est replie
+ * sur 64 bits, comme dans OTPHashSHA1.parseTo64Bits().
+ *
+ * @version 0.1
+**/
+
+public class OTPChainSHA1 extends OTPDigestChain {
+
+	/** Un moteur par thread. **/
+	private static final ThreadLocal<OTPChain> LOCAL = new ThreadLocal<OTPChain>() {
+		protected OTPChain initialValue() {
+			return new OTPChainSHA1();
+		}
+	};
+
+// Constructeurs
+
+	public OTPChainSHA1() {
+		super( "SHA1", 20 );
+	}
+
+// Methodes
+
+	/**
+	 * Retourne le moteur SHA-1 du thread courant.
+	 * @return OTPChain Le moteur.
+	**/
+	public static OTPChain get() { return LOCAL.get(); }
+
+	protected OTPLanes createLanes() { return new OTPLanesSHA1(); }
+
+	protected long fold() {
+
+		long h16 = ( out[16] & 0xffL ) << 56 | ( out[17] & 0xffL ) << 48
+			| ( out[18] & 0xffL ) << 40 | ( out[19] & 0xffL ) << 32;
+
+		return getLong( out, 0 ) ^ getLong( out, 8 ) ^ h16;
+	}
+
+}
@@ -1,23 +1,97 @@
 package otp;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Gere une base de donnees OTP. Cette classe s'articule autour
  * de la classe OTPUser.
+ * En mode journalise, chaque modification est ajoutee a un
+ * journal ( fichier.log ) au lieu de reecrire tout le fichier ;
+ * le journal est compacte en tache de fond dans un nouvel
+ * instantane des qu'il depasse la taille de la base.
+ * Si le fichier est au format binaire ( OTPMappedStore ), il
+ * est projete en memoire au lieu d'etre lu, et chaque
+ * modification est ecrite en place dans son enregistrement.
+ * En mode indexe, seul un index login -> position ( OTPTextIndex )
+ * est charge ; les utilisateurs sont lus a la demande, seuls
+ * ceux modifies sont reecrits au compactage du journal, et ceux
+ * non modifies sont alors retires de la memoire.
+ * Les utilisateurs sont ranges dans une ConcurrentHashMap : les
+ * acces a des utilisateurs differents ne se bloquent pas.
  *
  * @author Thomas CHEMINEAU
- * @version 0.5
+ * @version 0.7
 **/
 
-public class OTPDatabase {
+public class OTPDatabase implements OTPStore {
+
+	/** Extension du fichier journal. **/
+	public static final String JOURNAL = ".log";
+	/** Nombre minimal d'enregistrements avant compactage. **/
+	public static final int COMPACT_MIN = 1024;
+	/** Taille minimale d'une tranche de lecture, en octets. **/
+	private static final int CHUNK = 1 << 20;
 
 	/** Le nom de fichier des donnees. **/
     private String nomFichier;
-    /** Les donnees. **/
-    private Hashtable<String,OTPUser> data;
+    /** Les donnees ( en mode indexe, les utilisateurs deja lus ). **/
+    private volatile ConcurrentHashMap<String,OTPUser> data;
+	/** L'index du fichier texte, null si la base n'est pas indexee. **/
+	private OTPTextIndex index;
+	/** Protege l'index pendant son remplacement. **/
+	private ReentrantReadWriteLock indexLock;
+	/** Mode indexe : protege data pendant le retrait des utilisateurs
+	 * non modifies ( voir saveIndexed() ). **/
+	private ReentrantReadWriteLock evictLock;
+	/** Mode indexe : les utilisateurs sont lus a la demande. **/
+	private boolean indexed;
+	/** Mode indexe : logins modifies depuis le dernier instantane -> version.
+	 * Fichier surveille : logins ajoutes depuis le dernier instantane. **/
+	private Map<String,Long> dirty;
+	/** Logins supprimes depuis le dernier instantane -> version. **/
+	private Map<String,Long> deleted;
+	/** Mode indexe : compteur de versions. **/
+	private AtomicLong version;
+	/** Le journal, null si la base n'est pas journalisee. **/
+	private OTPJournal journal;
+	/** Un compactage est en cours. **/
+	private AtomicBoolean compacting;
+	/** Le fichier binaire projete, null pour un fichier texte. **/
+	private OTPMappedStore mapped;
+	/** Le mode de durabilite, -1 par defaut ( OTPDurability.SYNC ). **/
+	private int durability = -1;
+	/** Delai maximal d'un groupe, en ms. **/
+	private long groupDelay;
+	/** Taille maximale d'un groupe. **/
+	private int groupSize;
+	/** Le fichier est surveille et relu quand un autre programme l'ecrit. **/
+	private boolean watched;
+	/** La surveillance du fichier, null si elle n'est pas lancee. **/
+	private OTPFileWatcher watcher;
+	/** L'identite ( inode, taille, date ) du dernier instantane lu ou ecrit. **/
+	private Object snapshotKey;
+	/** Protege la table pendant son remplacement par reload(). **/
+	private final Object tableLock = new Object();
+	/** Base journalisee : le dernier enregistrement ecrit de chaque login. **/
+	private final ConcurrentHashMap<String,Written> written = new ConcurrentHashMap<String,Written>();
 
 // Constructeurs
 
@@ -26,8 +100,49 @@ public class OTPDatabase {
 	 * @param filename Le nom de fichier de donnees.
 	**/
 	public OTPDatabase( String filename ) {
-		data = new Hashtable<String,OTPUser>();
+		data = new ConcurrentHashMap<String,OTPUser>();
 		nomFichier = filename;
+		indexLock = new ReentrantReadWriteLock();
+		evictLock = new ReentrantReadWriteLock();
+		compacting = new AtomicBoolean();
+	}
+
+	/**
+	 * Construit une nouvelle instance de OTPDatabase.
+	 * @param filename Le nom de fichier de donnees.
+	 * @param journaled True pour ecrire les modifications dans un journal.
+	**/
+	public OTPDatabase( String filename, boolean journaled ) {
+
+		this( filename );
+
+		if( journaled ) {
+			try {
+				journal = new OTPJournal( filename + JOURNAL );
+			} catch( IOException ioexception ) {
+				System.out.println( "[OTPDatabase] journal : " + ioexception );
+			}
+		}
+	}
+
+	/**
+	 * Construit une nouvelle instance de OTPDatabase.
+	 * En mode indexe, la base est toujours journalisee : le journal
+	 * porte les modifications jusqu'au compactage suivant.
+	 * @param filename Le nom de fichier de donnees.
+	 * @param journaled True pour ecrire les modifications dans un journal.
+	 * @param indexed True pour lire les utilisateurs a la demande.
+	**/
+	public OTPDatabase( String filename, boolean journaled, boolean indexed ) {
+
+		this( filename, journaled || indexed );
+
+		this.indexed = indexed && journal!=null;
+		if( this.indexed ) {
+			dirty = new ConcurrentHashMap<String,Long>();
+			deleted = new ConcurrentHashMap<String,Long>();
+			version = new AtomicLong();
+		}
 	}
 
 // Methodes
@@ -39,13 +154,38 @@ public class OTPDatabase {
 	**/
 	public boolean add( OTPUser user ) {
 
-		if( data.containsKey( (String) user.getLogin() ) )
+		if( contains( (String) user.getLogin() ) )
 			return false;
 
+		// Pas de retrait entre l'ajout et sa version.
+		if( indexed )
+			evictLock.readLock().lock();
 		try {
-            data.put( (String) user.getLogin(), user );
+			// Deux ajouts simultanes du meme login : un seul reussit.
+			synchronized( tableLock ) {
+				if( data.putIfAbsent( (String) user.getLogin(), user )!=null )
+					return false;
+				if( watched )
+					dirty.put( user.getLogin(), version.incrementAndGet() );
+			}
+			if( mapped!=null ) {
+				// Le fichier binaire garde l'utilisateur, pas la memoire.
+				boolean put = mapped.put( user );
+				data.remove( user.getLogin(), user );
+				if( !put )
+					return false;
+			}
+			if( indexed )
+				dirty.put( user.getLogin(), version.incrementAndGet() );
 		} catch( NullPointerException nullpointerexception ) {
 			return false;
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPDatabase] add : " + ioexception );
+			data.remove( user.getLogin(), user );
+			return false;
+		} finally {
+			if( indexed )
+				evictLock.readLock().unlock();
 		}
 
         return true;
@@ -57,6 +197,10 @@ public class OTPDatabase {
 	 * @return boolean True si l'utilisateur est deja dans la base.
 	**/
 	public boolean contains( String username ) {
+		if( mapped!=null )
+			return mapped.find( username )>=0;
+		if( indexed )
+			return get( username )!=null;
 		return data.containsKey( username );
 	}
 
@@ -66,16 +210,92 @@ public class OTPDatabase {
 	 * @return OTPUser L'objet supprime, null si pas trouve.
 	**/
 	public OTPUser delete( String username ) {
-        return (OTPUser) data.remove( username );
+		if( mapped!=null ) {
+			OTPUser user = get( username );
+			mapped.remove( username );
+			data.remove( username );
+			return user;
+		}
+		if( indexed ) {
+			OTPUser user = get( username );
+			if( user!=null ) {
+				// Marque avant de retirer : un get() simultane ne relit
+				// pas l'utilisateur dans le fichier.
+				deleted.put( username, version.incrementAndGet() );
+				data.remove( username );
+			}
+			return user;
+		}
+		synchronized( tableLock ) {
+			OTPUser user = (OTPUser) data.remove( username );
+			if( user!=null && watched )
+				deleted.put( username, version.incrementAndGet() );
+			return user;
+		}
     }
 
 	/**
-	 * Retourne un objet OTPUser.
+	 * Retourne un objet OTPUser. Pour un fichier binaire, l'objet
+	 * est lu a chaque demande, sans etre garde en memoire ( voir
+	 * OTPCachedStore ) ; en mode indexe, il est lu a la premiere
+	 * demande puis garde en memoire jusqu'au prochain instantane,
+	 * s'il n'est pas modifie.
 	 * @param username Le nom d'utilisateur de l'objet OTPUser.
 	 * @return OTPUser L'objet ou null si pas trouve.
 	**/
 	public OTPUser get( String username ) {
-		return (OTPUser) data.get( username );
+
+		OTPUser user = data.get( username );
+		if( user!=null || ( mapped==null && !indexed ) )
+			return user;
+
+		if( mapped!=null )
+			return mapped.read( username );
+
+		// L'utilisateur est lu une seule fois, meme si plusieurs
+		// threads le demandent en meme temps.
+		return data.computeIfAbsent( username, this::readIndexed );
+	}
+
+	/**
+	 * Mode indexe : reprend un objet retire de la memoire par
+	 * saveIndexed() pendant qu'il etait utilise. Il n'est repris que
+	 * si sa sequence est plus petite que celle du fichier : une autre
+	 * copie du meme utilisateur, deja ecrite, le fait refuser.
+	 * Appele sous le verrou de lecture de evictLock.
+	 * @param user L'objet modifie, absent de la memoire.
+	 * @return OTPUser L'objet en memoire pour ce login, null si l'utilisateur n'existe plus.
+	**/
+	private OTPUser adopt( OTPUser user ) {
+
+		OTPUser stored = readIndexed( user.getLogin() );
+		if( stored==null || user.getHash().getSequence()>=stored.getHash().getSequence() )
+			return stored;
+
+		OTPUser current = data.putIfAbsent( user.getLogin(), user );
+		return current==null ? user : current;
+	}
+
+	/**
+	 * Lit un utilisateur dans le fichier indexe.
+	 * @param username Un nom d'utilisateur.
+	 * @return OTPUser L'utilisateur, null s'il n'existe pas ou a ete supprime.
+	**/
+	private OTPUser readIndexed( String username ) {
+
+		if( deleted.containsKey( username ) )
+			return null;
+
+		indexLock.readLock().lock();
+		try {
+			String line = index.get( username );
+			return line==null ? null : new OTPUser( line );
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPDatabase] get : " + ioexception );
+			return null;
+		} finally {
+			indexLock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -84,6 +304,17 @@ public class OTPDatabase {
 	**/
 	public OTPUser getFirst() {
 
+		if( mapped!=null ) {
+			String login = mapped.first();
+			return login==null ? null : get( login );
+		}
+
+		if( indexed ) {
+			String login = firstIndexed();
+			if( login!=null )
+				return get( login );
+		}
+
 		if( data.isEmpty() )
 			return null;
 
@@ -92,11 +323,49 @@ public class OTPDatabase {
 
 	}
 
+	/**
+	 * Retourne tous les utilisateurs de la base. En mode indexe ou
+	 * pour un fichier binaire, tous les utilisateurs sont alors lus.
+	 * @return List Les utilisateurs.
+	**/
+	public List<OTPUser> getUsers() {
+
+		if( mapped!=null ) {
+			List<OTPUser> users = new ArrayList<OTPUser>();
+			for( String login : mapped.logins() ) {
+				OTPUser user = get( login );
+				if( user!=null )
+					users.add( user );
+			}
+			return users;
+		}
+
+		if( indexed ) {
+			indexLock.readLock().lock();
+			try {
+				for( int i = 0; i < index.size(); i++ ) {
+					String line = index.line( i );
+					get( line.substring( 0, Math.max( 0, line.indexOf( ';' ) ) ) );
+				}
+			} catch( IOException ioexception ) {
+				System.out.println( "[OTPDatabase] getUsers : " + ioexception );
+			} finally {
+				indexLock.readLock().unlock();
+			}
+		}
+
+		return new ArrayList<OTPUser>( data.values() );
+	}
+
 	/**
 	 * Test si la base est vide.
 	 * @return boolean True si c'est le cas.
 	**/
 	public boolean isEmpty() {
+		if( mapped!=null )
+			return mapped.size()==0;
+		if( indexed && firstIndexed()!=null )
+			return false;
 		return data.isEmpty();
 	}
 
@@ -106,19 +375,63 @@ public class OTPDatabase {
 	**/
 	public boolean loadData() {
 
-		if( !( new File( nomFichier ) ).exists() )
+		// Fichier binaire : il est projete, pas lu.
+		if( OTPMappedStore.isMapped( nomFichier ) ) {
+			try {
+				if( mapped!=null )
+					mapped.close();
+				mapped = new OTPMappedStore( nomFichier );
+				if( durability>=0 )
+					mapped.getDurability().configure( durability, groupDelay, groupSize );
+			} catch( IOException ioexception ) {
+				System.out.println( "[OTPDatabase] loadData :\n" + ioexception );
+				return false;
+			}
+			if( journal!=null ) {
+				journal.close();
+				journal = null;
+			}
+			data.clear();
+			return true;
+		}
+
+		boolean snapshot = ( new File( nomFichier ) ).exists();
+		if( !snapshot && !( new File( nomFichier + JOURNAL ) ).exists()
+				&& !( new File( nomFichier + JOURNAL + OTPJournal.ROTATED ) ).exists() )
 			return false;
 
 		data.clear();
+		int replayed = 0;
 
 		try {
-			// Lecture simple
-			String ligne;			
-			BufferedReader bufferreader = new BufferedReader( new FileReader( nomFichier ) );
-			while( ( ligne = bufferreader.readLine() )!=null ) {
-				add( new OTPUser( ligne ) );
+			if( indexed ) {
+				// Seul l'index est charge.
+				if( !snapshot )
+					Files.createFile( Paths.get( nomFichier ) );
+				indexLock.writeLock().lock();
+				try {
+					if( index!=null )
+						index.close();
+					index = OTPTextIndex.open( nomFichier );
+				} finally {
+					indexLock.writeLock().unlock();
+				}
+				dirty.clear();
+				deleted.clear();
+			} else if( snapshot ) {
+				// Lecture par tranches, en parallele
+				Object key = snapshotKey();
+				data = readSnapshot();
+				snapshotKey = key;
+			}
+			if( watched ) {
+				dirty.clear();
+				deleted.clear();
 			}
-			bufferreader.close();
+
+			// Rejeu des journaux, dans l'ordre d'ecriture.
+			replayed += replay( OTPJournal.read( nomFichier + JOURNAL + OTPJournal.ROTATED ) );
+			replayed += replay( OTPJournal.read( nomFichier + JOURNAL ) );
 			
 			/*
 			// Lecture binaire
@@ -134,26 +447,554 @@ public class OTPDatabase {
 			return false;
 		}
 
+		if( watched && !indexed && watcher==null ) {
+			try {
+				watcher = new OTPFileWatcher( nomFichier, new Runnable() {
+					public void run() { reload(); }
+				}, 200 );
+				watcher.start();
+			} catch( IOException ioexception ) {
+				System.out.println( "[OTPDatabase] watch : " + ioexception );
+			}
+		}
+
+		// Le journal rejoue est integre a un nouvel instantane.
+		if( journal!=null && replayed>0 )
+			return saveData();
+
 		return true;
 	}
 
+	/**
+	 * Relit le fichier de donnees quand un autre programme l'a
+	 * remplace ( MyOTPPasswd ), sans arreter le serveur. La nouvelle
+	 * table est construite a cote, puis remplace l'ancienne d'un coup :
+	 * <ul>
+	 * <li>un utilisateur dont la semence et l'algorithme n'ont pas
+	 * change garde son objet en memoire, et donc son etat ( le serveur
+	 * est au moins aussi avance que le fichier ) et ses challenges
+	 * en cours ;</li>
+	 * <li>un utilisateur nouveau, ou dont la semence ou l'algorithme
+	 * ont change, est pris dans le fichier ;</li>
+	 * <li>un utilisateur ajoute ou supprime par le serveur depuis le
+	 * dernier instantane garde l'etat du serveur ; un autre utilisateur
+	 * absent du fichier est supprime.</li>
+	 * </ul>
+	 * Un nouvel instantane est ensuite ecrit, avec le journal.
+	 * Sans effet si le fichier n'a pas change depuis le dernier
+	 * instantane lu ou ecrit. Seulement pour un fichier texte non indexe.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public synchronized boolean reload() {
+
+		if( mapped!=null || indexed || !watched )
+			return false;
+
+		Object key = snapshotKey();
+		if( key==null || key.equals( snapshotKey ) )
+			return true;
+
+		// Etat du serveur au debut de la lecture.
+		long base = version.get();
+		Map<String,Long> added = new HashMap<String,Long>( dirty );
+		Map<String,Long> gone = new HashMap<String,Long>( deleted );
+
+		ConcurrentHashMap<String,OTPUser> table;
+		try {
+			table = readSnapshot();
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPDatabase] reload : " + ioexception );
+			return false;
+		}
+
+		ConcurrentHashMap<String,OTPUser> current = data;
+		int fresh = 0;
+		for( Map.Entry<String,OTPUser> entry : table.entrySet() ) {
+			String login = entry.getKey();
+			OTPUser old = current.get( login );
+			if( gone.containsKey( login ) )
+				table.remove( login );
+			else if( old!=null && sameChain( old, entry.getValue() ) )
+				entry.setValue( old );
+			else
+				fresh++;
+		}
+		for( String login : added.keySet() ) {
+			OTPUser old = current.get( login );
+			if( old!=null )
+				table.put( login, old );
+		}
+
+		// Les ajouts et suppressions faits pendant la lecture sont
+		// repris sous le verrou de la table, puis la table est remplacee.
+		synchronized( tableLock ) {
+			for( Map.Entry<String,Long> entry : dirty.entrySet() ) {
+				if( entry.getValue().longValue()>base && data.containsKey( entry.getKey() ) )
+					table.put( entry.getKey(), data.get( entry.getKey() ) );
+			}
+			for( Map.Entry<String,Long> entry : deleted.entrySet() ) {
+				if( entry.getValue().longValue()>base && !data.containsKey( entry.getKey() ) )
+					table.remove( entry.getKey() );
+			}
+			current = data;
+			data = table;
+		}
+		snapshotKey = key;
+
+		int removed = 0;
+		for( String login : current.keySet() )
+			if( !table.containsKey( login ) )
+				removed++;
+		System.out.println( "[OTPDatabase] reload : " + nomFichier + ", " + fresh
+			+ " utilisateur(s) lu(s), " + removed + " supprime(s)." );
+
+		// Le fichier et le journal reprennent la table fusionnee.
+		return saveData();
+	}
+
+	/**
+	 * Teste si deux versions d'un utilisateur sont sur la meme chaine
+	 * de hash ( meme semence et meme algorithme ).
+	**/
+	private static boolean sameChain( OTPUser a, OTPUser b ) {
+		return a.getHash().getSeed().equals( b.getHash().getSeed() )
+			&& OTPFactory.getHashID( a.getHash() ).equals( OTPFactory.getHashID( b.getHash() ) );
+	}
+
+	/**
+	 * Retourne l'identite du fichier de donnees : inode ( s'il est
+	 * connu ), taille et date. Un fichier remplace change d'identite.
+	 * @return Object L'identite, null si le fichier n'existe pas.
+	**/
+	private Object snapshotKey() {
+
+		try {
+			BasicFileAttributes attributes = Files.readAttributes( Paths.get( nomFichier ), BasicFileAttributes.class );
+			return Arrays.asList( attributes.fileKey(), attributes.size(),
+				attributes.lastModifiedTime().toMillis() );
+		} catch( IOException ioexception ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Lit l'instantane texte. Le fichier est decoupe en tranches
+	 * sur des fins de ligne ; les tranches sont analysees en
+	 * parallele sur le pool commun, puis ajoutees dans l'ordre
+	 * du fichier ( le premier utilisateur d'un login l'emporte,
+	 * comme avec add() ).
+	 * @return ConcurrentHashMap La table des utilisateurs lus.
+	**/
+	private ConcurrentHashMap<String,OTPUser> readSnapshot() throws IOException {
+
+		final byte buf[] = Files.readAllBytes( Paths.get( nomFichier ) );
+		int parts = Math.max( 1, Math.min( buf.length / CHUNK,
+			4 * ForkJoinPool.getCommonPoolParallelism() ) );
+
+		// Les bornes des tranches, chacune apres une fin de ligne.
+		final int bounds[] = new int[parts + 1];
+		bounds[parts] = buf.length;
+		for( int k = 1; k < parts; k++ ) {
+			int p = Math.max( bounds[k - 1], (int) ( (long) buf.length * k / parts ) );
+			while( p<buf.length && buf[p - 1]!='\n' )
+				p++;
+			bounds[k] = p;
+		}
+
+		List<Callable<List<OTPUser>>> tasks = new ArrayList<Callable<List<OTPUser>>>();
+		for( int k = 0; k < parts; k++ ) {
+			final int from = bounds[k];
+			final int to = bounds[k + 1];
+			tasks.add( new Callable<List<OTPUser>>() {
+				public List<OTPUser> call() {
+					return parse( buf, from, to );
+				}
+			} );
+		}
+
+		List<List<OTPUser>> chunks = new ArrayList<List<OTPUser>>();
+		int n = 0;
+		try {
+			for( Future<List<OTPUser>> future : ForkJoinPool.commonPool().invokeAll( tasks ) ) {
+				chunks.add( future.get() );
+				n += chunks.get( chunks.size() - 1 ).size();
+			}
+		} catch( InterruptedException interruptedexception ) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( nomFichier );
+		} catch( ExecutionException executionexception ) {
+			throw new IOException( nomFichier + " : " + executionexception.getCause().getMessage() );
+		}
+
+		// La table est dimensionnee une fois pour toutes.
+		ConcurrentHashMap<String,OTPUser> table = new ConcurrentHashMap<String,OTPUser>( Math.max( 16, n ) );
+		for( List<OTPUser> chunk : chunks )
+			for( OTPUser user : chunk )
+				table.putIfAbsent( user.getLogin(), user );
+		return table;
+	}
+
+	/**
+	 * Analyse les lignes d'une tranche de l'instantane.
+	 * @param buf Le contenu du fichier.
+	 * @param from Le debut de la tranche.
+	 * @param to La fin de la tranche.
+	 * @return List Les utilisateurs de la tranche, dans l'ordre.
+	**/
+	private static List<OTPUser> parse( byte buf[], int from, int to ) {
+
+		List<OTPUser> users = new ArrayList<OTPUser>( ( to - from ) / 64 + 1 );
+		String text = new String( buf, from, to - from, Charset.defaultCharset() );
+
+		int start = 0;
+		int len = text.length();
+		while( start<len ) {
+			int end = text.indexOf( '\n', start );
+			if( end<0 )
+				end = len;
+			int stop = end>start && text.charAt( end - 1 )=='\r' ? end - 1 : end;
+			if( stop>start )
+				users.add( new OTPUser( text.substring( start, stop ) ) );
+			start = end + 1;
+		}
+
+		return users;
+	}
+
+	/**
+	 * Applique des enregistrements de journal aux donnees.
+	 * "U;utilisateur" remplace l'utilisateur, "D;login" le supprime.
+	 * Un "U;" dont la sequence n'est pas plus petite que celle de
+	 * l'utilisateur deja lu, sur la meme chaine, est ignore : il
+	 * remettrait une sequence deja consommee.
+	 * @param records Des enregistrements lus par OTPJournal.read().
+	 * @return int Le nombre d'enregistrements.
+	**/
+	private int replay( List<String> records ) {
+
+		for( String record : records ) {
+			if( record.startsWith( "U;" ) ) {
+				OTPUser user = new OTPUser( record.substring( 2 ) );
+				OTPUser stored = data.get( user.getLogin() );
+				if( stored==null && indexed )
+					stored = readIndexed( user.getLogin() );
+				if( stored!=null && sameChain( stored, user )
+						&& user.getHash().getSequence()>=stored.getHash().getSequence() )
+					continue;
+				data.put( user.getLogin(), user );
+				if( indexed )
+					dirty.put( user.getLogin(), version.incrementAndGet() );
+			} else if( record.startsWith( "D;" ) ) {
+				data.remove( record.substring( 2 ) );
+				if( indexed )
+					deleted.put( record.substring( 2 ), version.incrementAndGet() );
+			}
+		}
+
+		return records.size();
+	}
+
+	/**
+	 * Retourne le premier login de l'index qui n'a pas ete supprime.
+	 * @return String Un login, null s'il n'y en a pas.
+	**/
+	private String firstIndexed() {
+
+		indexLock.readLock().lock();
+		try {
+			try {
+				for( int i = 0; i < index.size(); i++ ) {
+					String line = index.line( i );
+					String login = line.substring( 0, Math.max( 0, line.indexOf( ';' ) ) );
+					if( !deleted.containsKey( login ) )
+						return login;
+				}
+			} catch( IOException ioexception ) {
+				System.out.println( "[OTPDatabase] getFirst : " + ioexception );
+			}
+			return null;
+		} finally {
+			indexLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Remplace la sequence et le hash d'un utilisateur, en une seule
+	 * operation atomique, s'ils valent toujours ceux attendus ; puis
+	 * rend la modification persistante.
+	 * @param username Un nom d'utilisateur.
+	 * @param seq Le numero de sequence attendu.
+	 * @param expected Le hash attendu.
+	 * @param newSeq Le nouveau numero de sequence.
+	 * @param newHash Le nouveau hash.
+	 * @return boolean True si le remplacement a ete fait et sauve.
+	**/
+	public boolean compareAndUpdate( String username, int seq, long expected, int newSeq, long newHash ) {
+
+		OTPUser user = get( username );
+		if( user==null || !user.getHash().compareAndSet( seq, expected, newSeq, newHash ) )
+			return false;
+
+		return update( user );
+	}
+
+	/**
+	 * Rend persistante la modification d'un utilisateur deja
+	 * present ( ou qui vient d'etre supprime ) dans la base, et
+	 * attend la garantie de la politique de durabilite.
+	 * @param user L'objet OTPUser modifie.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public boolean update( OTPUser user ) {
+		return commit( write( user ) );
+	}
+
+	/**
+	 * Ecrit la modification d'un utilisateur deja present ( ou
+	 * qui vient d'etre supprime ) dans la base, sans attendre le
+	 * disque. En mode journalise, un seul enregistrement est ajoute
+	 * au journal ; pour un fichier binaire, l'enregistrement est mis
+	 * a jour en place ; sinon, tout le fichier est reecrit.
+	 * En mode journalise, l'enregistrement est construit et ajoute
+	 * sous le verrou du journal, et seulement si la sequence de
+	 * l'utilisateur est plus petite que celle deja journalisee : une
+	 * ecriture plus ancienne, arrivee en retard, ne remet pas une
+	 * sequence deja consommee ( son ticket est alors celui de
+	 * l'enregistrement qui la contient ). commit() peut ensuite etre
+	 * appele hors de tout verrou.
+	 * @param user L'objet OTPUser modifie.
+	 * @return long Le ticket a passer a commit(), -1 en cas d'erreur.
+	**/
+	public long write( OTPUser user ) {
+
+		// Fichier binaire : la suppression est deja faite en place.
+		if( mapped!=null ) {
+			long ticket = mapped.update( user );
+			if( ticket<0 && !contains( user.getLogin() ) )
+				ticket = mapped.mark();
+			return ticket;
+		}
+
+		if( journal==null )
+			return saveData() ? 0 : -1;
+
+		long ticket;
+		// Pas de retrait entre la verification de l'objet et sa version.
+		if( indexed )
+			evictLock.readLock().lock();
+		try {
+			// Les enregistrements d'un meme login sont construits et
+			// ajoutes dans l'ordre : une connexion plus recente ne peut
+			// pas etre suivie dans le journal par une plus ancienne.
+			synchronized( journal ) {
+				OTPUser current = data.get( user.getLogin() );
+				if( current==null && indexed && !deleted.containsKey( user.getLogin() ) )
+					current = adopt( user );
+				if( current==user ) {
+					int seq = user.getHash().getSequence();
+					Written last = written.get( user.getLogin() );
+					if( last!=null && last.user==user && seq>=last.sequence )
+						return last.ticket;
+					ticket = journal.append( "U;" + user.toString() );
+					if( ticket>=0 )
+						written.put( user.getLogin(), new Written( user, seq, ticket ) );
+					if( indexed )
+						dirty.put( user.getLogin(), version.incrementAndGet() );
+				} else if( current==null ) {
+					ticket = journal.append( "D;" + user.getLogin() );
+					written.remove( user.getLogin() );
+				} else {
+					// L'utilisateur a ete remplace par reload(), ou une
+					// autre copie a deja ete ecrite : cet objet n'ecrit plus.
+					return -1;
+				}
+			}
+		} finally {
+			if( indexed )
+				evictLock.readLock().unlock();
+		}
+
+		int size = data.size() + ( indexed ? index.size() : 0 );
+		if( ticket>=0 && journal.getRecords()>Math.max( COMPACT_MIN, size ) )
+			compact();
+
+		return ticket;
+	}
+
+	/**
+	 * Attend que la garantie de durabilite d'une ecriture soit atteinte.
+	 * @param ticket Un ticket retourne par write().
+	 * @return boolean False si l'ecriture ou le fsync a echoue.
+	**/
+	public boolean commit( long ticket ) {
+
+		if( ticket<0 )
+			return false;
+		if( mapped!=null )
+			return mapped.commit( ticket );
+		if( journal!=null )
+			return journal.commit( ticket );
+		return true;
+	}
+
+	/**
+	 * Choisit la politique de durabilite des ecritures ( voir
+	 * OTPDurability ). Sans effet sur un fichier texte non journalise,
+	 * dont chaque sauvegarde est forcee sur le disque.
+	 * @param mode OTPDurability.SYNC, GROUP ou ASYNC.
+	 * @param delay Delai maximal d'un groupe, en ms.
+	 * @param batch Taille maximale d'un groupe.
+	**/
+	public void setDurability( int mode, long delay, int batch ) {
+
+		if( journal!=null )
+			journal.getDurability().configure( mode, delay, batch );
+		if( mapped!=null )
+			mapped.getDurability().configure( mode, delay, batch );
+
+		durability = mode;
+		groupDelay = delay;
+		groupSize = batch;
+	}
+
+	/**
+	 * Surveille le fichier de donnees : quand un autre programme le
+	 * remplace ( MyOTPPasswd ), il est relu par reload(), sans
+	 * redemarrer le serveur. A appeler avant loadData(). Sans effet
+	 * en mode indexe ou pour un fichier binaire.
+	**/
+	public void watch() {
+
+		if( indexed || watched )
+			return;
+
+		dirty = new ConcurrentHashMap<String,Long>();
+		deleted = new ConcurrentHashMap<String,Long>();
+		version = new AtomicLong();
+		watched = true;
+	}
+
+	/**
+	 * Lance un compactage du journal en tache de fond,
+	 * si aucun n'est deja en cours.
+	**/
+	private void compact() {
+
+		if( !compacting.compareAndSet( false, true ) )
+			return;
+
+		Thread thread = new Thread( new Runnable() {
+			public void run() {
+				try {
+					saveData();
+				} finally {
+					compacting.set( false );
+				}
+			}
+		}, "OTPDatabase-compact" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Ferme le journal de la base.
+	**/
+	public void close() {
+		if( watcher!=null )
+			watcher.close();
+		if( journal!=null )
+			journal.close();
+		if( index!=null )
+			index.close();
+		if( mapped!=null )
+			mapped.close();
+	}
+
 	/**
 	 * Sauve les donnees en memoire dans le fichier de donnees.
+	 * Le fichier est ecrit a cote puis renomme, ce qui laisse
+	 * toujours un instantane complet sur le disque. En mode
+	 * journalise, le journal est tourne avant la copie des
+	 * donnees : les modifications suivantes vont dans un nouveau
+	 * journal, et l'ancien est supprime une fois l'instantane ecrit.
 	 * @return boolean True si l'operation reussie.
 	**/
-	public boolean saveData() {
+	public synchronized boolean saveData() {
+
+		// Fichier binaire : chaque modification est deja ecrite en place
+		// par add() ou write().
+		if( mapped!=null ) {
+			try {
+				mapped.force();
+			} catch( IOException ioexception ) {
+				System.out.println( "[OTPDatabase] saveData : " + ioexception );
+				return false;
+			}
+			return true;
+		}
+
+		if( journal!=null && !journal.rotate() )
+			return false;
+
+		if( indexed )
+			return saveIndexed();
+
+		// Copie des donnees, sans bloquer la base ; chaque utilisateur
+		// est ensuite ecrit de facon atomique par OTPUser.toString().
+		Map<String,Long> added = watched ? new HashMap<String,Long>( dirty ) : null;
+		Map<String,Long> gone = watched ? new HashMap<String,Long>( deleted ) : null;
+		List<OTPUser> users = new ArrayList<OTPUser>( data.values() );
+
+		// Le fichier temporaire est propre au processus : MyOTPPasswd
+		// peut ecrire le meme fichier en meme temps que le serveur.
+		Path fichier = Paths.get( nomFichier );
+		Path tmp = Paths.get( nomFichier + "." + ProcessHandle.current().pid() + ".tmp" );
 
 		try {
 			// Ecriture simple
-			OTPUser otpuser;
 			PrintWriter bufferwriter = new PrintWriter(
-					new BufferedWriter( new FileWriter( nomFichier) ) );
-			for( Enumeration enumeration = data.elements(); enumeration.hasMoreElements(); ) {
-				otpuser = (OTPUser) enumeration.nextElement();
+					new BufferedWriter( new FileWriter( tmp.toFile() ) ) );
+			for( OTPUser otpuser : users )
 				bufferwriter.println( otpuser.toString() );
-			}
 			bufferwriter.close();
-			
+			if( bufferwriter.checkError() )
+				throw new IOException( "Ecriture de " + tmp + " impossible." );
+
+			FileChannel channel = FileChannel.open( tmp, StandardOpenOption.WRITE );
+			channel.force( true );
+			channel.close();
+
+			// Le fichier a ete remplace par un autre programme depuis
+			// le dernier instantane : il est relu et fusionne plutot
+			// qu'ecrase.
+			if( watched ) {
+				Object key = snapshotKey();
+				if( key!=null && !key.equals( snapshotKey ) ) {
+					Files.delete( tmp );
+					return reload();
+				}
+			}
+
+			// L'identite du fichier est lue avant de le renommer : un
+			// autre programme peut le remplacer juste apres.
+			BasicFileAttributes attributes = Files.readAttributes( tmp, BasicFileAttributes.class );
+			Files.move( tmp, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			snapshotKey = Arrays.asList( attributes.fileKey(), attributes.size(),
+				attributes.lastModifiedTime().toMillis() );
+
+			// L'instantane contient tout ce qui a ete journalise avant lui.
+			Files.deleteIfExists( Paths.get( nomFichier + JOURNAL + OTPJournal.ROTATED ) );
+			if( journal==null )
+				Files.deleteIfExists( Paths.get( nomFichier + JOURNAL ) );
+
+			// Les ajouts et suppressions copies sont dans le fichier.
+			if( watched ) {
+				for( Map.Entry<String,Long> entry : added.entrySet() )
+					dirty.remove( entry.getKey(), entry.getValue() );
+				for( Map.Entry<String,Long> entry : gone.entrySet() )
+					deleted.remove( entry.getKey(), entry.getValue() );
+			}
+
 			// Ecriture binaire
 			/*
 			OTPUser otpuser;
@@ -173,6 +1014,144 @@ public class OTPDatabase {
 		return true;
 	}
 
+	/**
+	 * Ecrit un nouvel instantane en mode indexe : les lignes des
+	 * utilisateurs non modifies sont recopiees telles quelles, seuls
+	 * les utilisateurs modifies sont reecrits. L'index du nouveau
+	 * fichier est construit pendant l'ecriture, puis sauve.
+	 * Le journal doit deja avoir ete tourne.
+	 * @return boolean True si l'operation reussie.
+	**/
+	private boolean saveIndexed() {
+
+		OTPTextIndex old;
+		Map<String,Long> gone;
+		Map<String,Long> changed;
+		Map<String,OTPUser> users = new HashMap<String,OTPUser>();
+
+		// Copie de l'etat, sans bloquer la base : une modification
+		// faite pendant la copie change la version, et reste a ecrire.
+		old = index;
+		gone = new HashMap<String,Long>( deleted );
+		changed = new HashMap<String,Long>( dirty );
+		for( String login : changed.keySet() ) {
+			OTPUser user = (OTPUser) data.get( login );
+			if( user!=null )
+				users.put( login, user );
+		}
+
+		Path fichier = Paths.get( nomFichier );
+		Path tmp = Paths.get( nomFichier + ".tmp" );
+		Charset charset = Charset.defaultCharset();
+		byte eol[] = System.lineSeparator().getBytes( charset );
+		OTPTextIndex.Builder builder = new OTPTextIndex.Builder();
+		OTPTextIndex created;
+
+		try {
+			OutputStream out = new BufferedOutputStream( new FileOutputStream( tmp.toFile() ), 1 << 16 );
+			DataInputStream in = new DataInputStream( new BufferedInputStream(
+				new FileInputStream( nomFichier ), 1 << 16 ) );
+			long pos = 0;
+			long read = 0;
+			try {
+				// L'ancien fichier est lu dans l'ordre, sans relire l'index.
+				for( long entry : old.fileOrder() ) {
+					in.skipNBytes( ( entry >>> 24 ) - read );
+					byte line[] = new byte[(int) ( entry & 0xffffff )];
+					in.readFully( line );
+					read = ( entry >>> 24 ) + line.length;
+					if( line.length>0 && line[line.length - 1]=='\r' )
+						line = Arrays.copyOf( line, line.length - 1 );
+
+					int semi = 0;
+					while( semi<line.length && line[semi]!=';' )
+						semi++;
+					String login = new String( line, 0, semi, charset );
+
+					OTPUser user = users.remove( login );
+					if( user!=null )
+						line = user.toString().getBytes( charset );
+					else if( gone.containsKey( login ) )
+						continue;
+
+					out.write( line );
+					out.write( eol );
+					builder.add( login, pos, pos + line.length );
+					pos += line.length + eol.length;
+				}
+
+				// Les utilisateurs ajoutes depuis le dernier instantane.
+				for( OTPUser user : users.values() ) {
+					byte line[] = user.toString().getBytes( charset );
+					out.write( line );
+					out.write( eol );
+					builder.add( user.getLogin(), pos, pos + line.length );
+					pos += line.length + eol.length;
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+
+			FileChannel channel = FileChannel.open( tmp, StandardOpenOption.WRITE );
+			channel.force( true );
+			channel.close();
+
+			Files.move( tmp, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			created = builder.create( nomFichier );
+			created.save();
+
+			Files.deleteIfExists( Paths.get( nomFichier + JOURNAL + OTPJournal.ROTATED ) );
+
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPDatabase] saveData : " + ioexception );
+			return false;
+		}
+
+		// Le nouvel index remplace l'ancien. Une modification faite
+		// pendant l'ecriture a change la version : elle reste a ecrire.
+		indexLock.writeLock().lock();
+		try {
+			index = created;
+			for( Map.Entry<String,Long> entry : gone.entrySet() )
+				deleted.remove( entry.getKey(), entry.getValue() );
+			for( Map.Entry<String,Long> entry : changed.entrySet() )
+				dirty.remove( entry.getKey(), entry.getValue() );
+		} finally {
+			indexLock.writeLock().unlock();
+		}
+		old.close();
+
+		// Les utilisateurs non modifies sont dans le nouveau fichier :
+		// ils sont retires de la memoire, et relus a la demande. Hors
+		// de indexLock : get() le prend pendant computeIfAbsent().
+		evictLock.writeLock().lock();
+		try {
+			data.entrySet().removeIf( entry -> !dirty.containsKey( entry.getKey() ) );
+			written.entrySet().removeIf( entry -> data.get( entry.getKey() )!=entry.getValue().user );
+		} finally {
+			evictLock.writeLock().unlock();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Le dernier enregistrement journalise d'un utilisateur.
+	**/
+	private static class Written {
+
+		private OTPUser user;
+		private int sequence;
+		private long ticket;
+
+		Written( OTPUser user, int sequence, long ticket ) {
+			this.user = user;
+			this.sequence = sequence;
+			this.ticket = ticket;
+		}
+	}
+
 // Accesseurs et Modifieurs
 
 	/**
@@ -181,4 +1160,16 @@ public class OTPDatabase {
 	**/
 	public String getFileName() { return nomFichier; }
 
+	/**
+	 * Retourne le journal de la base.
+	 * @return OTPJournal Le journal, null si la base n'est pas journalisee.
+	**/
+	public OTPJournal getJournal() { return journal; }
+
+	/**
+	 * Retourne le fichier binaire projete.
+	 * @return OTPMappedStore Le fichier, null pour un fichier texte.
+	**/
+	public OTPMappedStore getMappedStore() { return mapped; }
+
 }
@@ -1,20 +1,25 @@
 package otp;
 
-import java.util.Hashtable;
-
 /**
  * Le dico OTP.
- * Objet lourd a instancier, notamment a cause
- * du dico inverse.
+ * Le dico inverse est construit une seule fois et partage.
+ * Chaque mot ( 1 a 4 lettres ) y est code sur 20 bits, 5 bits
+ * par lettre : la recherche d'un mot ne cree aucun objet, ne
+ * tient pas compte de la casse, et se fait aussi bien sur une
+ * chaine que sur des octets ASCII.
  *
  * @author Thomas CHEMINEAU
- * @version 0.1
+ * @version 0.2
 **/
 
 public class OTPDico {
 
-	/** Le dictionnaire inverse. **/
-	private Hashtable<String,Integer> dicoInv;
+	/** La taille de la table du dico inverse ( puissance de 2 ). **/
+	private static final int SIZE = 4096;
+	/** Les mots codes du dico inverse, 0 pour une case vide. **/
+	private static final int keys[] = new int[SIZE];
+	/** Les clefs du dico inverse. **/
+	private static final short vals[] = new short[SIZE];
 	/** Le dictionnaire original. **/
 	private static String dico[] =
 	{        "A",     "ABE",   "ACE",   "ACT",   "AD",    "ADA",   "ADD",
@@ -275,19 +280,24 @@ public class OTPDico {
 	"YARD",  "YARN",  "YAWL",  "YAWN",  "YEAH",  "YEAR",  "YELL",  "YOGA",
 	"YOKE"   };
 
+	static {
+		for( int i=0; i<dico.length; i++ ) {
+			int code = pack( dico[i], 0, dico[i].length() );
+			int slot = slot( code );
+			while( keys[slot]!=0 )
+				slot = ( slot+1 ) & ( SIZE-1 );
+			keys[slot] = code;
+			vals[slot] = (short) i;
+		}
+	}
+
 // Constructeurs
 
 	/**
 	 * Cree un nouvel objet OTPDico.
+	 * Le dico est partage : cet objet ne coute rien.
 	**/
 	public OTPDico() {
-		
-		dicoInv = new Hashtable<String,Integer>();
-		
-		for( int i=0; i<dico.length; i++ ) {
-			dicoInv.put( dico[i], new Integer( i ) );
-		}
-		
 	}
 
 // Methodes
@@ -295,18 +305,100 @@ public class OTPDico {
 	/**
 	 * Retourne la clef associe a la valeur.
 	 * @param val Une valeur contenu dans le dictionnaire.
-	 * @return int La clef correspondante.
+	 * @return int La clef correspondante, -1 si pas trouve.
+	**/
+	public static int getKey( CharSequence val ) {
+		return getKey( val, 0, val.length() );
+	}
+
+	/**
+	 * Retourne la clef associe a une partie d'une chaine.
+	 * @param str Une chaine.
+	 * @param start Le debut du mot.
+	 * @param end La fin du mot ( exclue ).
+	 * @return int La clef correspondante, -1 si pas trouve.
+	**/
+	public static int getKey( CharSequence str, int start, int end ) {
+		return find( pack( str, start, end ) );
+	}
+
+	/**
+	 * Retourne la clef associe a un mot en octets ASCII.
+	 * @param tab Un tableau d'octets ASCII.
+	 * @param off Le debut du mot.
+	 * @param len La longueur du mot.
+	 * @return int La clef correspondante, -1 si pas trouve.
+	**/
+	public static int getKey( byte tab[], int off, int len ) {
+
+		if( len<1 || len>4 )
+			return -1;
+
+		int code = 0;
+		for( int i = off; i < off+len; i++ ) {
+			int c = letter( tab[i] );
+			if( c<0 )
+				return -1;
+			code = ( code << 5 ) | c;
+		}
+
+		return find( code );
+	}
+
+	/**
+	 * Code un mot sur 20 bits, 5 bits par lettre.
+	 * @return int Le mot code, -1 si ce n'est pas un mot possible.
 	**/
-	public int getKey( String val ) {
-		
-		Integer k = dicoInv.get( val );
-		
-		if( k!=null ) {
-			return k.intValue();
+	private static int pack( CharSequence str, int start, int end ) {
+
+		if( end-start<1 || end-start>4 )
+			return -1;
+
+		int code = 0;
+		for( int i = start; i < end; i++ ) {
+			int c = letter( str.charAt( i ) );
+			if( c<0 )
+				return -1;
+			code = ( code << 5 ) | c;
 		}
 
+		return code;
+	}
+
+	/**
+	 * Code une lettre sur 5 bits, de 1 a 26, sans tenir compte de la casse.
+	 * @return int La lettre codee, -1 si ce n'est pas une lettre.
+	**/
+	private static int letter( int c ) {
+
+		if( c>='a' && c<='z' )
+			return c - 'a' + 1;
+		if( c>='A' && c<='Z' )
+			return c - 'A' + 1;
+
 		return -1;
+	}
 
+	/**
+	 * Cherche un mot code dans le dico inverse.
+	**/
+	private static int find( int code ) {
+
+		if( code<=0 )
+			return -1;
+
+		for( int slot = slot( code ); keys[slot]!=0; slot = ( slot+1 ) & ( SIZE-1 ) )
+			if( keys[slot]==code )
+				return vals[slot];
+
+		return -1;
+	}
+
+	/**
+	 * La case de depart d'un mot code.
+	**/
+	private static int slot( int code ) {
+		return ( code * 0x9e3779b1 ) >>> 20;
 	}
 
 	/**
@@ -0,0 +1,111 @@
+package otp.hash;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import otp.exception.NoHashSupportException;
+
+/**
+ * Moteur de chaine de hash base sur un MessageDigest de la JVM.
+ * Le MessageDigest et les tampons sont alloues une seule fois.
+ *
+ * @version 0.1
+**/
+
+public abstract class OTPDigestChain extends OTPChain {
+
+	/** Le nom de l'algorithme. **/
+	private String algo;
+	/** L'algorithme de hashage, reutilise. **/
+	private MessageDigest digest;
+	/** Tampon d'entree de 64 bits. **/
+	private byte in[];
+	/** Tampon de sortie du hashage. **/
+	protected byte out[];
+	/** Le moteur multi-voies, cree au premier besoin. **/
+	private OTPLanes lanes;
+
+// Constructeurs
+
+	/**
+	 * Cree un moteur pour l'algorithme specifie.
+	 * @param algo Le nom de l'algorithme dans la JVM.
+	 * @param length La taille du hash en octets.
+	**/
+	public OTPDigestChain( String algo, int length ) throws NoHashSupportException {
+
+		this.algo = algo;
+		in = new byte[8];
+		out = new byte[length];
+
+		try {
+			digest = MessageDigest.getInstance( algo );
+		} catch( NoSuchAlgorithmException nosuchalgorithmexception ) {
+			throw new NoHashSupportException( algo );
+		}
+	}
+
+// Methodes abstraites
+
+	/**
+	 * Replie le tampon de sortie sur 64 bits.
+	 * @return long Le hash sur 64 bits.
+	**/
+	protected abstract long fold();
+
+	/**
+	 * Cree le moteur multi-voies de cet algorithme.
+	 * @return OTPLanes Le moteur, null si il n'y en a pas.
+	**/
+	protected OTPLanes createLanes() { return null; }
+
+// Methodes redefinies
+
+	public long hashTo64Bits( byte tab[] ) throws NoHashSupportException {
+		digest.update( tab );
+		return digestAndFold();
+	}
+
+	public long step( long h ) throws NoHashSupportException {
+		putLong( in, 0, h );
+		digest.update( in, 0, 8 );
+		return digestAndFold();
+	}
+
+	/**
+	 * Avance de n pas toutes les chaines d'un tableau,
+	 * OTPLanes.WIDTH chaines a la fois par le moteur multi-voies
+	 * quand il est disponible, le reste une a une.
+	 * @param h Les hash de depart, remplaces par les hash obtenus.
+	 * @param n Le nombre de pas.
+	**/
+	public void steps( long h[], int n ) {
+
+		int off = 0;
+
+		if( OTPLanes.isEnabled() && h.length >= OTPLanes.WIDTH ) {
+			if( lanes==null )
+				lanes = createLanes();
+			if( lanes!=null )
+				for( ; off + OTPLanes.WIDTH <= h.length; off += OTPLanes.WIDTH )
+					lanes.steps( h, off, n );
+		}
+
+		for( ; off < h.length; off++ )
+			h[off] = steps( h[off], n );
+	}
+
+// Methodes
+
+	private long digestAndFold() throws NoHashSupportException {
+
+		try {
+			digest.digest( out, 0, out.length );
+		} catch( DigestException digestexception ) {
+			throw new NoHashSupportException( algo );
+		}
+
+		return fold();
+	}
+
+}
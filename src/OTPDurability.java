@@ -0,0 +1,236 @@
+package otp;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Politique de durabilite des ecritures d'un OTPDatabase.
+ * Chaque ecriture recoit un ticket ( written() ) ; commit( ticket )
+ * rend la main quand la garantie du mode choisi est atteinte :
+ * <ul>
+ * <li>SYNC : l'ecriture est forcee sur le disque avant de rendre
+ * la main ( les appels simultanes partagent le meme fsync ) ;</li>
+ * <li>GROUP : les ecritures sont forcees ensemble, toutes les
+ * delay ms ou des que batch ecritures sont en attente, et
+ * commit() attend ce fsync ;</li>
+ * <li>ASYNC : commit() rend la main tout de suite, les ecritures
+ * sont forcees en tache de fond toutes les delay ms.</li>
+ * </ul>
+ *
+ * @version 0.1
+**/
+
+public class OTPDurability {
+
+	/** Un fsync par ecriture. **/
+	public static final int SYNC = 0;
+	/** Un fsync par groupe d'ecritures. **/
+	public static final int GROUP = 1;
+	/** Fsync en tache de fond. **/
+	public static final int ASYNC = 2;
+	/** Les noms des modes, dans l'ordre de leur code. **/
+	public static final String MODES[] = { "sync", "group", "async" };
+
+	/**
+	 * Ce qui est force sur le disque.
+	**/
+	public interface Target {
+		/**
+		 * Force sur le disque toutes les ecritures deja faites.
+		**/
+		public void force() throws IOException;
+	}
+
+	/** La cible des fsync. **/
+	private Target target;
+	/** Le mode. **/
+	private int mode;
+	/** Delai maximal d'un groupe, en ms. **/
+	private long delay;
+	/** Taille maximale d'un groupe. **/
+	private int batch;
+	/** Dernier ticket ecrit. **/
+	private long written;
+	/** Dernier ticket force sur le disque. **/
+	private long flushed;
+	/** Erreur du dernier fsync, null si reussi. **/
+	private IOException error;
+	/** Le thread des fsync de groupe. **/
+	private Thread flusher;
+	/** Un seul fsync a la fois. **/
+	private final Object forceLock = new Object();
+	/** Nombre de fsync. **/
+	private AtomicLong forces;
+
+// Constructeurs
+
+	/**
+	 * Cree une politique SYNC.
+	 * @param target Ce qui est force sur le disque.
+	**/
+	public OTPDurability( Target target ) {
+		this.target = target;
+		mode = SYNC;
+		delay = 2;
+		batch = 64;
+		forces = new AtomicLong();
+	}
+
+// Methodes
+
+	/**
+	 * Change de mode.
+	 * @param mode SYNC, GROUP ou ASYNC.
+	 * @param delay Delai maximal d'un groupe, en ms.
+	 * @param batch Taille maximale d'un groupe.
+	**/
+	public synchronized void configure( int mode, long delay, int batch ) {
+
+		if( mode<SYNC || mode>ASYNC || delay<=0 || batch<=0 )
+			throw new IllegalArgumentException( "Durabilite invalide." );
+
+		this.mode = mode;
+		this.delay = delay;
+		this.batch = batch;
+
+		if( mode!=SYNC && flusher==null ) {
+			flusher = new Thread( new Runnable() {
+				public void run() { flushLoop(); }
+			}, "OTPDurability-flush" );
+			flusher.setDaemon( true );
+			flusher.start();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Retourne le ticket d'une ecriture qui vient d'etre faite.
+	 * A appeler sous le verrou de l'ecrivain, apres l'ecriture :
+	 * l'ordre des tickets est alors celui des ecritures.
+	 * @return long Le ticket.
+	**/
+	public synchronized long written() {
+		written++;
+
+		// Le thread des fsync attend une premiere ecriture,
+		// puis un groupe complet.
+		long pending = written - flushed;
+		if( mode!=SYNC && ( pending==1 || pending==batch ) )
+			notifyAll();
+		return written;
+	}
+
+	/**
+	 * Attend que la garantie du mode soit atteinte pour un ticket.
+	 * @param ticket Un ticket retourne par written().
+	 * @return boolean False si le fsync a echoue.
+	**/
+	public boolean commit( long ticket ) {
+
+		synchronized( this ) {
+			if( flushed>=ticket || mode==ASYNC )
+				return true;
+
+			if( mode==GROUP ) {
+				try {
+					while( flushed<ticket && error==null && mode==GROUP )
+						wait();
+				} catch( InterruptedException interruptedexception ) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				if( flushed>=ticket )
+					return true;
+				if( mode==GROUP )
+					return false;
+			}
+		}
+
+		return flush( ticket );
+	}
+
+	/**
+	 * Force les ecritures sur le disque, si le ticket ne l'est pas deja.
+	 * @param ticket Un ticket.
+	 * @return boolean False si le fsync a echoue.
+	**/
+	private boolean flush( long ticket ) {
+
+		synchronized( forceLock ) {
+
+			long upto;
+			synchronized( this ) {
+				if( flushed>=ticket )
+					return true;
+				upto = written;
+			}
+
+			try {
+				target.force();
+				forces.incrementAndGet();
+			} catch( IOException ioexception ) {
+				System.out.println( "[OTPDurability] force : " + ioexception );
+				synchronized( this ) {
+					error = ioexception;
+					notifyAll();
+				}
+				return false;
+			}
+
+			synchronized( this ) {
+				if( upto>flushed )
+					flushed = upto;
+				error = null;
+				notifyAll();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Boucle du thread des fsync de groupe : attend une premiere
+	 * ecriture, puis delay ms ou batch ecritures, et force le tout.
+	**/
+	private void flushLoop() {
+
+		try {
+			while( true ) {
+				synchronized( this ) {
+					while( mode==SYNC || written==flushed )
+						wait();
+					long deadline = System.currentTimeMillis() + delay;
+					long now;
+					while( ( mode==ASYNC || written - flushed<batch )
+							&& ( now = System.currentTimeMillis() )<deadline )
+						wait( deadline - now );
+				}
+				if( !flush( Long.MAX_VALUE ) )
+					Thread.sleep( delay );
+			}
+		} catch( InterruptedException interruptedexception ) {
+			// Fin du thread.
+		}
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le mode.
+	 * @return int SYNC, GROUP ou ASYNC.
+	**/
+	public synchronized int getMode() { return mode; }
+
+	/**
+	 * Retourne le nombre de fsync faits.
+	 * @return long Le nombre de fsync.
+	**/
+	public long getForces() { return forces.get(); }
+
+	/**
+	 * Retourne le nombre d'ecritures pas encore forcees.
+	 * @return long Le nombre d'ecritures en attente.
+	**/
+	public synchronized long getPending() { return written - flushed; }
+
+}
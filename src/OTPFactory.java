@@ -1,6 +1,7 @@
 package otp;
 
 import otp.hash.*;
+import java.security.SecureRandom;
 import java.util.Random;
 
 /**
@@ -22,6 +23,10 @@ public class OTPFactory {
 	public static final String HASHID_MD5 = "otp-md5";
 	public static final String HASHID_SHA1 = "otp-sha1";
 
+	/** Generateur partage : deux semences creees dans la meme
+	    milliseconde, par exemple en parallele, doivent differer. **/
+	private static final Random RANDOM = new SecureRandom();
+
 // Methodes
 
 	/**
@@ -46,15 +51,10 @@ public class OTPFactory {
 	**/
 	public static OTPHash createOTPHash( String hashid ) {
 
-		if( hashid.compareTo( HASHID_MD5 )==0 ) {
-			return new OTPHashMD5( INITIAL_SEQUENCE, createSeed() );
-		} else if( hashid.compareTo( HASHID_MD4 )==0 ) {
-			return new OTPHashMD4( INITIAL_SEQUENCE, createSeed() );
-		} else if( hashid.compareTo( HASHID_SHA1 )==0 ) {
-			return new OTPHashSHA1( INITIAL_SEQUENCE, createSeed() );
-		}
-		
-		return null;
+		if( !isHashID( hashid ) )
+			return null;
+
+		return newOTPHash( hashid, INITIAL_SEQUENCE, createSeed() );
     }
 
 	/**
@@ -68,17 +68,45 @@ public class OTPFactory {
 	**/
 	public static OTPHash createOTPHash( String hashid, int seq, String seed, String hash ) {
 
-		OTPHash otphash = createOTPHash( hashid );
+		// La semence est connue : on n'en cree pas.
+		OTPHash otphash = newOTPHash( hashid, seq, seed );
 
-		if( otphash != null ) {
-			otphash.setSequence( seq );
-			otphash.setSeed( seed );
+		if( otphash != null )
 			otphash.setHash( hash );
-		}
 
 		return otphash;
 	}
 
+	/**
+	 * Cree un objet OTPHash sans hash.
+	 * @param hashid Un HASHID de cette classe.
+	 * @param seq Un numero de sequence.
+	 * @param seed Une semence.
+	 * @return OTPHash L'objet nouvellement cree, null si HASHID inconnu.
+	**/
+	private static OTPHash newOTPHash( String hashid, int seq, String seed ) {
+
+		if( hashid.compareTo( HASHID_MD5 )==0 ) {
+			return new OTPHashMD5( seq, seed );
+		} else if( hashid.compareTo( HASHID_MD4 )==0 ) {
+			return new OTPHashMD4( seq, seed );
+		} else if( hashid.compareTo( HASHID_SHA1 )==0 ) {
+			return new OTPHashSHA1( seq, seed );
+		}
+
+		return null;
+	}
+
+	/**
+	 * Test si un HASHID est connu.
+	 * @param hashid Un HASHID.
+	 * @return boolean True si c'est un HASHID de cette classe.
+	**/
+	public static boolean isHashID( String hashid ) {
+		return HASHID_MD5.equals( hashid ) || HASHID_MD4.equals( hashid )
+			|| HASHID_SHA1.equals( hashid );
+	}
+
 	/**
 	 * Cree une semence de hash entre 8 et 16 caracteres.
 	 * @return String Une semence.
@@ -96,7 +124,7 @@ public class OTPFactory {
 		// On genere une longueur quelconque.
 		// On s'assure de la longueur de la semence.
 
-		Random random = new Random( System.currentTimeMillis() );
+		Random random = RANDOM;
 		while( !( len>MIN_LENGTH_SEED && len<MAX_LENGTH_SEED ) )
 			len = random.nextInt() % 16 ;
 
@@ -133,10 +161,11 @@ public class OTPFactory {
 	**/
 	public static String getHashID( OTPHash otphash ) {
 
-		if( otphash instanceof OTPHashMD5 )
-			return HASHID_MD5;
-		else if( otphash instanceof OTPHashMD4 )
+		// OTPHashMD4 herite de OTPHashMD5 : on le teste en premier.
+		if( otphash instanceof OTPHashMD4 )
 			return HASHID_MD4;
+		else if( otphash instanceof OTPHashMD5 )
+			return HASHID_MD5;
 		else if( otphash instanceof OTPHashSHA1 )
 			return HASHID_SHA1;
 
@@ -0,0 +1,136 @@
+package otp;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Surveille un fichier par WatchService, et lance une action
+ * quand il est cree, remplace ou modifie. C'est le repertoire du
+ * fichier qui est surveille : un fichier ecrit a cote puis renomme
+ * ( OTPDatabase.saveData() ) est vu. Les evenements qui se suivent
+ * de pres sont regroupes en une seule action.
+ * L'action est lancee dans un thread demon.
+ *
+ * @version 0.1
+**/
+
+public class OTPFileWatcher implements Runnable {
+
+	/** Le fichier surveille. **/
+	private Path file;
+	/** L'action a lancer. **/
+	private Runnable action;
+	/** Delai de regroupement des evenements, en ms. **/
+	private long delay;
+	/** Le service de surveillance. **/
+	private WatchService service;
+	/** Le thread de surveillance. **/
+	private Thread thread;
+
+// Constructeurs
+
+	/**
+	 * Cree une surveillance, arretee.
+	 * @param filename Le fichier a surveiller.
+	 * @param action L'action a lancer a chaque changement.
+	 * @param delay Delai de regroupement des evenements, en ms.
+	**/
+	public OTPFileWatcher( String filename, Runnable action, long delay ) throws IOException {
+
+		file = Paths.get( filename ).toAbsolutePath();
+		this.action = action;
+		this.delay = delay;
+		service = file.getFileSystem().newWatchService();
+		file.getParent().register( service, StandardWatchEventKinds.ENTRY_CREATE,
+			StandardWatchEventKinds.ENTRY_MODIFY );
+	}
+
+// Methodes
+
+	/**
+	 * Lance la surveillance.
+	**/
+	public synchronized void start() {
+
+		if( thread!=null )
+			return;
+		thread = new Thread( this, "OTPFileWatcher-" + file.getFileName() );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Arrete la surveillance.
+	**/
+	public synchronized void close() {
+
+		try {
+			service.close();
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPFileWatcher] close : " + ioexception );
+		}
+		if( thread!=null )
+			thread.interrupt();
+	}
+
+	/**
+	 * Boucle de surveillance : attend un evenement sur le fichier,
+	 * puis delay ms sans nouvel evenement sur le fichier ( les autres
+	 * fichiers du repertoire, comme le journal, ne comptent pas ),
+	 * et lance l'action.
+	**/
+	public void run() {
+
+		try {
+			while( true ) {
+				if( !changed( service.take() ) )
+					continue;
+
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( delay );
+				long remaining;
+				while( ( remaining = deadline - System.nanoTime() )>0 ) {
+					WatchKey key = service.poll( remaining, TimeUnit.NANOSECONDS );
+					if( key!=null && changed( key ) )
+						deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( delay );
+				}
+
+				try {
+					action.run();
+				} catch( RuntimeException runtimeexception ) {
+					System.out.println( "[OTPFileWatcher] " + file + " : " + runtimeexception );
+				}
+			}
+		} catch( InterruptedException interruptedexception ) {
+			// Fin de la surveillance.
+		} catch( ClosedWatchServiceException closedwatchserviceexception ) {
+			// Fin de la surveillance.
+		}
+	}
+
+	/**
+	 * Lit les evenements d'une cle, et la rearme.
+	 * @param key Une cle du service.
+	 * @return boolean True si un evenement concerne le fichier.
+	**/
+	private boolean changed( WatchKey key ) {
+
+		boolean changed = false;
+		for( WatchEvent<?> event : key.pollEvents() ) {
+			if( event.kind()==StandardWatchEventKinds.OVERFLOW
+					|| file.getFileName().equals( event.context() ) )
+				changed = true;
+		}
+		key.reset();
+		return changed;
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le fichier surveille.
+	 * @return String Le nom du fichier.
+	**/
+	public String getFileName() { return file.toString(); }
+
+}
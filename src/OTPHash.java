@@ -20,8 +20,36 @@ public abstract class OTPHash {
     private int sequence;
     /** La semence du hash. **/
     private String seed;
-    /** Le hash. **/
-    private String hash;
+    /** Le hash, sur 64 bits. **/
+    private long hash;
+    /** Indique si le hash est defini. **/
+    private boolean defined;
+
+	/** Resultat d'analyse : reponse valide. **/
+	public static final int PARSE_OK = 0;
+	/** Resultat d'analyse : ni 6 mots, ni 16 chiffres hexadecimaux. **/
+	public static final int PARSE_FORMAT = 1;
+	/** Resultat d'analyse : mot absent du dico. **/
+	public static final int PARSE_WORD = 2;
+	/** Resultat d'analyse : checksum faux. **/
+	public static final int PARSE_CHECKSUM = 3;
+
+	/** Les messages d'erreur, par resultat d'analyse. **/
+	private static final String PARSE_ERRORS[] = {
+		null, "Chaine OTP invalide.", "Chaine OTP invalide.", "Checksum OTP invalide." };
+
+	/** Les chiffres hexadecimaux. **/
+	private static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+	/** La valeur des caracteres hexadecimaux, -1 si invalide. **/
+	private static final byte HEX_VALUES[] = new byte[128];
+
+	static {
+		java.util.Arrays.fill( HEX_VALUES, (byte) -1 );
+		for( int i = 0; i < 16; i++ ) {
+			HEX_VALUES["0123456789abcdef".charAt( i )] = (byte) i;
+			HEX_VALUES["0123456789ABCDEF".charAt( i )] = (byte) i;
+		}
+	}
 
 // Constructeurs
 
@@ -33,7 +61,7 @@ public abstract class OTPHash {
 	public OTPHash( int sequence, String seed, String hash ) {
 		this.sequence = sequence;
 		this.seed = seed.toLowerCase();
-		this.hash = hash;
+		setHash( hash );
 	}
 
 // Methodes abstraites
@@ -52,6 +80,13 @@ public abstract class OTPHash {
     **/
     public abstract byte[] parseTo64Bits( byte[] h );
 
+	/**
+	 * Retourne le moteur de chaine du thread courant
+	 * pour l'algorithme de ce hash.
+	 * @return OTPChain Le moteur de chaine.
+	**/
+	public abstract OTPChain getChain();
+
 // Methodes
 
 	/**
@@ -60,21 +95,137 @@ public abstract class OTPHash {
 	**/
 	public Object clone() {
 
-		OTPHash h = OTPFactory.createOTPHash( OTPFactory.getHashID( this ) );
-		h.setSequence( sequence );
-		h.setSeed( new String( seed ) );
-		h.setHash( new String( hash ) );
+		OTPHash h = OTPFactory.createOTPHash( OTPFactory.getHashID( this ), sequence, seed, null );
+		synchronized( this ) {
+			h.setSequence( sequence );
+			h.hash = hash;
+			h.defined = defined;
+		}
 
 		return h;
 	}
 
+	/**
+	 * Verifie une reponse a un challenge sur ce hash : la reponse
+	 * hashee une fois doit donner le hash courant. En cas de succes,
+	 * le hash devient la reponse et le numero de sequence est
+	 * decremente, en une seule operation atomique.
+	 * Aucune allocation n'est faite.
+	 * @param response La reponse, sur 64 bits.
+	 * @return boolean True si la reponse est correcte.
+	**/
+	public boolean verify( long response ) {
+		return verifyHashed( response, getChain().step( response ) );
+	}
+
+	/**
+	 * Comme verify( response ), avec la reponse deja hashee une fois.
+	 * @param response La reponse, sur 64 bits.
+	 * @param hashed La reponse hashee une fois.
+	 * @return boolean True si la reponse est correcte.
+	**/
+	public boolean verifyHashed( long response, long hashed ) {
+
+		synchronized( this ) {
+
+			if( !defined || hashed!=hash )
+				return false;
+
+			hash = response;
+			sequence--;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Verifie une reponse qui peut etre en avance de plusieurs
+	 * pas sur le hash courant ( client desynchronise ) : la reponse
+	 * est hashee jusqu'a window fois, et acceptee si elle retombe
+	 * sur le hash courant. En cas de succes, le hash devient la
+	 * reponse et le numero de sequence est diminue d'autant.
+	 * @param response La reponse, sur 64 bits.
+	 * @param window Le nombre maximum de hashages.
+	 * @return int Le nombre de hashages qui a mene au hash courant,
+	 * 0 si la reponse est refusee.
+	**/
+	public int verify( long response, int window ) {
+
+		if( window<1 )
+			return 0;
+		return verifyHashed( response, getChain().step( response ), window );
+	}
+
+	/**
+	 * Comme verify( response, window ), avec la reponse deja hashee
+	 * une fois : seuls les window-1 hashages suivants sont calcules.
+	 * @param response La reponse, sur 64 bits.
+	 * @param hashed La reponse hashee une fois.
+	 * @param window Le nombre maximum de hashages, le premier compris.
+	 * @return int Le nombre de hashages qui a mene au hash courant,
+	 * 0 si la reponse est refusee.
+	**/
+	public int verifyHashed( long response, long hashed, int window ) {
+
+		long expected;
+		int seq;
+
+		synchronized( this ) {
+			if( !defined )
+				return 0;
+			expected = hash;
+			seq = sequence;
+		}
+
+		OTPChain chain = getChain();
+		long h = hashed;
+
+		for( int j = 1; j <= window && j <= seq; j++ ) {
+
+			if( j>1 )
+				h = chain.step( h );
+
+			if( h==expected ) {
+				synchronized( this ) {
+					// Le hash a pu changer pendant le calcul.
+					if( !defined || hash!=expected || sequence!=seq )
+						return 0;
+					hash = response;
+					sequence -= j;
+				}
+				return j;
+			}
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Remplace le numero de sequence et le hash, en une seule
+	 * operation atomique, s'ils valent toujours ceux attendus.
+	 * @param seq Le numero de sequence attendu.
+	 * @param expected Le hash attendu.
+	 * @param newSeq Le nouveau numero de sequence.
+	 * @param newHash Le nouveau hash.
+	 * @return boolean True si le remplacement a ete fait.
+	**/
+	public synchronized boolean compareAndSet( int seq, long expected, int newSeq, long newHash ) {
+
+		if( !defined || sequence!=seq || hash!=expected )
+			return false;
+
+		sequence = newSeq;
+		hash = newHash;
+		return true;
+	}
+
 	/**
 	 * Compare si cet objet est egal a un autre objet OTPHash.
 	 * @param  otphash Un objet OTPHash.
 	 * @return boolean True si les deux objets sont egaux.
 	**/
 	public boolean equal( OTPHash otphash ) {
-		return otphash.getHash().compareTo(hash)==0 ;
+		return defined && otphash.defined && otphash.hash==hash ;
 	}
 
 	/**
@@ -83,11 +234,7 @@ public abstract class OTPHash {
 	**/
 	public void generate( String pass ) {
 
-		byte tab[] = ( seed + pass ).getBytes();
-		for( int i = 0; i <= sequence; i++ )
-			tab = parseTo64Bits( hash( tab ) );
-
-		hash = parseBytesToHexString( tab );
+		setValue( getChain().chain( ( seed + pass ).getBytes(), sequence+1 ) );
 	}
 
 	/**
@@ -96,12 +243,10 @@ public abstract class OTPHash {
 	**/
 	public boolean hashOneTime() {
 
-		if( hash==null || hash.length()!=16 )
+		if( !defined )
 			return false;
 
-		byte tab[] = parseHexStringToBytes( hash );
-		tab = parseTo64Bits( hash( tab ) );
-		hash = parseBytesToHexString( tab );
+		hash = getChain().step( hash );
 		sequence++;
 		
 		return true;
@@ -115,21 +260,14 @@ public abstract class OTPHash {
 	**/
 	public static String parseBytesToHexString( byte tab[] ) {
 
-		StringBuffer stringbuffer = new StringBuffer();
+		char result[] = new char[tab.length*2];
 
 		for( int i = 0; i < tab.length; i++ ) {
-			int e = tab[i];
-			String hex = Integer.toHexString( e );
-
-			if( hex.length() == 1 ) {
-				stringbuffer.append( '0' );
-				stringbuffer.append( hex.charAt( hex.length()-1 ) );
-			} else {
-				stringbuffer.append( hex.substring( hex.length()-2 ) );
-			}
+			result[i*2] = HEX_DIGITS[( tab[i] >> 4 ) & 0xf];
+			result[i*2+1] = HEX_DIGITS[tab[i] & 0xf];
 		}
 
-		return stringbuffer.toString();
+		return new String( result );
 	}
 
 	/**
@@ -140,18 +278,57 @@ public abstract class OTPHash {
 	**/
 	public static byte[] parseHexStringToBytes( String str ) {
 
-		if( str.length()>16 )
-			throw new InvalidHashException( "Hash trop long." );
+		long l = parseHexStringToLong( str );
 
 		byte[] result = new byte[8];
-
-		for( int i=0; i<8; i++ ) {
-			result[i] = (byte) Integer.decode( "0x" + str.substring(i*2, i*2 + 2) ).intValue();
+		for( int i = 7; i >= 0; i-- ) {
+			result[i] = (byte) l;
+			l >>>= 8;
 		}
 
 		return result;
 	}
 
+	/**
+	 * Traduit un hash sur 64 bits en sa representation
+	 * hexadecimale ( chaine de 16 caracteres ).
+	 * @param l Le hash sur 64 bits.
+	 * @return String Sa representation en hexadecimal.
+	**/
+	public static String parseLongToHexString( long l ) {
+
+		char result[] = new char[16];
+		for( int i = 15; i >= 0; i-- ) {
+			result[i] = HEX_DIGITS[(int) l & 0xf];
+			l >>>= 4;
+		}
+
+		return new String( result );
+	}
+
+	/**
+	 * Traduit un hash hexadecimal ( sous forme de chaine
+	 * de 16 caracteres ) en un hash sur 64 bits.
+	 * @param str La representation hexadecimale.
+	 * @return long Le hash sur 64 bits.
+	**/
+	public static long parseHexStringToLong( String str ) {
+
+		if( str.length()!=16 )
+			throw new InvalidHashException( "Hash non 64 bits." );
+
+		long l = 0L;
+		for( int i = 0; i < 16; i++ ) {
+			char c = str.charAt( i );
+			int d = c<128 ? HEX_VALUES[c] : -1;
+			if( d<0 )
+				throw new InvalidHashException( "Hash non hexadecimal." );
+			l = ( l << 4 ) | d;
+		}
+
+		return l;
+	}
+
 	/**
 	 * Traduit un hash hexadecimal ( sous forme de chaine
 	 * de 16 caracteres ) en une chaine OTP ( sous forme
@@ -164,35 +341,109 @@ public abstract class OTPHash {
 	**/
 	public static String parseHexStringToOTPString( String str ) {
 		
-		// On transforme la chaine de caracteres en entier long.
-		
-		long l = 0L;
-		byte[] tab = parseHexStringToBytes( str );
-		for( int i = 0; i < tab.length; i++ ) {
-			l <<= 8;
-			l |= ( tab[i] & 0xff );
+		return parseLongToOTPString( parseHexStringToLong( str ) );
+	}
+
+	/**
+	 * Traduit un hash sur 64 bits en une chaine OTP ( sous
+	 * forme de 6 blocs de 4 lettres ).
+	 * @param l Le hash sur 64 bits.
+	 * @return String Sa representation OTP.
+	**/
+	public static String parseLongToOTPString( long l ) {
+		return appendOTPString( l, new StringBuilder( 29 ) ).toString();
+	}
+
+	/**
+	 * Ajoute la chaine OTP d'un hash sur 64 bits a un StringBuilder.
+	 * Rien n'est alloue si le StringBuilder est assez grand
+	 * ( 29 caracteres au plus ).
+	 * @param l Le hash sur 64 bits.
+	 * @param sb Le StringBuilder, reutilisable.
+	 * @return StringBuilder Le meme StringBuilder.
+	**/
+	public static StringBuilder appendOTPString( long l, StringBuilder sb ) {
+
+		int cs = checksum( l );
+
+		for( int i = 0; i < 6; i++ ) {
+			if( i>0 )
+				sb.append( ' ' );
+			sb.append( OTPDico.getVal( getWordIndex( l, cs, i ) ) );
 		}
 
-		// Il faut tout d'abord calculer le checksum du hash.
-		// Ca consiste a ajouter bits a bits les bits du hash.
+		return sb;
+	}
+
+	/**
+	 * Ecrit la chaine OTP d'un hash sur 64 bits dans un tableau
+	 * de caracteres ( 29 caracteres au plus ).
+	 * @param l Le hash sur 64 bits.
+	 * @param dst Le tableau destination.
+	 * @param off La position de depart.
+	 * @return int Le nombre de caracteres ecrits.
+	**/
+	public static int writeOTPString( long l, char dst[], int off ) {
+
+		int cs = checksum( l );
+		int pos = off;
 
-		byte checksum = 0;
-		long tmp = l;
-		for( int i = 0; i < 64; i += 2 ) {
-			checksum = (byte) ( checksum + ( tmp & 0x3 ) );
-			tmp >>= 2;
+		for( int i = 0; i < 6; i++ ) {
+			if( i>0 )
+				dst[pos++] = ' ';
+			String word = OTPDico.getVal( getWordIndex( l, cs, i ) );
+			word.getChars( 0, word.length(), dst, pos );
+			pos += word.length();
 		}
 
-		// Ensuite, il faut transformer grace au dico.
+		return pos - off;
+	}
 
-		String result = new String();
-		for( int i = 4; i >= 0; i-- )
-            result += OTPDico.getVal( (int) ( ( l >> ( i * 11 + 9 ) ) & 0x7ff ) ) + " ";
+	/**
+	 * Ecrit la chaine OTP d'un hash sur 64 bits en ASCII dans
+	 * un ByteBuffer ( 29 octets au plus ).
+	 * @param l Le hash sur 64 bits.
+	 * @param dst Le ByteBuffer destination, a partir de sa position.
+	 * @return int Le nombre d'octets ecrits.
+	**/
+	public static int writeOTPString( long l, java.nio.ByteBuffer dst ) {
 
-		result += OTPDico.getVal( (int) ( ( ( l << 2 ) & 0x7fc ) | ( checksum & 0x3 ) ) ) ;
+		int cs = checksum( l );
+		int start = dst.position();
 
-		return result;
-		
+		for( int i = 0; i < 6; i++ ) {
+			if( i>0 )
+				dst.put( (byte) ' ' );
+			String word = OTPDico.getVal( getWordIndex( l, cs, i ) );
+			for( int j = 0; j < word.length(); j++ )
+				dst.put( (byte) word.charAt( j ) );
+		}
+
+		return dst.position() - start;
+	}
+
+	/**
+	 * Calcule le checksum d'un hash : la somme de ses 32 paires
+	 * de bits, modulo 4. Une paire vaut 2 fois son bit de poids
+	 * fort plus son bit de poids faible.
+	 * @param l Le hash sur 64 bits.
+	 * @return int Le checksum, sur 2 bits.
+	**/
+	public static int checksum( long l ) {
+		return ( 2 * Long.bitCount( l & 0xaaaaaaaaaaaaaaaaL )
+			+ Long.bitCount( l & 0x5555555555555555L ) ) & 0x3;
+	}
+
+	/**
+	 * Retourne l'index dans le dico du i-eme mot d'un hash. Chaque
+	 * mot represente 11 bits, le dernier finit par le checksum.
+	**/
+	private static int getWordIndex( long l, int cs, int i ) {
+
+		if( i<5 )
+			return (int) ( ( l >>> ( ( 4-i ) * 11 + 9 ) ) & 0x7ff );
+
+		return (int) ( ( l << 2 ) & 0x7fc ) | cs;
 	}
 
 	/**
@@ -203,39 +454,176 @@ public abstract class OTPHash {
 	 * @return String[] Sa representation hexadecimale.
 	**/
 	public static String parseOTPStringToHexString( String str ) {
+		return parseLongToHexString( parseOTPStringToLong( str ) );
+	}
 
-		String[] s = str.split( " " );
+	/**
+	 * Traduit une chaine OTP ( sous forme de 6 blocs de 4
+	 * lettres ) en un hash sur 64 bits.
+	 * Les mots peuvent etre en minuscules et separes par
+	 * plusieurs blancs. Le checksum est verifie.
+	 * @param str La representation OTP.
+	 * @return long Le hash sur 64 bits.
+	**/
+	public static long parseOTPStringToLong( CharSequence str ) {
 
-		// On verifie que c'est une chaine OTP.
-		
-		if( s.length!=6 )
-			throw new InvalidHashException( "Chaine OTP invalide." );
-		for( int i=0; i<s.length; i++ )
-			if( s[i].length()>4 )
-				throw new InvalidHashException( "Chaine OTP invalide." );
+		long result[] = new long[1];
+		int code = parseWords( str, 0, result );
+
+		if( code!=PARSE_OK )
+			throw new InvalidHashException( PARSE_ERRORS[code] );
 
-		// On traduit la chaine en entier long.
-		// On vire le checksum, sans verification.
+		return result[0];
+	}
+
+	/**
+	 * Traduit une reponse a un challenge en un hash sur 64 bits.
+	 * Les formats de la RFC 2289 sont acceptes : 6 mots ou 16
+	 * chiffres hexadecimaux, avec ou sans prefixe "word:" ou
+	 * "hex:". Sans prefixe, 6 blocs de 1 a 4 lettres sont lus
+	 * comme des mots, le reste comme de l'hexadecimal.
+	 * Une reponse invalide est rejetee ici, avant tout hashage.
+	 * @param str La reponse.
+	 * @return long Le hash sur 64 bits.
+	**/
+	public static long parseResponse( CharSequence str ) {
+
+		long result[] = new long[1];
+		int code = parseResponse( str, result );
+
+		if( code!=PARSE_OK )
+			throw new InvalidHashException( PARSE_ERRORS[code] );
+
+		return result[0];
+	}
+
+	/**
+	 * Traduit une reponse a un challenge en un hash sur 64 bits,
+	 * sans lever d'exception : une reponse invalide ne coute que
+	 * sa lecture. Memes formats que parseResponse( CharSequence ).
+	 * @param str La reponse.
+	 * @param result Un tableau qui recoit le hash en result[0].
+	 * @return int PARSE_OK, ou la raison du rejet.
+	**/
+	public static int parseResponse( CharSequence str, long result[] ) {
+
+		int start = skipSpaces( str, 0 );
+
+		if( startsWith( str, start, "hex:" ) )
+			return parseHex( str, start+4, result );
+		if( startsWith( str, start, "word:" ) )
+			return parseWords( str, start+5, result );
+
+		// Sans prefixe : des mots si il y a 6 blocs de lettres.
+
+		int words = 0;
+		for( int i = start; i < str.length(); ) {
+			int end = i;
+			while( end < str.length() && isLetter( str.charAt( end ) ) )
+				end++;
+			if( end==i || end-i>4 || ( end < str.length() && !isSpace( str.charAt( end ) ) ) )
+				return parseHex( str, start, result );
+			words++;
+			i = skipSpaces( str, end );
+		}
+
+		return words==6 ? parseWords( str, start, result ) : parseHex( str, start, result );
+	}
+
+	/**
+	 * Lit 6 mots du dico a partir d'une position, et verifie le checksum.
+	**/
+	private static int parseWords( CharSequence str, int pos, long result[] ) {
 
 		long l = 0L;
-		OTPDico dico = new OTPDico();
+		int cs = 0;
+		pos = skipSpaces( str, pos );
+
+		for( int i = 0; i < 6; i++ ) {
+
+			int end = pos;
+			while( end < str.length() && !isSpace( str.charAt( end ) ) )
+				end++;
+
+			if( end==pos )
+				return PARSE_FORMAT;
+
+			int key = OTPDico.getKey( str, pos, end );
+			if( key<0 )
+				return PARSE_WORD;
+
+			if( i<5 ) {
+				l = ( l << 11 ) | key;
+			} else {
+				l = ( l << 9 ) | ( key >> 2 );
+				cs = key & 0x3;
+			}
 
-		for( int i = 0; i <= 4; i++ ) {
-			l <<= 11;
-			l |= dico.getKey( s[i] ) & 0x7ff;
+			pos = skipSpaces( str, end );
 		}
-		l <<= 9;
-		l |= ( dico.getKey( s[5] ) & 0x7fc ) >> 2;
 
-		// On transforme l'entier long en chaine de caracteres.
+		if( pos!=str.length() )
+			return PARSE_FORMAT;
+		if( cs!=checksum( l ) )
+			return PARSE_CHECKSUM;
 
-		byte[] result = new byte[8];
-		for( int i = 0; i < result.length; i++ ) {
-			result[i] = (byte) ( ( l >> ( 7 - i ) * 8 ) & 0xff );
+		result[0] = l;
+		return PARSE_OK;
+	}
+
+	/**
+	 * Lit 16 chiffres hexadecimaux a partir d'une position,
+	 * en ignorant les blancs.
+	**/
+	private static int parseHex( CharSequence str, int pos, long result[] ) {
+
+		long l = 0L;
+		int digits = 0;
+
+		for( ; pos < str.length(); pos++ ) {
+			char c = str.charAt( pos );
+			if( isSpace( c ) )
+				continue;
+			int d = c<128 ? HEX_VALUES[c] : -1;
+			if( d<0 || ++digits>16 )
+				return PARSE_FORMAT;
+			l = ( l << 4 ) | d;
 		}
 
-		return parseBytesToHexString( result );
+		if( digits!=16 )
+			return PARSE_FORMAT;
 
+		result[0] = l;
+		return PARSE_OK;
+	}
+
+	private static int skipSpaces( CharSequence str, int pos ) {
+		while( pos < str.length() && isSpace( str.charAt( pos ) ) )
+			pos++;
+		return pos;
+	}
+
+	private static boolean isSpace( char c ) {
+		return c==' ' || c=='\t' || c=='\r' || c=='\n';
+	}
+
+	private static boolean isLetter( char c ) {
+		return ( c>='A' && c<='Z' ) || ( c>='a' && c<='z' );
+	}
+
+	/**
+	 * Test un prefixe, sans tenir compte de la casse.
+	**/
+	private static boolean startsWith( CharSequence str, int pos, String prefix ) {
+
+		if( str.length() - pos < prefix.length() )
+			return false;
+
+		for( int i = 0; i < prefix.length(); i++ )
+			if( Character.toLowerCase( str.charAt( pos+i ) )!=prefix.charAt( i ) )
+				return false;
+
+		return true;
 	}
 
 	/**
@@ -246,17 +634,36 @@ public abstract class OTPHash {
 	 * @return String Le resultat.
 	**/
 	public String toString() {
-		return parseHexStringToOTPString( hash );
+		return parseLongToOTPString( hash );
 	}
 
 // Accesseurs et Modifieurs
 
 	public int getSequence() { return sequence; }
 	public String getSeed() { return seed; }
-	public String getHash() { return hash; }
+	public long getValue() { return hash; }
+	public boolean isDefined() { return defined; }
+
+	/**
+	 * Retourne le hash en hexadecimal, pour le stockage.
+	 * @return String Le hash, null si il n'est pas defini.
+	**/
+	public String getHash() { return defined ? parseLongToHexString( hash ) : null; }
 
 	public void setSequence( int seq ) { sequence = seq; }
 	public void setSeed( String s ) { seed = s.toLowerCase(); }
-	public void setHash( String h ) { hash = h; }
+	public void setValue( long h ) { hash = h; defined = true; }
+
+	/**
+	 * Met a jour le hash a partir de sa forme hexadecimale.
+	 * @param h Le hash en hexadecimal, null pour l'effacer.
+	**/
+	public void setHash( String h ) {
+		if( h==null ) {
+			defined = false;
+		} else {
+			setValue( parseHexStringToLong( h ) );
+		}
+	}
 
 }
@@ -1,7 +1,5 @@
 package otp.hash;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import otp.exception.NoHashSupportException;
 import otp.exception.InvalidHashException;
 
@@ -9,7 +7,7 @@ import otp.exception.InvalidHashException;
  * Represente un Hash MD4.
  *
  * @author Thomas CHEMINEAU
- * @version 0.1
+ * @version 0.2
 **/
 
 public class OTPHashMD4 extends OTPHashMD5 {
@@ -32,21 +30,16 @@ public class OTPHashMD4 extends OTPHashMD5 {
 	**/
     public byte[] hash( byte tab[] ) throws NoHashSupportException {
 
-		byte result[] = null;
-
-		/*
-		 * Non supporté par Java.
-		 * A implementer soit meme.
-
-		try {
-			result = MessageDigest.getInstance("MD4").digest( tab );
-		} catch( NoSuchAlgorithmException nosuchalgorithmexception ) {
-			throw new NoHashSupportException( "MD4" );
-		}
-		
-		*/
+		// Non supporte par Java : implemente par OTPChainMD4.
+		return ( (OTPChainMD4) OTPChainMD4.get() ).digest( tab );
+	}
 
-		return result;
+	/**
+	 * Retourne le moteur de chaine du thread courant.
+	 * @return OTPChain Le moteur de chaine.
+	**/
+	public OTPChain getChain() {
+		return OTPChainMD4.get();
 	}
 
 }
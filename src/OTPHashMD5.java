@@ -61,4 +61,12 @@ public class OTPHashMD5 extends OTPHash {
 
     }
 
+	/**
+	 * Retourne le moteur de chaine du thread courant.
+	 * @return OTPChain Le moteur de chaine.
+	**/
+	public OTPChain getChain() {
+		return OTPChainMD5.get();
+	}
+
 }
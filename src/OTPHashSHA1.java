@@ -63,4 +63,12 @@ public class OTPHashSHA1 extends OTPHash {
 
     }
 
+	/**
+	 * Retourne le moteur de chaine du thread courant.
+	 * @return OTPChain Le moteur de chaine.
+	**/
+	public OTPChain getChain() {
+		return OTPChainSHA1.get();
+	}
+
 }
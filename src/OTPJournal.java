@@ -0,0 +1,244 @@
+package otp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Journal en ajout seul d'un OTPDatabase.
+ * Chaque modification d'un utilisateur est ecrite a la fin du
+ * fichier sous la forme d'une ligne "crc;enregistrement", puis
+ * forcee sur le disque selon la politique OTPDurability. Le cout
+ * d'une ecriture ne depend donc pas du nombre d'utilisateurs.
+ * Le journal est tourne ( fichier.1 ) au debut d'un compactage,
+ * puis supprime une fois l'instantane ecrit.
+ *
+ * @version 0.2
+**/
+
+public class OTPJournal implements OTPDurability.Target {
+
+	/** Extension du journal tourne. **/
+	public static final String ROTATED = ".1";
+
+	/** Le nom de fichier du journal. **/
+	private String nomFichier;
+	/** Le canal d'ecriture. **/
+	private volatile FileChannel channel;
+	/** La politique de durabilite. **/
+	private OTPDurability durability;
+	/** Nombre d'enregistrements depuis la derniere rotation. **/
+	private long records;
+
+// Constructeurs
+
+	/**
+	 * Ouvre ( ou cree ) un journal en ajout seul.
+	 * @param filename Le nom de fichier du journal.
+	**/
+	public OTPJournal( String filename ) throws IOException {
+		nomFichier = filename;
+		durability = new OTPDurability( this );
+		open();
+	}
+
+// Methodes
+
+	/**
+	 * Ajoute un enregistrement a la fin du journal, sans attendre
+	 * qu'il soit sur le disque : voir commit().
+	 * @param record Un enregistrement, sans retour a la ligne.
+	 * @return long Le ticket de l'ecriture, -1 en cas d'erreur.
+	**/
+	public synchronized long append( String record ) {
+
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap( encode( record ) );
+			while( buffer.hasRemaining() )
+				channel.write( buffer );
+			records++;
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPJournal] append : " + ioexception );
+			return -1;
+		}
+
+		return durability.written();
+	}
+
+	/**
+	 * Attend que la garantie de durabilite d'une ecriture soit atteinte.
+	 * @param ticket Un ticket retourne par append().
+	 * @return boolean False si le fsync a echoue.
+	**/
+	public boolean commit( long ticket ) {
+		return ticket>=0 && durability.commit( ticket );
+	}
+
+	/**
+	 * Force le journal sur le disque. Appele par OTPDurability, hors
+	 * du verrou du journal : les ecritures continuent pendant le fsync.
+	 * Un canal ferme par rotate() a deja ete force.
+	**/
+	public void force() throws IOException {
+
+		while( true ) {
+			FileChannel current = channel;
+			try {
+				current.force( false );
+				return;
+			} catch( ClosedChannelException closedchannelexception ) {
+				if( current==channel )
+					throw closedchannelexception;
+			}
+		}
+	}
+
+	/**
+	 * Tourne le journal : les enregistrements deja ecrits passent
+	 * dans fichier.1, et les suivants dans un journal vide.
+	 * Si fichier.1 existe encore ( compactage precedent echoue ),
+	 * le journal courant lui est ajoute plutot que de l'ecraser.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public synchronized boolean rotate() {
+
+		try {
+			Path current = Paths.get( nomFichier );
+			Path rotated = Paths.get( nomFichier + ROTATED );
+
+			// Les enregistrements tournes doivent etre sur le disque :
+			// le thread des fsync ne force que le journal courant.
+			channel.force( false );
+
+			if( !Files.exists( current ) ) {
+				// Le journal a ete integre au fichier de donnees et
+				// supprime par un autre programme : on en ouvre un neuf.
+				FileChannel old = channel;
+				open();
+				old.close();
+			} else if( Files.exists( rotated ) ) {
+				FileChannel old = FileChannel.open( rotated, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+				try {
+					old.write( ByteBuffer.wrap( Files.readAllBytes( current ) ) );
+					old.force( false );
+				} finally {
+					old.close();
+				}
+				channel.truncate( 0 );
+				channel.force( true );
+			} else {
+				// Le nouveau journal est ouvert avant de fermer l'ancien,
+				// pour qu'un fsync en cours trouve toujours un canal ouvert.
+				FileChannel old = channel;
+				Files.move( current, rotated, StandardCopyOption.ATOMIC_MOVE );
+				open();
+				old.close();
+			}
+			records = 0;
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPJournal] rotate : " + ioexception );
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Ferme le journal.
+	**/
+	public synchronized void close() {
+
+		try {
+			channel.close();
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPJournal] close : " + ioexception );
+		}
+	}
+
+	/**
+	 * Ouvre le canal d'ecriture en fin de fichier.
+	**/
+	private void open() throws IOException {
+		channel = FileChannel.open( Paths.get( nomFichier ),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+	}
+
+	/**
+	 * Encode un enregistrement : "crc;enregistrement\n".
+	 * @param record Un enregistrement.
+	 * @return byte[] La ligne a ecrire.
+	**/
+	private static byte[] encode( String record ) {
+
+		byte data[] = record.getBytes( StandardCharsets.UTF_8 );
+		CRC32 crc = new CRC32();
+		crc.update( data );
+
+		String head = String.format( "%08x;", crc.getValue() );
+		byte line[] = new byte[9 + data.length + 1];
+		System.arraycopy( head.getBytes( StandardCharsets.US_ASCII ), 0, line, 0, 9 );
+		System.arraycopy( data, 0, line, 9, data.length );
+		line[line.length - 1] = '\n';
+		return line;
+	}
+
+	/**
+	 * Lit les enregistrements valides d'un fichier journal.
+	 * La lecture s'arrete au premier enregistrement incomplet ou
+	 * au crc faux : c'est la fin d'une ecriture interrompue.
+	 * @param filename Le nom de fichier du journal.
+	 * @return List Les enregistrements, vide si le fichier n'existe pas.
+	**/
+	public static List<String> read( String filename ) throws IOException {
+
+		List<String> list = new ArrayList<String>();
+		if( !( new File( filename ) ).exists() )
+			return list;
+
+		String ligne;
+		BufferedReader bufferreader = Files.newBufferedReader( Paths.get( filename ), StandardCharsets.UTF_8 );
+		try {
+			while( ( ligne = bufferreader.readLine() )!=null ) {
+				if( ligne.length()<9 || ligne.charAt( 8 )!=';' )
+					break;
+				String record = ligne.substring( 9 );
+				CRC32 crc = new CRC32();
+				crc.update( record.getBytes( StandardCharsets.UTF_8 ) );
+				if( !String.format( "%08x", crc.getValue() ).equals( ligne.substring( 0, 8 ) ) )
+					break;
+				list.add( record );
+			}
+		} finally {
+			bufferreader.close();
+		}
+
+		return list;
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le nom du fichier journal.
+	 * @return String Le nom du fichier journal.
+	**/
+	public String getFileName() { return nomFichier; }
+
+	/**
+	 * Retourne le nombre d'enregistrements depuis la derniere rotation.
+	 * @return long Le nombre d'enregistrements.
+	**/
+	public synchronized long getRecords() { return records; }
+
+	/**
+	 * Retourne la politique de durabilite du journal.
+	 * @return OTPDurability La politique de durabilite.
+	**/
+	public OTPDurability getDurability() { return durability; }
+
+}
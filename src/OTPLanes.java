@@ -0,0 +1,105 @@
+package otp.hash;
+
+import java.lang.management.ManagementFactory;
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+/**
+ * Moteur multi-voies : avance WIDTH chaines OTP en meme temps,
+ * une chaine par voie. Chaque operation du hashage est une
+ * boucle sur les voies, sur des tableaux d'entiers, que le
+ * compilateur de la JVM vectorise ( SIMD ) quand il le peut.
+ * Les chaines restent sous forme de deux mots de 32 bits
+ * d'un pas a l'autre : le repliement donne directement le
+ * bloc du pas suivant.
+ *
+ * @version 0.1
+**/
+
+public abstract class OTPLanes {
+
+	/** Le nombre de voies. **/
+	public static final int WIDTH = 64;
+
+	/** Indique si le moteur multi-voies est utilise. **/
+	private static final boolean ENABLED = detect();
+
+	/** Les deux mots du bloc, par voie. **/
+	protected int x0[], x1[];
+
+// Constructeurs
+
+	protected OTPLanes() {
+		x0 = new int[WIDTH];
+		x1 = new int[WIDTH];
+	}
+
+// Methodes abstraites
+
+	/**
+	 * Avance toutes les voies d'un pas, de x0 et x1 vers x0 et x1.
+	**/
+	protected abstract void step();
+
+	/**
+	 * Indique l'ordre des octets des mots x0 et x1.
+	 * @return boolean True si les mots sont petit-boutistes.
+	**/
+	protected abstract boolean isLittleEndian();
+
+// Methodes
+
+	/**
+	 * Indique si le moteur multi-voies est utilise.
+	 * Il peut etre desactive par la propriete systeme otp.lanes=false ;
+	 * il l'est aussi quand la JVM ne vectorise pas.
+	 * @return boolean True si c'est le cas.
+	**/
+	public static boolean isEnabled() { return ENABLED; }
+
+	/**
+	 * Avance de n pas les WIDTH chaines a partir de h[off].
+	 * @param h Les hash sur 64 bits.
+	 * @param off La premiere chaine.
+	 * @param n Le nombre de pas.
+	**/
+	public void steps( long h[], int off, int n ) {
+
+		boolean le = isLittleEndian();
+
+		for( int l = 0; l < WIDTH; l++ ) {
+			int hi = (int) ( h[off+l] >>> 32 );
+			int lo = (int) h[off+l];
+			x0[l] = le ? Integer.reverseBytes( hi ) : hi;
+			x1[l] = le ? Integer.reverseBytes( lo ) : lo;
+		}
+
+		for( int i = 0; i < n; i++ )
+			step();
+
+		for( int l = 0; l < WIDTH; l++ ) {
+			int hi = le ? Integer.reverseBytes( x0[l] ) : x0[l];
+			int lo = le ? Integer.reverseBytes( x1[l] ) : x1[l];
+			h[off+l] = (long) hi << 32 | ( lo & 0xffffffffL );
+		}
+	}
+
+	/**
+	 * Detecte si la JVM vectorise les boucles ( HotSpot C2 ).
+	**/
+	private static boolean detect() {
+
+		if( !Boolean.parseBoolean( System.getProperty( "otp.lanes", "true" ) ) )
+			return false;
+
+		try {
+			HotSpotDiagnosticMXBean bean =
+				ManagementFactory.getPlatformMXBean( HotSpotDiagnosticMXBean.class );
+			return Boolean.parseBoolean( bean.getVMOption( "UseSuperWord" ).getValue() )
+				&& Integer.parseInt( bean.getVMOption( "MaxVectorSize" ).getValue() ) >= 16;
+		} catch( Throwable throwable ) {
+			// Pas une JVM HotSpot : on garde le chemin scalaire.
+			return false;
+		}
+	}
+
+}
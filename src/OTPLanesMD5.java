@@ -0,0 +1,94 @@
+package otp.hash;
+
+/**
+ * Moteur MD5 multi-voies.
+ * Un pas hashe 8 octets : le bloc vaut { x0, x1, 0x80, 0, ...,
+ * 0, 64, 0 }, et le repliement de l'etat final donne les mots
+ * x0 et x1 du pas suivant.
+ *
+ * @version 0.1
+**/
+
+public class OTPLanesMD5 extends OTPLanes {
+
+	/** Les constantes, avec les mots constants du bloc. **/
+	private static final int K[] = new int[64];
+	/** Les rotations. **/
+	private static final int S[] = {
+		7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21 };
+	/** Le mot du bloc lu a chaque operation. **/
+	private static final int G[] = new int[64];
+
+	static {
+		for( int i = 0; i < 64; i++ ) {
+			K[i] = (int) (long) Math.floor( Math.abs( Math.sin( i+1 ) ) * 4294967296.0 );
+			G[i] = i<16 ? i : i<32 ? ( 5*i+1 ) & 15 : i<48 ? ( 3*i+5 ) & 15 : ( 7*i ) & 15;
+			if( G[i]==2 ) K[i] += 0x80;
+			if( G[i]==14 ) K[i] += 64;
+		}
+	}
+
+	private int zero[];
+	private int a[], b[], c[], d[];
+
+// Constructeurs
+
+	public OTPLanesMD5() {
+		zero = new int[WIDTH];
+		a = new int[WIDTH];
+		b = new int[WIDTH];
+		c = new int[WIDTH];
+		d = new int[WIDTH];
+	}
+
+// Methodes redefinies
+
+	protected boolean isLittleEndian() { return true; }
+
+	protected void step() {
+
+		int a[] = this.a, b[] = this.b, c[] = this.c, d[] = this.d;
+
+		for( int l = 0; l < WIDTH; l++ ) {
+			a[l] = 0x67452301;
+			b[l] = 0xefcdab89;
+			c[l] = 0x98badcfe;
+			d[l] = 0x10325476;
+		}
+
+		for( int i = 0; i < 64; i++ ) {
+
+			int x[] = G[i]==0 ? x0 : G[i]==1 ? x1 : zero;
+			int k = K[i];
+			int s = S[( i >> 4 ) << 2 | ( i & 3 )];
+
+			switch( i >> 4 ) {
+				case 0:
+					for( int l = 0; l < WIDTH; l++ )
+						a[l] = b[l] + Integer.rotateLeft( a[l] + ( ( b[l] & c[l] ) | ( ~b[l] & d[l] ) ) + x[l] + k, s );
+					break;
+				case 1:
+					for( int l = 0; l < WIDTH; l++ )
+						a[l] = b[l] + Integer.rotateLeft( a[l] + ( ( d[l] & b[l] ) | ( ~d[l] & c[l] ) ) + x[l] + k, s );
+					break;
+				case 2:
+					for( int l = 0; l < WIDTH; l++ )
+						a[l] = b[l] + Integer.rotateLeft( a[l] + ( b[l] ^ c[l] ^ d[l] ) + x[l] + k, s );
+					break;
+				default:
+					for( int l = 0; l < WIDTH; l++ )
+						a[l] = b[l] + Integer.rotateLeft( a[l] + ( c[l] ^ ( b[l] | ~d[l] ) ) + x[l] + k, s );
+			}
+
+			// On fait tourner les registres : a, b, c, d <- d, a, b, c.
+			int t[] = d; d = c; c = b; b = a; a = t;
+		}
+
+		// Repliement : octets 0-7 et 8-15 du hash, soit a^c et b^d.
+		for( int l = 0; l < WIDTH; l++ ) {
+			x0[l] = ( a[l] + 0x67452301 ) ^ ( c[l] + 0x98badcfe );
+			x1[l] = ( b[l] + 0xefcdab89 ) ^ ( d[l] + 0x10325476 );
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package otp.hash;
+
+/**
+ * Moteur SHA-1 multi-voies.
+ * Un pas hashe 8 octets : le bloc vaut { x0, x1, 0x80000000,
+ * 0, ..., 0, 64 }, et le repliement de l'etat final donne les
+ * mots x0 et x1 du pas suivant.
+ *
+ * @version 0.1
+**/
+
+public class OTPLanesSHA1 extends OTPLanes {
+
+	private static final int H0 = 0x67452301;
+	private static final int H1 = 0xefcdab89;
+	private static final int H2 = 0x98badcfe;
+	private static final int H3 = 0x10325476;
+	private static final int H4 = 0xc3d2e1f0;
+
+	/** Le message etendu, 80 mots par voie. **/
+	private int w[][];
+	private int a[], b[], c[], d[], e[];
+
+// Constructeurs
+
+	public OTPLanesSHA1() {
+
+		w = new int[80][];
+		w[0] = x0;
+		w[1] = x1;
+		for( int t = 2; t < 80; t++ )
+			w[t] = new int[WIDTH];
+		java.util.Arrays.fill( w[2], 0x80000000 );
+		java.util.Arrays.fill( w[15], 64 );
+
+		a = new int[WIDTH];
+		b = new int[WIDTH];
+		c = new int[WIDTH];
+		d = new int[WIDTH];
+		e = new int[WIDTH];
+	}
+
+// Methodes redefinies
+
+	protected boolean isLittleEndian() { return false; }
+
+	protected void step() {
+
+		for( int t = 16; t < 80; t++ ) {
+			int w3[] = w[t-3], w8[] = w[t-8], w14[] = w[t-14], w16[] = w[t-16], wt[] = w[t];
+			for( int l = 0; l < WIDTH; l++ )
+				wt[l] = Integer.rotateLeft( w3[l] ^ w8[l] ^ w14[l] ^ w16[l], 1 );
+		}
+
+		int a[] = this.a, b[] = this.b, c[] = this.c, d[] = this.d, e[] = this.e;
+
+		for( int l = 0; l < WIDTH; l++ ) {
+			a[l] = H0;
+			b[l] = H1;
+			c[l] = H2;
+			d[l] = H3;
+			e[l] = H4;
+		}
+
+		for( int t = 0; t < 80; t++ ) {
+
+			int wt[] = w[t];
+
+			// Le nouveau a est ecrit dans e, et b tourne de 30 bits.
+			switch( t / 20 ) {
+				case 0:
+					for( int l = 0; l < WIDTH; l++ ) {
+						e[l] += Integer.rotateLeft( a[l], 5 ) + ( ( b[l] & c[l] ) | ( ~b[l] & d[l] ) ) + wt[l] + 0x5a827999;
+						b[l] = Integer.rotateLeft( b[l], 30 );
+					}
+					break;
+				case 1:
+					for( int l = 0; l < WIDTH; l++ ) {
+						e[l] += Integer.rotateLeft( a[l], 5 ) + ( b[l] ^ c[l] ^ d[l] ) + wt[l] + 0x6ed9eba1;
+						b[l] = Integer.rotateLeft( b[l], 30 );
+					}
+					break;
+				case 2:
+					for( int l = 0; l < WIDTH; l++ ) {
+						e[l] += Integer.rotateLeft( a[l], 5 ) + ( ( b[l] & c[l] ) | ( b[l] & d[l] ) | ( c[l] & d[l] ) ) + wt[l] + 0x8f1bbcdc;
+						b[l] = Integer.rotateLeft( b[l], 30 );
+					}
+					break;
+				default:
+					for( int l = 0; l < WIDTH; l++ ) {
+						e[l] += Integer.rotateLeft( a[l], 5 ) + ( b[l] ^ c[l] ^ d[l] ) + wt[l] + 0xca62c1d6;
+						b[l] = Integer.rotateLeft( b[l], 30 );
+					}
+			}
+
+			// a, b, c, d, e <- e, a, b, c, d.
+			int tmp[] = e; e = d; d = c; c = b; b = a; a = tmp;
+		}
+
+		// Repliement : octets 0-7, 8-15 et 16-19 du hash.
+		for( int l = 0; l < WIDTH; l++ ) {
+			x0[l] = ( a[l] + H0 ) ^ ( c[l] + H2 ) ^ ( e[l] + H4 );
+			x1[l] = ( b[l] + H1 ) ^ ( d[l] + H3 );
+		}
+	}
+
+}
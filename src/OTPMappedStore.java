@@ -0,0 +1,421 @@
+package otp;
+
+import otp.hash.OTPHash;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stockage binaire des utilisateurs OTP, projete en memoire.
+ * Le fichier commence par un entete de HEADER octets ( MAGIC,
+ * taille d'un enregistrement, nombre d'emplacements ), suivi
+ * d'enregistrements de taille fixe RECORD :
+ * <pre>
+ *  0  etat ( 0 libre, 1 occupe )     1  algorithme
+ *  2  longueur du login              3  longueur de la semence
+ *  4  sequence ( int )               8  hash ( long )
+ * 16  dernier acces ( long, ms )    24  semence ( SEED_MAX octets )
+ * 40  login ( LOGIN_MAX octets )
+ * </pre>
+ * Au demarrage, seuls les logins sont lus pour construire l'index ;
+ * une authentification ne reecrit que la sequence, le hash et la
+ * date de son propre enregistrement. Ces ecritures sont forcees
+ * sur le disque selon la politique OTPDurability.
+ *
+ * @version 0.2
+**/
+
+public class OTPMappedStore implements OTPDurability.Target {
+
+	/** Les premiers octets d'un fichier binaire. **/
+	public static final byte MAGIC[] = { 'O', 'T', 'P', 'D', 'B', 0, 0, 1 };
+	/** Taille de l'entete. **/
+	public static final int HEADER = 32;
+	/** Taille d'un enregistrement. **/
+	public static final int RECORD = 64;
+	/** Taille maximale d'un login, en octets UTF-8. **/
+	public static final int LOGIN_MAX = 24;
+	/** Taille maximale d'une semence. **/
+	public static final int SEED_MAX = 16;
+
+	/** Les algorithmes, dans l'ordre de leur code. **/
+	static final String ALGOS[] = {
+		OTPFactory.HASHID_MD4, OTPFactory.HASHID_MD5, OTPFactory.HASHID_SHA1 };
+
+	private static final int OFF_STATE = 0;
+	private static final int OFF_ALGO = 1;
+	private static final int OFF_LOGIN_LEN = 2;
+	private static final int OFF_SEED_LEN = 3;
+	private static final int OFF_SEQUENCE = 4;
+	private static final int OFF_HASH = 8;
+	private static final int OFF_ACCESS = 16;
+	private static final int OFF_SEED = 24;
+	private static final int OFF_LOGIN = 40;
+
+	/** Le nom de fichier. **/
+	private String nomFichier;
+	/** Le canal du fichier. **/
+	private FileChannel channel;
+	/** La projection du fichier. **/
+	private volatile MappedByteBuffer buffer;
+	/** La politique de durabilite. **/
+	private OTPDurability durability;
+	/** Nombre d'emplacements projetes. **/
+	private int capacity;
+	/** Nombre d'emplacements utilises ( libres compris ). **/
+	private int slots;
+	/** Index login -> emplacement. **/
+	private Map<String,Integer> index;
+	/** Les emplacements liberes. **/
+	private ArrayDeque<Integer> free;
+
+// Constructeurs
+
+	/**
+	 * Ouvre ( ou cree ) un fichier binaire et construit son index.
+	 * @param filename Le nom de fichier.
+	**/
+	public OTPMappedStore( String filename ) throws IOException {
+
+		nomFichier = filename;
+		index = new HashMap<String,Integer>();
+		free = new ArrayDeque<Integer>();
+		durability = new OTPDurability( this );
+		channel = FileChannel.open( Paths.get( filename ),
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+
+		if( channel.size()==0 ) {
+			map( 1024 );
+			for( int i = 0; i < MAGIC.length; i++ )
+				buffer.put( i, MAGIC[i] );
+			buffer.putInt( 8, RECORD );
+			buffer.putInt( 12, 0 );
+			return;
+		}
+
+		if( !isMapped( filename ) )
+			throw new IOException( filename + " n'est pas un fichier OTP binaire." );
+
+		map( (int) ( ( channel.size() - HEADER ) / RECORD ) );
+		if( buffer.getInt( 8 )!=RECORD )
+			throw new IOException( filename + " : taille d'enregistrement inconnue." );
+
+		// Seuls les logins sont lus.
+		slots = buffer.getInt( 12 );
+		byte login[] = new byte[LOGIN_MAX];
+		for( int slot = 0; slot < slots; slot++ ) {
+			int pos = HEADER + slot * RECORD;
+			if( buffer.get( pos + OFF_STATE )==0 ) {
+				free.add( slot );
+				continue;
+			}
+			int len = buffer.get( pos + OFF_LOGIN_LEN );
+			buffer.get( pos + OFF_LOGIN, login, 0, len );
+			index.put( new String( login, 0, len, StandardCharsets.UTF_8 ), slot );
+		}
+	}
+
+// Methodes
+
+	/**
+	 * Teste si un fichier est un fichier OTP binaire.
+	 * @param filename Le nom de fichier.
+	 * @return boolean True si le fichier commence par MAGIC.
+	**/
+	public static boolean isMapped( String filename ) {
+
+		byte head[] = new byte[MAGIC.length];
+		try {
+			DataInputStream datainputstream = new DataInputStream( new FileInputStream( filename ) );
+			try {
+				datainputstream.readFully( head );
+			} finally {
+				datainputstream.close();
+			}
+		} catch( IOException ioexception ) {
+			return false;
+		}
+
+		for( int i = 0; i < MAGIC.length; i++ )
+			if( head[i]!=MAGIC[i] )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Projete le fichier pour un nombre d'emplacements donne.
+	 * @param n Le nombre d'emplacements.
+	**/
+	private void map( int n ) throws IOException {
+		capacity = n;
+		buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) n * RECORD );
+		buffer.order( ByteOrder.BIG_ENDIAN );
+	}
+
+	/**
+	 * Retourne l'emplacement d'un utilisateur.
+	 * @param login Un nom d'utilisateur.
+	 * @return int L'emplacement, -1 si pas trouve.
+	**/
+	public synchronized int find( String login ) {
+		Integer slot = index.get( login );
+		return slot==null ? -1 : slot.intValue();
+	}
+
+	/**
+	 * Lit un utilisateur.
+	 * @param login Un nom d'utilisateur.
+	 * @return OTPUser L'utilisateur, null si pas trouve.
+	**/
+	public synchronized OTPUser read( String login ) {
+
+		Integer slot = index.get( login );
+		if( slot==null )
+			return null;
+
+		int pos = HEADER + slot.intValue() * RECORD;
+		byte seed[] = new byte[buffer.get( pos + OFF_SEED_LEN )];
+		buffer.get( pos + OFF_SEED, seed );
+
+		OTPUser user = new OTPUser( login,
+			ALGOS[buffer.get( pos + OFF_ALGO )],
+			buffer.getInt( pos + OFF_SEQUENCE ),
+			new String( seed, StandardCharsets.US_ASCII ),
+			null );
+		user.getHash().setValue( buffer.getLong( pos + OFF_HASH ) );
+		user.setDate( new Date( buffer.getLong( pos + OFF_ACCESS ) ) );
+		return user;
+	}
+
+	/**
+	 * Ecrit un utilisateur complet, a sa place s'il existe deja,
+	 * sinon dans un emplacement libre ( le fichier grandit si besoin ).
+	 * @param user Un objet OTPUser.
+	 * @return boolean False si le login ou la semence est trop long.
+	**/
+	public synchronized boolean put( OTPUser user ) throws IOException {
+
+		byte login[] = user.getLogin().getBytes( StandardCharsets.UTF_8 );
+		byte seed[] = user.getHash().getSeed().getBytes( StandardCharsets.US_ASCII );
+		int algo = algo( OTPFactory.getHashID( user.getHash() ) );
+		if( login.length>LOGIN_MAX || seed.length>SEED_MAX || algo<0 )
+			return false;
+
+		Integer slot = index.get( user.getLogin() );
+		if( slot==null ) {
+			slot = free.poll();
+			if( slot==null ) {
+				if( slots==capacity )
+					map( capacity * 2 );
+				slot = slots++;
+				buffer.putInt( 12, slots );
+			}
+			index.put( user.getLogin(), slot );
+		}
+
+		int pos = HEADER + slot.intValue() * RECORD;
+		buffer.put( pos + OFF_ALGO, (byte) algo );
+		buffer.put( pos + OFF_LOGIN_LEN, (byte) login.length );
+		buffer.put( pos + OFF_SEED_LEN, (byte) seed.length );
+		buffer.put( pos + OFF_SEED, seed );
+		buffer.put( pos + OFF_LOGIN, login );
+		write( pos, user );
+		buffer.put( pos + OFF_STATE, (byte) 1 );
+		return true;
+	}
+
+	/**
+	 * Met a jour la sequence, le hash et la date d'un utilisateur
+	 * deja present, sans attendre le disque : voir commit().
+	 * L'objet est une copie ( voir OTPDatabase.get() ) : il n'est
+	 * accepte que si sa sequence est plus petite que celle du
+	 * fichier. Une autre copie du meme challenge, deja ecrite, le
+	 * fait donc refuser.
+	 * @param user Un objet OTPUser.
+	 * @return long Le ticket de l'ecriture, -1 si l'utilisateur n'est pas dans le fichier ou a change entre temps.
+	**/
+	public synchronized long update( OTPUser user ) {
+
+		Integer slot = index.get( user.getLogin() );
+		if( slot==null )
+			return -1;
+
+		int pos = HEADER + slot.intValue() * RECORD;
+		if( user.getHash().getSequence()>=buffer.getInt( pos + OFF_SEQUENCE ) )
+			return -1;
+
+		write( pos, user );
+		return durability.written();
+	}
+
+	/**
+	 * Retourne un ticket couvrant toutes les ecritures deja faites.
+	 * @return long Le ticket.
+	**/
+	public synchronized long mark() {
+		return durability.written();
+	}
+
+	/**
+	 * Attend que la garantie de durabilite d'une ecriture soit atteinte.
+	 * @param ticket Un ticket retourne par update() ou mark().
+	 * @return boolean False si le fsync a echoue.
+	**/
+	public boolean commit( long ticket ) {
+		return ticket>=0 && durability.commit( ticket );
+	}
+
+	/**
+	 * Ecrit la sequence, le hash et la date d'un enregistrement.
+	 * @param pos La position de l'enregistrement.
+	 * @param user Un objet OTPUser.
+	**/
+	private void write( int pos, OTPUser user ) {
+		OTPHash hash = user.getHash();
+		synchronized( hash ) {
+			buffer.putInt( pos + OFF_SEQUENCE, hash.getSequence() );
+			buffer.putLong( pos + OFF_HASH, hash.getValue() );
+		}
+		buffer.putLong( pos + OFF_ACCESS, user.getDate().getTime() );
+	}
+
+	/**
+	 * Supprime un utilisateur : son emplacement est libere.
+	 * @param login Un nom d'utilisateur.
+	 * @return boolean True si l'utilisateur a ete supprime.
+	**/
+	public synchronized boolean remove( String login ) {
+
+		Integer slot = index.remove( login );
+		if( slot==null )
+			return false;
+
+		buffer.put( HEADER + slot.intValue() * RECORD + OFF_STATE, (byte) 0 );
+		free.add( slot );
+		return true;
+	}
+
+	/**
+	 * Retourne tous les logins du fichier.
+	 * @return List Les logins.
+	**/
+	public synchronized List<String> logins() {
+		return new ArrayList<String>( index.keySet() );
+	}
+
+	/**
+	 * Retourne un login quelconque du fichier.
+	 * @return String Un login, null si vide.
+	**/
+	public synchronized String first() {
+		return index.isEmpty() ? null : index.keySet().iterator().next();
+	}
+
+	/**
+	 * Force toute la projection sur le disque. Appele par
+	 * OTPDurability, hors du verrou : les ecritures continuent.
+	**/
+	public void force() throws IOException {
+		buffer.force();
+	}
+
+	/**
+	 * Force la projection et ferme le fichier.
+	**/
+	public synchronized void close() {
+
+		try {
+			buffer.force();
+			channel.close();
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPMappedStore] close : " + ioexception );
+		}
+	}
+
+	/**
+	 * Retourne le code d'un algorithme.
+	 * @param hashid Un HASHID de OTPFactory.
+	 * @return int Le code, -1 si inconnu.
+	**/
+	static int algo( String hashid ) {
+		for( int i = 0; i < ALGOS.length; i++ )
+			if( ALGOS[i].equals( hashid ) )
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Convertit un fichier d'utilisateurs vers l'autre format :
+	 * texte ( OTPUser.toString() ) vers binaire, ou binaire vers texte.
+	 * @param from Le fichier source.
+	 * @param to Le fichier destination, ecrase s'il existe.
+	 * @return int Le nombre d'utilisateurs convertis.
+	**/
+	public static int convert( String from, String to ) throws IOException {
+
+		int n = 0;
+		Files.deleteIfExists( Paths.get( to ) );
+
+		if( isMapped( from ) ) {
+			OTPMappedStore store = new OTPMappedStore( from );
+			PrintWriter bufferwriter = new PrintWriter(
+					new BufferedWriter( new FileWriter( to ) ) );
+			try {
+				for( String login : store.index.keySet() ) {
+					bufferwriter.println( store.read( login ).toString() );
+					n++;
+				}
+			} finally {
+				bufferwriter.close();
+				store.close();
+			}
+			return n;
+		}
+
+		String ligne;
+		OTPMappedStore store = new OTPMappedStore( to );
+		BufferedReader bufferreader = new BufferedReader( new FileReader( from ) );
+		try {
+			while( ( ligne = bufferreader.readLine() )!=null ) {
+				OTPUser user = new OTPUser( ligne );
+				if( !store.put( user ) )
+					throw new IOException( "Utilisateur " + user.getLogin() + " non convertible." );
+				n++;
+			}
+		} finally {
+			bufferreader.close();
+			store.close();
+		}
+		return n;
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le nom du fichier.
+	 * @return String Le nom du fichier.
+	**/
+	public String getFileName() { return nomFichier; }
+
+	/**
+	 * Retourne le nombre d'utilisateurs.
+	 * @return int Le nombre d'utilisateurs.
+	**/
+	public synchronized int size() { return index.size(); }
+
+	/**
+	 * Retourne la politique de durabilite du fichier.
+	 * @return OTPDurability La politique de durabilite.
+	**/
+	public OTPDurability getDurability() { return durability; }
+
+}
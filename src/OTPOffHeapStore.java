@@ -0,0 +1,1227 @@
+package otp;
+
+import otp.hash.OTPHash;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Stockage des utilisateurs OTP hors du tas Java : les
+ * enregistrements et l'index sont dans un fichier projete en
+ * memoire, et rien n'est lu au demarrage. Le fichier contient :
+ * <pre>
+ *  0  MAGIC                         8  taille d'un enregistrement
+ * 12  nombre d'emplacements        16  nombre de cases de l'index
+ * 20  emplacements utilises        24  nombre d'utilisateurs
+ * 28  premier emplacement libre    32  fichier ferme proprement ( 1 )
+ * 36  version de la structure
+ * HEADER    l'index : une table a adressage ouvert d'entiers
+ *           ( emplacement + 1, 0 si la case est vide )
+ * ensuite   les enregistrements, de RECORD octets :
+ *  0  version ( int )               4  sequence ( int )
+ *  8  hash ( long )                16  dernier acces ( long, ms )
+ * 24  etat                         25  algorithme, bit DEFINED
+ * 26  longueur du login            27  longueur de la semence
+ * 28  semence ( SEED_MAX octets )  44  login ( LOGIN_MAX octets )
+ * 72  processus de l'ecriture en cours ( long, 0 si aucune )
+ * </pre>
+ * Plusieurs serveurs ( plusieurs JVM ) peuvent ouvrir le meme
+ * fichier : chacun le projette, et voit les ecritures des autres.
+ * La sequence et le hash d'un enregistrement sont modifies sans
+ * verrou : l'ecrivain prend l'enregistrement par un compare-and-set
+ * ( VarHandle ) de son processus, puis rend sa version impaire le
+ * temps de l'ecriture ; un lecteur relit l'enregistrement si la
+ * version a change pendant sa lecture. Un enregistrement n'est repris
+ * a son ecrivain que si son processus n'existe plus.
+ * Les ajouts et suppressions, qui touchent l'index, prennent le
+ * verrou d'ecriture du stockage, et un verrou sur le fichier
+ * fichier.lock ( FileChannel.lock() ) pour exclure les autres
+ * serveurs. Ils rendent impaire la version de la structure : un
+ * lecteur qui la voit changer recommence sa recherche.
+ * Quand le fichier est plein, il est recopie dans un fichier deux
+ * fois plus grand, dans la limite d'une projection ( 2 Go, environ
+ * 23 millions d'utilisateurs ) ; les autres serveurs le projettent
+ * a nouveau quand ils le remarquent.
+ * Apres un arret brutal ( fichier non ferme proprement par le
+ * dernier serveur, ou structure laissee impaire ), l'index est
+ * reconstruit a partir des enregistrements. Un seul objet
+ * OTPOffHeapStore par fichier et par JVM.
+ * Le tas ne contient que les objets OTPUser rendus par get().
+ *
+ * @version 0.2
+**/
+
+public class OTPOffHeapStore implements OTPStore, OTPDurability.Target {
+
+	/** Les premiers octets d'un fichier hors tas. **/
+	public static final byte MAGIC[] = { 'O', 'T', 'P', 'D', 'B', 0, 0, 2 };
+	/** Taille de l'entete. **/
+	public static final int HEADER = 64;
+	/** Taille d'un enregistrement. **/
+	public static final int RECORD = 80;
+	/** Taille maximale d'un login, en octets UTF-8. **/
+	public static final int LOGIN_MAX = 28;
+	/** Taille maximale d'une semence. **/
+	public static final int SEED_MAX = 16;
+
+	private static final int H_RECORD = 8;
+	private static final int H_CAPACITY = 12;
+	private static final int H_BUCKETS = 16;
+	private static final int H_SLOTS = 20;
+	private static final int H_COUNT = 24;
+	private static final int H_FREE = 28;
+	private static final int H_CLEAN = 32;
+	private static final int H_MODS = 36;
+
+	private static final int OFF_VERSION = 0;
+	private static final int OFF_SEQUENCE = 4;
+	private static final int OFF_HASH = 8;
+	private static final int OFF_ACCESS = 16;
+	private static final int OFF_STATE = 24;
+	private static final int OFF_ALGO = 25;
+	private static final int OFF_LOGIN_LEN = 26;
+	private static final int OFF_SEED_LEN = 27;
+	private static final int OFF_SEED = 28;
+	private static final int OFF_LOGIN = 44;
+	private static final int OFF_OWNER = 72;
+
+	/** Bit de l'octet algorithme : le hash est defini. **/
+	private static final int DEFINED = 0x80;
+	/** Bits de l'octet algorithme : le code de l'algorithme. **/
+	private static final int ALGO = 0x7f;
+
+	/** Octet de fichier.lock verrouille pendant un changement de structure. **/
+	private static final int LOCK_STRUCTURE = 0;
+	/** Octet de fichier.lock verrouille ( partage ) tant que le fichier est ouvert. **/
+	private static final int LOCK_OPEN = 1;
+	/** Nombre d'attentes actives avant de ceder le processeur. **/
+	private static final int SPINS = 1000;
+	/** Duree d'attente d'une ecriture avant de verifier que son processus existe, en ns. **/
+	private static final long ABANDONED = TimeUnit.SECONDS.toNanos( 5 );
+	/** Le processus courant, proprietaire de ses ecritures. **/
+	private static final long PID = ProcessHandle.current().pid();
+
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle( int[].class, ByteOrder.LITTLE_ENDIAN );
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle( long[].class, ByteOrder.LITTLE_ENDIAN );
+
+	/** Le nom de fichier. **/
+	private String nomFichier;
+	/** Le canal du fichier. **/
+	private FileChannel channel;
+	/** L'identite du fichier projete ( voir refresh() ). **/
+	private Object fileKey;
+	/** Le canal de fichier.lock. **/
+	private FileChannel locks;
+	/** Le verrou partage tenu tant que le fichier est ouvert. **/
+	private FileLock opened;
+	/** La projection du fichier. **/
+	private volatile MappedByteBuffer buffer;
+	/** La politique de durabilite. **/
+	private OTPDurability durability;
+	/** Lecture et mise a jour partagees, ajout et suppression exclusifs. **/
+	private ReentrantReadWriteLock lock;
+	/** Nombre d'emplacements. **/
+	private int capacity;
+	/** Nombre de cases de l'index ( une puissance de 2 ). **/
+	private int buckets;
+	/** Position du premier enregistrement. **/
+	private int records;
+	/** Ferme le fichier a l'arret de la JVM. **/
+	private Thread hook;
+
+// Constructeurs
+
+	/**
+	 * Construit un stockage hors tas. Le fichier est ouvert ( ou
+	 * cree ) par loadData().
+	 * @param filename Le nom de fichier.
+	**/
+	public OTPOffHeapStore( String filename ) {
+		nomFichier = filename;
+		durability = new OTPDurability( this );
+		lock = new ReentrantReadWriteLock();
+	}
+
+// Methodes
+
+	/**
+	 * Teste si un fichier est un fichier OTP hors tas.
+	 * @param filename Le nom de fichier.
+	 * @return boolean True si le fichier commence par MAGIC.
+	**/
+	public static boolean isOffHeap( String filename ) {
+
+		byte head[] = new byte[MAGIC.length];
+		try {
+			DataInputStream datainputstream = new DataInputStream( new FileInputStream( filename ) );
+			try {
+				datainputstream.readFully( head );
+			} finally {
+				datainputstream.close();
+			}
+		} catch( IOException ioexception ) {
+			return false;
+		}
+
+		for( int i = 0; i < MAGIC.length; i++ )
+			if( head[i]!=MAGIC[i] )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Projete le fichier, ou le cree vide. Rien n'est lu, sauf si
+	 * aucun autre serveur ne l'a ouvert et qu'il a ete mal ferme :
+	 * l'index est alors reconstruit.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public boolean loadData() {
+
+		lock.writeLock().lock();
+		try {
+			if( channel!=null )
+				close();
+
+			locks = FileChannel.open( Paths.get( nomFichier + ".lock" ),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+			FileLock structure = locks.lock( LOCK_STRUCTURE, 1, false );
+			try {
+				channel = FileChannel.open( Paths.get( nomFichier ),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+				boolean created = channel.size()==0;
+				if( created ) {
+					buffer = create( channel, 1024 );
+					setLayout();
+				} else
+					mapFile();
+				fileKey = key();
+
+				// Seul a ouvrir le fichier : le dernier a pu mal le fermer.
+				FileLock alone = tryLock( LOCK_OPEN );
+				if( alone!=null ) {
+					if( !created && ( buffer.getInt( H_CLEAN )!=1 || ( buffer.getInt( H_MODS ) & 1 )!=0 ) )
+						rebuild( true );
+					buffer.putInt( H_CLEAN, 0 );
+					buffer.force();
+					alone.release();
+				}
+				opened = locks.lock( LOCK_OPEN, 1, true );
+			} finally {
+				structure.release();
+			}
+
+			if( hook==null ) {
+				hook = new Thread( this::close, "OTPOffHeapStore-close" );
+				Runtime.getRuntime().addShutdownHook( hook );
+			}
+			return true;
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPOffHeapStore] loadData : " + ioexception );
+			closeChannels();
+			return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Chaque modification est deja ecrite dans la projection :
+	 * elle est forcee sur le disque.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public boolean saveData() {
+		try {
+			force();
+			return true;
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPOffHeapStore] saveData : " + ioexception );
+			return false;
+		}
+	}
+
+	public boolean add( OTPUser user ) {
+
+		byte login[] = user.getLogin().getBytes( StandardCharsets.UTF_8 );
+		byte seed[] = user.getHash().getSeed().getBytes( StandardCharsets.US_ASCII );
+		int algo = OTPMappedStore.algo( OTPFactory.getHashID( user.getHash() ) );
+		if( login.length>LOGIN_MAX || seed.length>SEED_MAX || algo<0 )
+			return false;
+
+		FileLock structure = null;
+		lock.writeLock().lock();
+		try {
+			structure = lockStructure();
+			if( find( login )>=0 )
+				return false;
+
+			startChange();
+			try {
+				int count = buffer.getInt( H_COUNT );
+				int slots = buffer.getInt( H_SLOTS );
+				int free = buffer.getInt( H_FREE );
+				if( free==0 && slots==capacity || ( count + 1 ) * 3>buckets * 2 ) {
+					grow();
+					slots = buffer.getInt( H_SLOTS );
+				}
+
+				// Un emplacement libre est repris, sinon le suivant.
+				int slot;
+				if( free!=0 ) {
+					slot = free - 1;
+					buffer.putInt( H_FREE, buffer.getInt( record( slot ) + OFF_SEQUENCE ) );
+				} else {
+					slot = slots;
+					buffer.putInt( H_SLOTS, slots + 1 );
+				}
+
+				int pos = record( slot );
+				OTPHash hash = user.getHash();
+				synchronized( hash ) {
+					buffer.putInt( pos + OFF_SEQUENCE, hash.getSequence() );
+					buffer.putLong( pos + OFF_HASH, hash.getValue() );
+					buffer.put( pos + OFF_ALGO, (byte) ( hash.isDefined() ? algo | DEFINED : algo ) );
+				}
+				buffer.putLong( pos + OFF_ACCESS, user.getDate().getTime() );
+				buffer.put( pos + OFF_LOGIN_LEN, (byte) login.length );
+				buffer.put( pos + OFF_SEED_LEN, (byte) seed.length );
+				buffer.put( pos + OFF_SEED, seed );
+				buffer.put( pos + OFF_LOGIN, login );
+				buffer.put( pos + OFF_STATE, (byte) 1 );
+
+				insert( buffer, slot, login );
+				buffer.putInt( H_COUNT, count + 1 );
+				return true;
+			} finally {
+				endChange();
+			}
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPOffHeapStore] add : " + ioexception );
+			return false;
+		} finally {
+			unlockStructure( structure );
+			lock.writeLock().unlock();
+		}
+	}
+
+	public boolean contains( String username ) {
+
+		byte login[] = username.getBytes( StandardCharsets.UTF_8 );
+		while( true ) {
+			lock.readLock().lock();
+			try {
+				MappedByteBuffer buffer = this.buffer;
+				int mods = begin( buffer );
+				if( mods>=0 ) {
+					boolean found = find( login )>=0;
+					if( end( buffer, mods ) )
+						return found;
+					continue;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if( !recover() )
+				return false;
+		}
+	}
+
+	/**
+	 * Supprime un utilisateur : il est retire de l'index, et son
+	 * emplacement est libere. La suppression est ecrite dans la
+	 * projection ; write() ou saveData() la forcent sur le disque.
+	**/
+	public OTPUser delete( String username ) {
+
+		byte login[] = username.getBytes( StandardCharsets.UTF_8 );
+		FileLock structure = null;
+		lock.writeLock().lock();
+		try {
+			structure = lockStructure();
+			int slot = find( login );
+			if( slot<0 )
+				return null;
+
+			startChange();
+			try {
+				// Attend la fin d'une ecriture d'un autre serveur.
+				int pos = record( slot );
+				int version = acquire( buffer, pos );
+				OTPUser user = read( buffer, pos, username, true );
+				remove( slot, login );
+
+				buffer.put( pos + OFF_STATE, (byte) 0 );
+				buffer.putInt( pos + OFF_SEQUENCE, buffer.getInt( H_FREE ) );
+				release( buffer, pos, version + 2 );
+				buffer.putInt( H_FREE, slot + 1 );
+				buffer.putInt( H_COUNT, buffer.getInt( H_COUNT ) - 1 );
+				return user;
+			} finally {
+				endChange();
+			}
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPOffHeapStore] delete : " + ioexception );
+			return null;
+		} finally {
+			unlockStructure( structure );
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Retourne un utilisateur : un nouvel objet, lu dans la
+	 * projection a chaque demande.
+	**/
+	public OTPUser get( String username ) {
+
+		byte login[] = username.getBytes( StandardCharsets.UTF_8 );
+		while( true ) {
+			lock.readLock().lock();
+			try {
+				MappedByteBuffer buffer = this.buffer;
+				int mods = begin( buffer );
+				if( mods>=0 ) {
+					int slot = find( login );
+					OTPUser user = slot<0 ? null : read( buffer, record( slot ), username, false );
+					if( end( buffer, mods ) )
+						return user;
+					continue;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if( !recover() )
+				return null;
+		}
+	}
+
+	public OTPUser getFirst() {
+		List<OTPUser> users = scan( true );
+		return users.isEmpty() ? null : users.get( 0 );
+	}
+
+	public List<OTPUser> getUsers() {
+		return scan( false );
+	}
+
+	public boolean isEmpty() {
+		return size()==0;
+	}
+
+	/**
+	 * Ecrit la sequence, le hash et la date d'un utilisateur dans
+	 * son enregistrement. L'objet vient d'un get() : il n'est accepte
+	 * que si sa semence et son algorithme sont ceux de l'enregistrement,
+	 * et si sa sequence est strictement plus petite. Une autre copie
+	 * ( de ce serveur ou d'un autre ) qui a deja ecrit cette sequence
+	 * fait donc echouer l'ecriture : une meme reponse ne connecte
+	 * qu'une fois. Un utilisateur supprime n'a rien a ecrire.
+	 * @param user L'objet OTPUser modifie.
+	 * @return long Le ticket a passer a commit(), -1 si l'utilisateur a change entre temps.
+	**/
+	public long write( OTPUser user ) {
+
+		OTPHash hash = user.getHash();
+		int seq;
+		long h;
+		boolean defined;
+		synchronized( hash ) {
+			seq = hash.getSequence();
+			h = hash.getValue();
+			defined = hash.isDefined();
+		}
+
+		byte login[] = user.getLogin().getBytes( StandardCharsets.UTF_8 );
+		while( true ) {
+			lock.readLock().lock();
+			try {
+				MappedByteBuffer buffer = this.buffer;
+				int mods = begin( buffer );
+				if( mods>=0 ) {
+					int slot = find( login );
+					if( slot<0 ) {
+						if( end( buffer, mods ) )
+							return durability.written();
+						continue;
+					}
+
+					int pos = record( slot );
+					int version = acquire( buffer, pos );
+					if( !end( buffer, mods ) ) {
+						release( buffer, pos, version );
+						continue;
+					}
+					boolean storedDefined = ( buffer.get( pos + OFF_ALGO ) & DEFINED )!=0;
+					if( !sameChain( buffer, pos, hash ) || seq>=buffer.getInt( pos + OFF_SEQUENCE ) ) {
+						release( buffer, pos, version );
+						return -1;
+					}
+					buffer.putInt( pos + OFF_SEQUENCE, seq );
+					buffer.putLong( pos + OFF_HASH, h );
+					if( defined && !storedDefined )
+						buffer.put( pos + OFF_ALGO, (byte) ( buffer.get( pos + OFF_ALGO ) | DEFINED ) );
+					buffer.putLong( pos + OFF_ACCESS, user.getDate().getTime() );
+					release( buffer, pos, version + 2 );
+
+					return durability.written();
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if( !recover() )
+				return -1;
+		}
+	}
+
+	public boolean commit( long ticket ) {
+		return ticket>=0 && durability.commit( ticket );
+	}
+
+	public boolean update( OTPUser user ) {
+		return commit( write( user ) );
+	}
+
+	public boolean compareAndUpdate( String username, int seq, long expected, int newSeq, long newHash ) {
+
+		byte login[] = username.getBytes( StandardCharsets.UTF_8 );
+		long ticket = -1;
+		while( ticket<0 ) {
+			lock.readLock().lock();
+			try {
+				MappedByteBuffer buffer = this.buffer;
+				int mods = begin( buffer );
+				if( mods>=0 ) {
+					int slot = find( login );
+					if( slot<0 ) {
+						if( end( buffer, mods ) )
+							return false;
+						continue;
+					}
+
+					int pos = record( slot );
+					int version = acquire( buffer, pos );
+					if( !end( buffer, mods ) ) {
+						release( buffer, pos, version );
+						continue;
+					}
+					if( ( buffer.get( pos + OFF_ALGO ) & DEFINED )==0 || buffer.getInt( pos + OFF_SEQUENCE )!=seq
+							|| buffer.getLong( pos + OFF_HASH )!=expected ) {
+						release( buffer, pos, version );
+						return false;
+					}
+					buffer.putInt( pos + OFF_SEQUENCE, newSeq );
+					buffer.putLong( pos + OFF_HASH, newHash );
+					release( buffer, pos, version + 2 );
+					ticket = durability.written();
+					continue;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if( !recover() )
+				return false;
+		}
+
+		return commit( ticket );
+	}
+
+	public void setDurability( int mode, long delay, int batch ) {
+		durability.configure( mode, delay, batch );
+	}
+
+	/**
+	 * Force toute la projection sur le disque. Appele par
+	 * OTPDurability, hors du verrou : les ecritures continuent.
+	**/
+	public void force() throws IOException {
+		MappedByteBuffer buffer = this.buffer;
+		if( buffer!=null )
+			buffer.force();
+	}
+
+	/**
+	 * Force la projection et ferme le fichier. Le dernier serveur
+	 * a le fermer le marque ferme proprement. Appele aussi a
+	 * l'arret de la JVM.
+	**/
+	public void close() {
+
+		lock.writeLock().lock();
+		try {
+			if( channel==null )
+				return;
+			buffer.force();
+
+			FileLock structure = locks.lock( LOCK_STRUCTURE, 1, false );
+			try {
+				refresh();
+				opened.release();
+				FileLock alone = tryLock( LOCK_OPEN );
+				if( alone!=null ) {
+					buffer.putInt( H_CLEAN, 1 );
+					buffer.force();
+					alone.release();
+				}
+			} finally {
+				structure.release();
+			}
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPOffHeapStore] close : " + ioexception );
+		} finally {
+			closeChannels();
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Ferme les canaux ( et libere les verrous de fichier ).
+	**/
+	private void closeChannels() {
+
+		try {
+			if( channel!=null )
+				channel.close();
+			if( locks!=null )
+				locks.close();
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPOffHeapStore] close : " + ioexception );
+		}
+		channel = null;
+		locks = null;
+		opened = null;
+		buffer = null;
+	}
+
+	/**
+	 * Prend le verrou de fichier des changements de structure. Une
+	 * structure impaire est alors celle d'un fichier remplace par un
+	 * autre serveur ( grow() ) : le fichier courant est projete ; ou
+	 * celle d'un serveur arrete pendant un changement : elle est
+	 * reparee. Appele sous le verrou d'ecriture.
+	 * @return FileLock Le verrou, a passer a unlockStructure().
+	**/
+	private FileLock lockStructure() throws IOException {
+
+		FileLock structure = locks.lock( LOCK_STRUCTURE, 1, false );
+		try {
+			if( ( buffer.getInt( H_MODS ) & 1 )!=0 ) {
+				refresh();
+				if( ( buffer.getInt( H_MODS ) & 1 )!=0 )
+					rebuild( false );
+			}
+			return structure;
+		} catch( IOException ioexception ) {
+			structure.release();
+			throw ioexception;
+		}
+	}
+
+	private void unlockStructure( FileLock structure ) {
+
+		if( structure==null )
+			return;
+		try {
+			structure.release();
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPOffHeapStore] unlockStructure : " + ioexception );
+		}
+	}
+
+	/**
+	 * Appele par un lecteur qui a vu la structure changer trop
+	 * longtemps : attend la fin du changement en prenant le verrou
+	 * de fichier, et projette le fichier courant si besoin.
+	 * @return boolean False si le fichier ne peut plus etre lu.
+	**/
+	private boolean recover() {
+
+		lock.writeLock().lock();
+		try {
+			if( channel==null )
+				return false;
+			unlockStructure( lockStructure() );
+			return true;
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPOffHeapStore] recover : " + ioexception );
+			return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Projette a nouveau le fichier s'il n'est plus celui projete.
+	**/
+	private void refresh() throws IOException {
+
+		if( key().equals( fileKey ) )
+			return;
+		channel.close();
+		channel = FileChannel.open( Paths.get( nomFichier ), StandardOpenOption.READ, StandardOpenOption.WRITE );
+		mapFile();
+		fileKey = key();
+	}
+
+	/**
+	 * Projette le fichier ouvert, apres avoir verifie son entete.
+	**/
+	private void mapFile() throws IOException {
+
+		if( !isOffHeap( nomFichier ) )
+			throw new IOException( nomFichier + " n'est pas un fichier OTP hors tas"
+				+ " ( voir MyOTPConvert -offheap )." );
+		MappedByteBuffer header = map( channel, (int) Math.min( channel.size(), HEADER ) );
+		if( header.getInt( H_RECORD )!=RECORD )
+			throw new IOException( nomFichier + " : taille d'enregistrement inconnue." );
+		buffer = map( channel, size( header.getInt( H_CAPACITY ), header.getInt( H_BUCKETS ) ) );
+		setLayout();
+	}
+
+	private Object key() throws IOException {
+		return Files.readAttributes( Paths.get( nomFichier ), BasicFileAttributes.class ).fileKey();
+	}
+
+	/**
+	 * Essaie de prendre un octet de fichier.lock en exclusif.
+	 * @return FileLock Le verrou, null s'il est tenu par un autre serveur.
+	**/
+	private FileLock tryLock( int position ) throws IOException {
+		try {
+			return locks.tryLock( position, 1, false );
+		} catch( OverlappingFileLockException overlappingfilelockexception ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Debut d'un changement de structure : sa version devient impaire.
+	**/
+	private void startChange() {
+		INT.setVolatile( buffer, H_MODS, buffer.getInt( H_MODS ) + 1 );
+		VarHandle.fullFence();
+	}
+
+	/**
+	 * Fin d'un changement de structure : sa version redevient paire.
+	**/
+	private void endChange() {
+		INT.setRelease( buffer, H_MODS, buffer.getInt( H_MODS ) + 1 );
+	}
+
+	/**
+	 * Debut d'une lecture sans verrou de fichier : attend que la
+	 * structure ne change pas.
+	 * @return int La version paire de la structure, -1 si elle change
+	 * depuis trop longtemps ( voir recover() ).
+	**/
+	private static int begin( MappedByteBuffer buffer ) {
+
+		for( int spins = 0; spins < SPINS; spins++ ) {
+			int mods = (int) INT.getAcquire( buffer, H_MODS );
+			if( ( mods & 1 )==0 )
+				return mods;
+			Thread.onSpinWait();
+		}
+		return -1;
+	}
+
+	/**
+	 * Fin d'une lecture : la structure n'a pas change depuis begin().
+	**/
+	private static boolean end( MappedByteBuffer buffer, int mods ) {
+		VarHandle.acquireFence();
+		return (int) INT.getVolatile( buffer, H_MODS )==mods;
+	}
+
+	/**
+	 * Attend que la version d'un enregistrement soit paire.
+	 * @return int La version paire.
+	**/
+	private static int settle( MappedByteBuffer buffer, int pos ) {
+
+		int spins = 0;
+		long deadline = 0;
+		while( true ) {
+			int version = (int) INT.getAcquire( buffer, pos + OFF_VERSION );
+			if( ( version & 1 )==0 )
+				return version;
+			deadline = pause( buffer, pos, ++spins, deadline );
+		}
+	}
+
+	/**
+	 * Prend un enregistrement pour l'ecrire : son processus y est mis
+	 * par compare-and-set, puis sa version est rendue impaire.
+	 * @return int La version paire prise.
+	**/
+	private static int acquire( MappedByteBuffer buffer, int pos ) {
+
+		int spins = 0;
+		long deadline = 0;
+		while( true ) {
+			if( LONG.compareAndSet( buffer, pos + OFF_OWNER, 0L, PID ) ) {
+				int version = (int) INT.getVolatile( buffer, pos + OFF_VERSION );
+				INT.setVolatile( buffer, pos + OFF_VERSION, version + 1 );
+				return version;
+			}
+			deadline = pause( buffer, pos, ++spins, deadline );
+		}
+	}
+
+	/**
+	 * Rend un enregistrement pris par acquire().
+	 * @param version La nouvelle version, paire.
+	**/
+	private static void release( MappedByteBuffer buffer, int pos, int version ) {
+		INT.setRelease( buffer, pos + OFF_VERSION, version );
+		LONG.setRelease( buffer, pos + OFF_OWNER, 0L );
+	}
+
+	/**
+	 * Attend un enregistrement pris par une ecriture. Toutes les
+	 * ABANDONED ns, le processus de l'ecriture est cherche : s'il
+	 * n'existe plus, l'enregistrement lui est repris, et sa version
+	 * rendue paire. L'ecriture d'un processus en vie ( en pause, ou
+	 * arrete par un signal ), ou de ce processus, est toujours attendue.
+	 * @param spins Le nombre d'attentes deja faites.
+	 * @param deadline La prochaine recherche du processus, 0 au debut.
+	 * @return long La prochaine recherche du processus.
+	**/
+	private static long pause( MappedByteBuffer buffer, int pos, int spins, long deadline ) {
+
+		if( spins<SPINS ) {
+			Thread.onSpinWait();
+			return deadline;
+		}
+		Thread.yield();
+
+		long now = System.nanoTime();
+		if( deadline==0 )
+			return now + ABANDONED;
+		if( now - deadline<0 )
+			return deadline;
+
+		long owner = (long) LONG.getAcquire( buffer, pos + OFF_OWNER );
+		if( owner!=0 && owner!=PID && !ProcessHandle.of( owner ).map( ProcessHandle::isAlive ).orElse( false )
+				&& LONG.compareAndSet( buffer, pos + OFF_OWNER, owner, PID ) ) {
+			System.out.println( "[OTPOffHeapStore] settle : ecriture abandonnee par le processus "
+				+ owner + " en " + pos );
+			int version = (int) INT.getVolatile( buffer, pos + OFF_VERSION );
+			release( buffer, pos, ( version + 1 ) & ~1 );
+		}
+		return now + ABANDONED;
+	}
+
+	/**
+	 * Construit l'objet OTPUser d'un enregistrement. La sequence, le
+	 * hash et la date sont relus tant qu'une ecriture les change.
+	 * @param pos La position de l'enregistrement.
+	 * @param login Le login s'il est connu, sinon null.
+	 * @param owned True si l'appelant tient deja la version.
+	 * @return OTPUser Un nouvel objet.
+	**/
+	private static OTPUser read( MappedByteBuffer buffer, int pos, String login, boolean owned ) {
+
+		if( login==null )
+			login = new String( login( buffer, pos ), StandardCharsets.UTF_8 );
+		byte seed[] = new byte[buffer.get( pos + OFF_SEED_LEN )];
+		buffer.get( pos + OFF_SEED, seed );
+
+		int version, seq, algo;
+		long h, time;
+		do {
+			version = owned ? 0 : settle( buffer, pos );
+			seq = buffer.getInt( pos + OFF_SEQUENCE );
+			h = buffer.getLong( pos + OFF_HASH );
+			time = buffer.getLong( pos + OFF_ACCESS );
+			algo = buffer.get( pos + OFF_ALGO );
+			VarHandle.acquireFence();
+		} while( !owned && (int) INT.getVolatile( buffer, pos + OFF_VERSION )!=version );
+
+		OTPUser user = new OTPUser( login, OTPMappedStore.ALGOS[algo & ALGO], seq,
+			new String( seed, StandardCharsets.US_ASCII ), null );
+		if( ( algo & DEFINED )!=0 )
+			user.getHash().setValue( h );
+		user.setDate( new Date( time ) );
+		return user;
+	}
+
+	/**
+	 * Lit les utilisateurs, en recommencant si un autre serveur
+	 * change la structure pendant la lecture.
+	 * @param first True pour s'arreter au premier.
+	 * @return List Les utilisateurs.
+	**/
+	private List<OTPUser> scan( boolean first ) {
+
+		while( true ) {
+			lock.readLock().lock();
+			try {
+				MappedByteBuffer buffer = this.buffer;
+				int mods = begin( buffer );
+				if( mods>=0 ) {
+					int slots = buffer.getInt( H_SLOTS );
+					List<OTPUser> users = new ArrayList<OTPUser>( first ? 1 : buffer.getInt( H_COUNT ) );
+					for( int slot = 0; slot < slots && !( first && users.size()==1 ); slot++ )
+						if( buffer.get( record( slot ) + OFF_STATE )!=0 )
+							users.add( read( buffer, record( slot ), null, false ) );
+					if( end( buffer, mods ) )
+						return users;
+					continue;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+			if( !recover() )
+				return new ArrayList<OTPUser>();
+		}
+	}
+
+	/**
+	 * Teste si un objet OTPHash est sur la meme chaine ( semence et
+	 * algorithme ) que l'enregistrement d'une position. La semence
+	 * et l'algorithme ne changent pas tant que l'utilisateur existe.
+	**/
+	private static boolean sameChain( MappedByteBuffer buffer, int pos, OTPHash hash ) {
+
+		if( OTPMappedStore.algo( OTPFactory.getHashID( hash ) )!=( buffer.get( pos + OFF_ALGO ) & ALGO ) )
+			return false;
+		byte seed[] = hash.getSeed().getBytes( StandardCharsets.US_ASCII );
+		if( buffer.get( pos + OFF_SEED_LEN )!=seed.length )
+			return false;
+		for( int i = 0; i < seed.length; i++ )
+			if( buffer.get( pos + OFF_SEED + i )!=seed[i] )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Cherche un login dans l'index. Si un autre serveur change
+	 * l'index en meme temps, le resultat est faux, mais la recherche
+	 * se termine : l'appelant la recommence ( voir end() ).
+	 * @param login Le login, en octets UTF-8.
+	 * @return int L'emplacement, -1 si pas trouve.
+	**/
+	private int find( byte login[] ) {
+
+		MappedByteBuffer buffer = this.buffer;
+		int mask = buckets - 1;
+		int i = hash( login ) & mask;
+		for( int probes = 0; probes < buckets; probes++, i = ( i + 1 ) & mask ) {
+			int entry = buffer.getInt( HEADER + i * 4 );
+			if( entry==0 )
+				return -1;
+			if( entry<=capacity && equals( buffer, record( entry - 1 ), login ) )
+				return entry - 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Ajoute un emplacement a l'index d'une projection.
+	**/
+	private void insert( MappedByteBuffer buffer, int slot, byte login[] ) {
+
+		int mask = buckets - 1;
+		int i = hash( login ) & mask;
+		while( buffer.getInt( HEADER + i * 4 )!=0 )
+			i = ( i + 1 ) & mask;
+		buffer.putInt( HEADER + i * 4, slot + 1 );
+	}
+
+	/**
+	 * Retire un emplacement de l'index. Les cases suivantes de la
+	 * meme suite sont reculees : il n'y a pas de case "supprimee".
+	**/
+	private void remove( int slot, byte login[] ) {
+
+		int mask = buckets - 1;
+		int i = hash( login ) & mask;
+		while( buffer.getInt( HEADER + i * 4 )!=slot + 1 )
+			i = ( i + 1 ) & mask;
+
+		int hole = i;
+		for( int j = ( i + 1 ) & mask; ; j = ( j + 1 ) & mask ) {
+			int entry = buffer.getInt( HEADER + j * 4 );
+			if( entry==0 )
+				break;
+			int home = hash( login( buffer, record( entry - 1 ) ) ) & mask;
+			if( ( ( j - home ) & mask )>=( ( j - hole ) & mask ) ) {
+				buffer.putInt( HEADER + hole * 4, entry );
+				hole = j;
+			}
+		}
+		buffer.putInt( HEADER + hole * 4, 0 );
+	}
+
+	/**
+	 * Recopie le fichier dans un fichier plus grand, avec un nouvel
+	 * index, puis le renomme. Appele pendant un changement de structure.
+	 * L'ancien fichier garde une structure impaire : les autres serveurs
+	 * passent par recover(), et projettent le nouveau.
+	**/
+	private void grow() throws IOException {
+
+		// Deux fois plus grand, ou ce qui tient encore dans 2 Go.
+		long n = capacity * 2L;
+		while( n>capacity && ( n>Integer.MAX_VALUE / RECORD || size( (int) n, buckets( (int) n ) )<0 ) )
+			n = capacity + ( n - capacity ) / 2;
+		if( n==capacity )
+			throw new IOException( nomFichier + " : fichier plein ( " + capacity + " utilisateurs )." );
+
+		int slots = buffer.getInt( H_SLOTS );
+		Path fichier = Paths.get( nomFichier );
+		Path tmp = Paths.get( nomFichier + "." + ProcessHandle.current().pid() + ".tmp" );
+		FileChannel out = FileChannel.open( tmp, StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		MappedByteBuffer old = buffer;
+		int oldRecords = records;
+		MappedByteBuffer grown;
+		try {
+			grown = create( out, (int) n );
+			grown.put( H_SLOTS, old, H_SLOTS, H_CLEAN - H_SLOTS );
+			grown.putInt( H_MODS, old.getInt( H_MODS ) );
+			capacity = (int) n;
+			buckets = grown.getInt( H_BUCKETS );
+			records = HEADER + buckets * 4;
+
+			// Chaque enregistrement est pris : une ecriture d'un autre
+			// serveur deja commencee se termine avant la copie.
+			for( int slot = 0; slot < slots; slot++ ) {
+				int from = oldRecords + slot * RECORD;
+				int version = acquire( old, from );
+				grown.put( record( slot ), old, from, RECORD );
+				grown.putInt( record( slot ) + OFF_VERSION, version );
+				grown.putLong( record( slot ) + OFF_OWNER, 0L );
+				release( old, from, version );
+				if( grown.get( record( slot ) + OFF_STATE )!=0 )
+					insert( grown, slot, login( grown, record( slot ) ) );
+			}
+			grown.force();
+			Files.move( tmp, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		} catch( IOException ioexception ) {
+			out.close();
+			Files.deleteIfExists( tmp );
+			setLayout();
+			throw ioexception;
+		}
+
+		channel.close();
+		channel = out;
+		buffer = grown;
+		fileKey = key();
+	}
+
+	/**
+	 * Reconstruit l'index, le nombre d'utilisateurs et les emplacements
+	 * libres a partir des enregistrements, apres un arret brutal.
+	 * @param alone True si aucun autre serveur n'a ouvert le fichier :
+	 * une ecriture interrompue ( version impaire ) est reprise telle quelle.
+	**/
+	private void rebuild( boolean alone ) {
+
+		System.out.println( "[OTPOffHeapStore] " + nomFichier + ( alone ? " mal ferme" : " : changement interrompu" )
+			+ " : reconstruction de l'index." );
+
+		int mods = buffer.getInt( H_MODS ) | 1;
+		INT.setVolatile( buffer, H_MODS, mods );
+		VarHandle.fullFence();
+
+		for( int i = 0; i < buckets; i++ )
+			buffer.putInt( HEADER + i * 4, 0 );
+
+		int slots = buffer.getInt( H_SLOTS );
+		int count = 0;
+		int free = 0;
+		for( int slot = slots - 1; slot >= 0; slot-- ) {
+			int pos = record( slot );
+			int version = buffer.getInt( pos + OFF_VERSION );
+			if( alone && ( version & 1 )!=0 )
+				buffer.putInt( pos + OFF_VERSION, version + 1 );
+			if( alone )
+				buffer.putLong( pos + OFF_OWNER, 0L );
+			if( buffer.get( pos + OFF_STATE )!=0 && find( login( buffer, pos ) )<0 ) {
+				insert( buffer, slot, login( buffer, pos ) );
+				count++;
+			} else {
+				buffer.put( pos + OFF_STATE, (byte) 0 );
+				buffer.putInt( pos + OFF_SEQUENCE, free );
+				free = slot + 1;
+			}
+		}
+		buffer.putInt( H_COUNT, count );
+		buffer.putInt( H_FREE, free );
+		INT.setRelease( buffer, H_MODS, mods + 1 );
+	}
+
+	/**
+	 * Cree un fichier vide pour n emplacements, et le projete.
+	**/
+	private static MappedByteBuffer create( FileChannel channel, int n ) throws IOException {
+
+		int buckets = buckets( n );
+		MappedByteBuffer buffer = map( channel, size( n, buckets ) );
+		for( int i = 0; i < MAGIC.length; i++ )
+			buffer.put( i, MAGIC[i] );
+		buffer.putInt( H_RECORD, RECORD );
+		buffer.putInt( H_CAPACITY, n );
+		buffer.putInt( H_BUCKETS, buckets );
+		return buffer;
+	}
+
+	private static MappedByteBuffer map( FileChannel channel, int size ) throws IOException {
+		MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+		buffer.order( ByteOrder.LITTLE_ENDIAN );
+		return buffer;
+	}
+
+	/**
+	 * Lit la taille de la projection courante dans son entete.
+	**/
+	private void setLayout() {
+		capacity = buffer.getInt( H_CAPACITY );
+		buckets = buffer.getInt( H_BUCKETS );
+		records = HEADER + buckets * 4;
+	}
+
+	/**
+	 * Retourne le nombre de cases de l'index pour n emplacements :
+	 * l'index est rempli au plus aux deux tiers.
+	**/
+	private static int buckets( int n ) {
+		return Integer.highestOneBit( Math.max( 16, n + n / 2 ) - 1 ) << 1;
+	}
+
+	/**
+	 * Retourne la taille du fichier, -1 si elle depasse 2 Go
+	 * ( la limite d'une projection ).
+	**/
+	private static int size( int n, int buckets ) {
+		long size = HEADER + buckets * 4L + n * (long) RECORD;
+		return size>Integer.MAX_VALUE ? -1 : (int) size;
+	}
+
+	private int record( int slot ) {
+		return records + slot * RECORD;
+	}
+
+	private static byte[] login( MappedByteBuffer buffer, int pos ) {
+		byte login[] = new byte[buffer.get( pos + OFF_LOGIN_LEN )];
+		buffer.get( pos + OFF_LOGIN, login );
+		return login;
+	}
+
+	private static boolean equals( MappedByteBuffer buffer, int pos, byte login[] ) {
+		if( buffer.get( pos + OFF_LOGIN_LEN )!=login.length )
+			return false;
+		for( int i = 0; i < login.length; i++ )
+			if( buffer.get( pos + OFF_LOGIN + i )!=login[i] )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Hash d'un login ( FNV-1a, puis melange des bits ).
+	**/
+	private static int hash( byte b[] ) {
+
+		int h = 0x811c9dc5;
+		for( int i = 0; i < b.length; i++ )
+			h = ( h ^ ( b[i] & 0xff ) ) * 0x01000193;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	/**
+	 * Convertit un fichier d'utilisateurs texte ( OTPUser.toString() )
+	 * en fichier hors tas, ou un fichier hors tas en texte.
+	 * @param from Le fichier source.
+	 * @param to Le fichier destination, ecrase s'il existe.
+	 * @return int Le nombre d'utilisateurs convertis.
+	**/
+	public static int convert( String from, String to ) throws IOException {
+
+		int n = 0;
+		Files.deleteIfExists( Paths.get( to ) );
+
+		if( isOffHeap( from ) ) {
+			OTPOffHeapStore store = new OTPOffHeapStore( from );
+			if( !store.loadData() )
+				throw new IOException( from + " illisible." );
+			PrintWriter bufferwriter = new PrintWriter(
+					new BufferedWriter( new FileWriter( to ) ) );
+			try {
+				for( OTPUser user : store.getUsers() ) {
+					bufferwriter.println( user.toString() );
+					n++;
+				}
+			} finally {
+				bufferwriter.close();
+				store.close();
+			}
+			return n;
+		}
+
+		String ligne;
+		OTPOffHeapStore store = new OTPOffHeapStore( to );
+		if( !store.loadData() )
+			throw new IOException( to + " impossible a creer." );
+		BufferedReader bufferreader = new BufferedReader( new FileReader( from ) );
+		try {
+			while( ( ligne = bufferreader.readLine() )!=null ) {
+				if( ligne.length()==0 )
+					continue;
+				OTPUser user = new OTPUser( ligne );
+				if( !store.add( user ) )
+					throw new IOException( "Utilisateur " + user.getLogin() + " non convertible." );
+				n++;
+			}
+		} finally {
+			bufferreader.close();
+			store.close();
+		}
+		return n;
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le nom du fichier.
+	 * @return String Le nom du fichier.
+	**/
+	public String getFileName() { return nomFichier; }
+
+	/**
+	 * Retourne le nombre d'utilisateurs.
+	 * @return int Le nombre d'utilisateurs.
+	**/
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return buffer==null ? 0 : (int) INT.getVolatile( buffer, H_COUNT );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Retourne la politique de durabilite du fichier.
+	 * @return OTPDurability La politique de durabilite.
+	**/
+	public OTPDurability getDurability() { return durability; }
+
+}
@@ -0,0 +1,782 @@
+package otp;
+
+import otp.hash.OTPHash;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Table compacte des utilisateurs OTP, en memoire.
+ * Un utilisateur n'est pas un objet OTPUser mais un emplacement
+ * dans des tableaux paralleles de types primitifs :
+ * <pre>
+ *  hashes[]     hash ( long )          sequences[]  sequence ( int )
+ *  access[]     dernier acces ( long ) algos[]      algorithme ( byte )
+ *  offsets[]    position du login et de la semence dans arena[]
+ * </pre>
+ * Le login et la semence sont ranges l'un apres l'autre dans un
+ * seul tableau d'octets, chacun precede de sa longueur. L'index
+ * login -> emplacement est une table a adressage ouvert ( sondage
+ * lineaire ) d'entiers. Un utilisateur coute ainsi quelques dizaines
+ * d'octets, sans aucun objet a parcourir pour le ramasse-miettes.
+ * get() construit un nouvel objet OTPUser a chaque demande ; write()
+ * recopie sa sequence, son hash et sa date dans la table, si la
+ * sequence n'est pas plus ancienne que celle de la table.
+ * Le fichier de donnees et le journal sont ceux de OTPDatabase
+ * ( fichier texte, fichier.log ) : on passe d'un stockage a l'autre
+ * sans conversion.
+ *
+ * @version 0.1
+**/
+
+public class OTPPackedStore implements OTPStore {
+
+	/** Taille maximale d'un login ou d'une semence, en octets. **/
+	public static final int STRING_MAX = 255;
+
+	/** Bit de algos[] : le hash est defini. **/
+	private static final int DEFINED = 0x80;
+	/** Bits de algos[] : le code de l'algorithme. **/
+	private static final int ALGO = 0x7f;
+	/** Nombre d'utilisateurs ecrits dans l'instantane par prise du verrou. **/
+	private static final int BATCH = 4096;
+
+	/** Le nom de fichier des donnees. **/
+	private String nomFichier;
+	/** Le journal, null si le stockage n'est pas journalise. **/
+	private OTPJournal journal;
+	/** Un compactage est en cours. **/
+	private AtomicBoolean compacting;
+	/** Protege la table : lecture partagee, modification exclusive. **/
+	private ReentrantReadWriteLock lock;
+
+	/** Par emplacement : position dans arena[], -1 si libre. **/
+	private int offsets[];
+	/** Par emplacement : la sequence. **/
+	private int sequences[];
+	/** Par emplacement : le hash. **/
+	private long hashes[];
+	/** Par emplacement : la date du dernier acces, en ms. **/
+	private long access[];
+	/** Par emplacement : le code de l'algorithme, et le bit DEFINED. **/
+	private byte algos[];
+	/** Nombre d'emplacements utilises ( libres compris ). **/
+	private int slots;
+	/** Nombre d'utilisateurs. **/
+	private int count;
+	/** Les emplacements liberes. **/
+	private int free[];
+	/** Nombre d'emplacements liberes. **/
+	private int freeCount;
+
+	/** Logins et semences. **/
+	private byte arena[];
+	/** Nombre d'octets utilises dans arena[]. **/
+	private int arenaSize;
+	/** Nombre d'octets de arena[] laisses par des utilisateurs supprimes. **/
+	private int garbage;
+
+	/** L'index : emplacement + 1, 0 si la case est vide. **/
+	private int table[];
+
+	/** Nombre d'ecritures refusees, l'utilisateur ayant change entre temps. **/
+	private AtomicLong conflicts;
+
+// Constructeurs
+
+	/**
+	 * Construit une table vide. Le fichier est lu par loadData().
+	 * @param filename Le nom de fichier de donnees.
+	 * @param journaled True pour ecrire les modifications dans un journal.
+	**/
+	public OTPPackedStore( String filename, boolean journaled ) {
+
+		nomFichier = filename;
+		compacting = new AtomicBoolean();
+		lock = new ReentrantReadWriteLock();
+		conflicts = new AtomicLong();
+		clear( 16 );
+
+		if( journaled ) {
+			try {
+				journal = new OTPJournal( filename + OTPDatabase.JOURNAL );
+			} catch( IOException ioexception ) {
+				System.out.println( "[OTPPackedStore] journal : " + ioexception );
+			}
+		}
+	}
+
+// Methodes
+
+	public boolean add( OTPUser user ) {
+
+		lock.writeLock().lock();
+		try {
+			if( !insert( user ) )
+				return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return true;
+	}
+
+	public boolean contains( String username ) {
+
+		byte login[] = username.getBytes( StandardCharsets.UTF_8 );
+		lock.readLock().lock();
+		try {
+			return find( login )>=0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Supprime un utilisateur de la table. Comme pour OTPDatabase,
+	 * la suppression est rendue persistante par write() ou saveData().
+	**/
+	public OTPUser delete( String username ) {
+
+		byte login[] = username.getBytes( StandardCharsets.UTF_8 );
+		lock.writeLock().lock();
+		try {
+			int slot = find( login );
+			if( slot<0 )
+				return null;
+			OTPUser user = read( slot, username );
+			remove( slot, login );
+			return user;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Retourne un utilisateur : un nouvel objet, construit a partir
+	 * de la table a chaque demande.
+	**/
+	public OTPUser get( String username ) {
+
+		byte login[] = username.getBytes( StandardCharsets.UTF_8 );
+		lock.readLock().lock();
+		try {
+			int slot = find( login );
+			return slot<0 ? null : read( slot, username );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public OTPUser getFirst() {
+
+		lock.readLock().lock();
+		try {
+			for( int slot = 0; slot < slots; slot++ )
+				if( offsets[slot]>=0 )
+					return read( slot, null );
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public List<OTPUser> getUsers() {
+
+		lock.readLock().lock();
+		try {
+			List<OTPUser> users = new ArrayList<OTPUser>( count );
+			for( int slot = 0; slot < slots; slot++ )
+				if( offsets[slot]>=0 )
+					users.add( read( slot, null ) );
+			return users;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean isEmpty() {
+
+		lock.readLock().lock();
+		try {
+			return count==0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Lit le fichier de donnees, puis rejoue le journal.
+	 * Le fichier n'est lu qu'une ligne a la fois : seule la table
+	 * reste en memoire.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public synchronized boolean loadData() {
+
+		File fichier = new File( nomFichier );
+		if( !fichier.exists() && !( new File( nomFichier + OTPDatabase.JOURNAL ) ).exists()
+				&& !( new File( nomFichier + OTPDatabase.JOURNAL + OTPJournal.ROTATED ) ).exists() )
+			return false;
+
+		int replayed = 0;
+		lock.writeLock().lock();
+		try {
+			// Une ligne fait une soixantaine d'octets ou plus : la
+			// table est dimensionnee d'apres la taille du fichier.
+			clear( (int) Math.min( 1 << 28, fichier.length() / 64 + 16 ) );
+
+			if( fichier.exists() ) {
+				String ligne;
+				BufferedReader bufferreader = new BufferedReader( new FileReader( fichier ) );
+				try {
+					while( ( ligne = bufferreader.readLine() )!=null )
+						if( ligne.length()>0 && !insert( new OTPUser( ligne ) ) )
+							System.out.println( "[OTPPackedStore] loadData : ligne ignoree : " + ligne );
+				} finally {
+					bufferreader.close();
+				}
+			}
+
+			// Rejeu des journaux, dans l'ordre d'ecriture.
+			replayed += replay( OTPJournal.read( nomFichier + OTPDatabase.JOURNAL + OTPJournal.ROTATED ) );
+			replayed += replay( OTPJournal.read( nomFichier + OTPDatabase.JOURNAL ) );
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPPackedStore] loadData :\n" + ioexception );
+			return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		// Le journal rejoue est integre a un nouvel instantane.
+		if( journal!=null && replayed>0 )
+			return saveData();
+
+		return true;
+	}
+
+	/**
+	 * Applique des enregistrements de journal a la table.
+	 * "U;utilisateur" remplace l'utilisateur, "D;login" le supprime.
+	 * @param records Des enregistrements lus par OTPJournal.read().
+	 * @return int Le nombre d'enregistrements.
+	**/
+	private int replay( List<String> records ) {
+
+		for( String record : records ) {
+			if( record.startsWith( "U;" ) ) {
+				OTPUser user = new OTPUser( record.substring( 2 ) );
+				byte login[] = user.getLogin().getBytes( StandardCharsets.UTF_8 );
+				int slot = find( login );
+				if( slot>=0 )
+					remove( slot, login );
+				insert( user );
+			} else if( record.startsWith( "D;" ) ) {
+				byte login[] = record.substring( 2 ).getBytes( StandardCharsets.UTF_8 );
+				int slot = find( login );
+				if( slot>=0 )
+					remove( slot, login );
+			}
+		}
+
+		return records.size();
+	}
+
+	/**
+	 * Ecrit la table dans le fichier de donnees, a cote puis renomme.
+	 * En mode journalise, le journal est tourne avant la copie : les
+	 * modifications suivantes vont dans un nouveau journal. La table
+	 * est copiee par paquets de BATCH utilisateurs, sans bloquer les
+	 * connexions pendant toute l'ecriture.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public synchronized boolean saveData() {
+
+		if( journal!=null && !journal.rotate() )
+			return false;
+
+		Path fichier = Paths.get( nomFichier );
+		Path tmp = Paths.get( nomFichier + "." + ProcessHandle.current().pid() + ".tmp" );
+
+		try {
+			PrintWriter bufferwriter = new PrintWriter(
+					new BufferedWriter( new FileWriter( tmp.toFile() ) ) );
+			try {
+				List<String> lines = new ArrayList<String>( BATCH );
+				for( int from = 0; ; from += BATCH ) {
+					lock.readLock().lock();
+					try {
+						if( from>=slots )
+							break;
+						int to = Math.min( slots, from + BATCH );
+						for( int slot = from; slot < to; slot++ )
+							if( offsets[slot]>=0 )
+								lines.add( read( slot, null ).toString() );
+					} finally {
+						lock.readLock().unlock();
+					}
+					for( String line : lines )
+						bufferwriter.println( line );
+					lines.clear();
+				}
+			} finally {
+				bufferwriter.close();
+			}
+			if( bufferwriter.checkError() )
+				throw new IOException( "Ecriture de " + tmp + " impossible." );
+
+			FileChannel channel = FileChannel.open( tmp, StandardOpenOption.WRITE );
+			channel.force( true );
+			channel.close();
+
+			Files.move( tmp, fichier, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+			// L'instantane contient tout ce qui a ete journalise avant lui.
+			Files.deleteIfExists( Paths.get( nomFichier + OTPDatabase.JOURNAL + OTPJournal.ROTATED ) );
+			if( journal==null )
+				Files.deleteIfExists( Paths.get( nomFichier + OTPDatabase.JOURNAL ) );
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPPackedStore] saveData :\n" + ioexception );
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Recopie la sequence, le hash et la date d'un utilisateur dans
+	 * la table, puis dans le journal. L'objet vient d'un get() : il
+	 * n'est accepte que si sa semence et son algorithme sont ceux de
+	 * la table, et si sa sequence est strictement plus petite que
+	 * celle de la table. Un autre objet du meme utilisateur, deja
+	 * ecrit avec la meme sequence ( la meme reponse a un challenge ),
+	 * l'emporte donc. Un utilisateur supprime ecrit sa suppression.
+	 * @param user L'objet OTPUser modifie.
+	 * @return long Le ticket a passer a commit(), -1 si l'utilisateur a change entre temps.
+	**/
+	public long write( OTPUser user ) {
+
+		OTPHash hash = user.getHash();
+		int seq;
+		long h;
+		boolean defined;
+		synchronized( hash ) {
+			seq = hash.getSequence();
+			h = hash.getValue();
+			defined = hash.isDefined();
+		}
+
+		byte login[] = user.getLogin().getBytes( StandardCharsets.UTF_8 );
+		String record;
+		long ticket;
+		lock.writeLock().lock();
+		try {
+			int slot = find( login );
+			if( slot<0 ) {
+				record = "D;" + user.getLogin();
+			} else {
+				if( !sameChain( slot, hash ) || seq>=sequences[slot] ) {
+					conflicts.incrementAndGet();
+					return -1;
+				}
+				sequences[slot] = seq;
+				hashes[slot] = h;
+				algos[slot] = (byte) ( defined ? algos[slot] | DEFINED : algos[slot] & ALGO );
+				access[slot] = user.getDate().getTime();
+				record = "U;" + user.toString();
+			}
+
+			if( journal==null )
+				ticket = 0;
+			else
+				// Sous le verrou : le journal garde l'ordre des modifications.
+				ticket = journal.append( record );
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if( journal==null )
+			return saveData() ? 0 : -1;
+
+		if( ticket>=0 && journal.getRecords()>Math.max( OTPDatabase.COMPACT_MIN, size() ) )
+			compact();
+
+		return ticket;
+	}
+
+	public boolean commit( long ticket ) {
+
+		if( ticket<0 )
+			return false;
+		if( journal!=null )
+			return journal.commit( ticket );
+		return true;
+	}
+
+	public boolean update( OTPUser user ) {
+		return commit( write( user ) );
+	}
+
+	public boolean compareAndUpdate( String username, int seq, long expected, int newSeq, long newHash ) {
+
+		byte login[] = username.getBytes( StandardCharsets.UTF_8 );
+		String record;
+		long ticket;
+		lock.writeLock().lock();
+		try {
+			int slot = find( login );
+			if( slot<0 || ( algos[slot] & DEFINED )==0 || sequences[slot]!=seq || hashes[slot]!=expected ) {
+				if( slot>=0 )
+					conflicts.incrementAndGet();
+				return false;
+			}
+			sequences[slot] = newSeq;
+			hashes[slot] = newHash;
+			if( journal==null )
+				ticket = 0;
+			else
+				ticket = journal.append( "U;" + read( slot, username ).toString() );
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if( journal==null )
+			return saveData();
+		return commit( ticket );
+	}
+
+	/**
+	 * Choisit la politique de durabilite du journal ( voir
+	 * OTPDurability ). Sans effet sans journal : chaque ecriture
+	 * reecrit alors le fichier.
+	**/
+	public void setDurability( int mode, long delay, int batch ) {
+		if( journal!=null )
+			journal.getDurability().configure( mode, delay, batch );
+	}
+
+	/**
+	 * Lance un compactage du journal en tache de fond,
+	 * si aucun n'est deja en cours.
+	**/
+	private void compact() {
+
+		if( !compacting.compareAndSet( false, true ) )
+			return;
+
+		Thread thread = new Thread( new Runnable() {
+			public void run() {
+				try {
+					saveData();
+				} finally {
+					compacting.set( false );
+				}
+			}
+		}, "OTPPackedStore-compact" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Ferme le journal.
+	**/
+	public void close() {
+		if( journal!=null )
+			journal.close();
+	}
+
+	/**
+	 * Vide la table, dimensionnee pour un nombre d'utilisateurs.
+	 * @param n Le nombre d'utilisateurs prevu.
+	**/
+	private void clear( int n ) {
+
+		offsets = new int[n];
+		sequences = new int[n];
+		hashes = new long[n];
+		access = new long[n];
+		algos = new byte[n];
+		free = new int[16];
+		slots = 0;
+		count = 0;
+		freeCount = 0;
+
+		arena = new byte[Math.max( 256, n * 24 )];
+		arenaSize = 0;
+		garbage = 0;
+
+		// L'index est rempli au plus aux deux tiers.
+		table = new int[Integer.highestOneBit( Math.max( 16, n + n / 2 ) - 1 ) << 1];
+	}
+
+	/**
+	 * Ajoute un utilisateur a la table. Appele sous le verrou d'ecriture.
+	 * @param user Un objet OTPUser.
+	 * @return boolean False si le login existe deja, ou si le login,
+	 * la semence ou l'algorithme ne peuvent pas etre ranges.
+	**/
+	private boolean insert( OTPUser user ) {
+
+		byte login[] = user.getLogin().getBytes( StandardCharsets.UTF_8 );
+		byte seed[] = user.getHash().getSeed().getBytes( StandardCharsets.US_ASCII );
+		int algo = OTPMappedStore.algo( OTPFactory.getHashID( user.getHash() ) );
+		if( login.length>STRING_MAX || seed.length>STRING_MAX || algo<0 || find( login )>=0 )
+			return false;
+
+		if( ( count + 1 ) * 3>table.length * 2 )
+			rehash( table.length * 2 );
+
+		int slot;
+		if( freeCount>0 ) {
+			slot = free[--freeCount];
+		} else {
+			if( slots==offsets.length )
+				grow( slots + ( slots >> 1 ) + 16 );
+			slot = slots++;
+		}
+
+		if( arenaSize + login.length + seed.length + 2>arena.length )
+			reserve( login.length + seed.length + 2 );
+		int off = arenaSize;
+		arena[off] = (byte) login.length;
+		System.arraycopy( login, 0, arena, off + 1, login.length );
+		arena[off + 1 + login.length] = (byte) seed.length;
+		System.arraycopy( seed, 0, arena, off + 2 + login.length, seed.length );
+		arenaSize += login.length + seed.length + 2;
+
+		OTPHash hash = user.getHash();
+		synchronized( hash ) {
+			sequences[slot] = hash.getSequence();
+			hashes[slot] = hash.getValue();
+			algos[slot] = (byte) ( hash.isDefined() ? algo | DEFINED : algo );
+		}
+		access[slot] = user.getDate().getTime();
+		offsets[slot] = off;
+		count++;
+
+		int mask = table.length - 1;
+		int i = hash( login, 0, login.length ) & mask;
+		while( table[i]!=0 )
+			i = ( i + 1 ) & mask;
+		table[i] = slot + 1;
+		return true;
+	}
+
+	/**
+	 * Retire un emplacement de la table et de l'index. L'index est
+	 * recompacte en reculant les cases suivantes de la meme suite :
+	 * il n'y a pas de case "supprimee" a sauter.
+	 * @param slot L'emplacement.
+	 * @param login Le login, en octets UTF-8.
+	**/
+	private void remove( int slot, byte login[] ) {
+
+		int mask = table.length - 1;
+		int i = hash( login, 0, login.length ) & mask;
+		while( table[i]!=slot + 1 )
+			i = ( i + 1 ) & mask;
+
+		int hole = i;
+		for( int j = ( i + 1 ) & mask; table[j]!=0; j = ( j + 1 ) & mask ) {
+			int off = offsets[table[j] - 1];
+			int home = hash( arena, off + 1, arena[off] & 0xff ) & mask;
+			// La case j peut remplir le trou si sa place ideale n'est
+			// pas entre le trou ( exclu ) et j.
+			if( ( ( j - home ) & mask )>=( ( j - hole ) & mask ) ) {
+				table[hole] = table[j];
+				hole = j;
+			}
+		}
+		table[hole] = 0;
+
+		int off = offsets[slot];
+		garbage += ( arena[off] & 0xff ) + ( arena[off + 1 + ( arena[off] & 0xff )] & 0xff ) + 2;
+		offsets[slot] = -1;
+		count--;
+		if( freeCount==free.length )
+			free = Arrays.copyOf( free, free.length * 2 );
+		free[freeCount++] = slot;
+	}
+
+	/**
+	 * Cherche un login dans l'index.
+	 * @param login Le login, en octets UTF-8.
+	 * @return int L'emplacement, -1 si pas trouve.
+	**/
+	private int find( byte login[] ) {
+
+		int mask = table.length - 1;
+		for( int i = hash( login, 0, login.length ) & mask; table[i]!=0; i = ( i + 1 ) & mask ) {
+			int slot = table[i] - 1;
+			int off = offsets[slot];
+			if( ( arena[off] & 0xff )==login.length
+					&& Arrays.equals( arena, off + 1, off + 1 + login.length, login, 0, login.length ) )
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Construit l'objet OTPUser d'un emplacement.
+	 * @param slot L'emplacement.
+	 * @param login Le login s'il est connu, sinon null.
+	 * @return OTPUser Un nouvel objet.
+	**/
+	private OTPUser read( int slot, String login ) {
+
+		int off = offsets[slot];
+		int loginLength = arena[off] & 0xff;
+		if( login==null )
+			login = new String( arena, off + 1, loginLength, StandardCharsets.UTF_8 );
+		int seedOff = off + 1 + loginLength;
+		String seed = new String( arena, seedOff + 1, arena[seedOff] & 0xff, StandardCharsets.US_ASCII );
+
+		OTPUser user = new OTPUser( login, OTPMappedStore.ALGOS[algos[slot] & ALGO],
+			sequences[slot], seed, null );
+		if( ( algos[slot] & DEFINED )!=0 )
+			user.getHash().setValue( hashes[slot] );
+		user.setDate( new Date( access[slot] ) );
+		return user;
+	}
+
+	/**
+	 * Teste si un objet OTPHash est sur la meme chaine ( semence
+	 * et algorithme ) que l'utilisateur d'un emplacement.
+	**/
+	private boolean sameChain( int slot, OTPHash hash ) {
+
+		if( OTPMappedStore.algo( OTPFactory.getHashID( hash ) )!=( algos[slot] & ALGO ) )
+			return false;
+		int off = offsets[slot];
+		int seedOff = off + 1 + ( arena[off] & 0xff );
+		byte seed[] = hash.getSeed().getBytes( StandardCharsets.US_ASCII );
+		return ( arena[seedOff] & 0xff )==seed.length
+			&& Arrays.equals( arena, seedOff + 1, seedOff + 1 + seed.length, seed, 0, seed.length );
+	}
+
+	/**
+	 * Agrandit les tableaux des emplacements.
+	 * @param n Le nouveau nombre d'emplacements.
+	**/
+	private void grow( int n ) {
+		offsets = Arrays.copyOf( offsets, n );
+		sequences = Arrays.copyOf( sequences, n );
+		hashes = Arrays.copyOf( hashes, n );
+		access = Arrays.copyOf( access, n );
+		algos = Arrays.copyOf( algos, n );
+	}
+
+	/**
+	 * Fait de la place dans arena[] : les octets des utilisateurs
+	 * supprimes sont recuperes s'ils font plus du quart du tableau,
+	 * sinon le tableau est agrandi de moitie.
+	 * @param needed Le nombre d'octets a ajouter.
+	**/
+	private void reserve( int needed ) {
+
+		if( garbage>arena.length / 4 ) {
+			byte packed[] = new byte[Math.max( arena.length, arenaSize - garbage + needed )];
+			int size = 0;
+			for( int slot = 0; slot < slots; slot++ ) {
+				int off = offsets[slot];
+				if( off<0 )
+					continue;
+				int length = ( arena[off] & 0xff ) + ( arena[off + 1 + ( arena[off] & 0xff )] & 0xff ) + 2;
+				System.arraycopy( arena, off, packed, size, length );
+				offsets[slot] = size;
+				size += length;
+			}
+			arena = packed;
+			arenaSize = size;
+			garbage = 0;
+			if( arenaSize + needed<=arena.length )
+				return;
+		}
+
+		long length = Math.max( (long) arenaSize + needed, arena.length + (long) ( arena.length >> 1 ) );
+		if( length>Integer.MAX_VALUE - 8 )
+			throw new IllegalStateException( "Table pleine : " + count + " utilisateurs." );
+		arena = Arrays.copyOf( arena, (int) length );
+	}
+
+	/**
+	 * Reconstruit l'index avec plus de cases.
+	 * @param n Le nouveau nombre de cases ( une puissance de 2 ).
+	**/
+	private void rehash( int n ) {
+
+		table = new int[n];
+		int mask = n - 1;
+		for( int slot = 0; slot < slots; slot++ ) {
+			int off = offsets[slot];
+			if( off<0 )
+				continue;
+			int i = hash( arena, off + 1, arena[off] & 0xff ) & mask;
+			while( table[i]!=0 )
+				i = ( i + 1 ) & mask;
+			table[i] = slot + 1;
+		}
+	}
+
+	/**
+	 * Hash d'un login ( FNV-1a, puis melange des bits ).
+	**/
+	private static int hash( byte b[], int off, int len ) {
+
+		int h = 0x811c9dc5;
+		for( int i = off; i < off + len; i++ )
+			h = ( h ^ ( b[i] & 0xff ) ) * 0x01000193;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h;
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le nom du fichier de donnees.
+	 * @return String Le nom du fichier.
+	**/
+	public String getFileName() { return nomFichier; }
+
+	/**
+	 * Retourne le nombre d'utilisateurs.
+	 * @return int Le nombre d'utilisateurs.
+	**/
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Retourne la place occupee par les tableaux de la table, en octets.
+	 * @return long La taille des tableaux.
+	**/
+	public long getFootprint() {
+		lock.readLock().lock();
+		try {
+			return offsets.length * 25L + arena.length + table.length * 4L + free.length * 4L;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Retourne le nombre d'ecritures refusees, l'utilisateur ayant
+	 * change entre temps.
+	 * @return long Le nombre de conflits.
+	**/
+	public long getConflicts() { return conflicts.get(); }
+
+}
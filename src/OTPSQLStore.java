@@ -0,0 +1,472 @@
+package otp;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stockage des utilisateurs OTP dans une base SQL, via JDBC.
+ * Prevu pour une base embarquee, dans le meme processus et sans
+ * service externe ( H2, SQLite, Derby... ) : le pilote JDBC est
+ * fourni au lancement, dans le classpath.
+ * Un utilisateur est une ligne de la table otp_users, de cle
+ * primaire login. Une connexion modifie une seule ligne, par un
+ * UPDATE ... WHERE login = ? AND sequence = ? : la mise a jour
+ * n'a lieu que si la sequence lue n'a pas change entre temps
+ * ( compare-and-set ). Chaque UPDATE est sa propre transaction,
+ * la durabilite est celle de la base.
+ *
+ * @version 0.1
+**/
+
+public class OTPSQLStore implements OTPStore {
+
+	/** La table des utilisateurs. **/
+	public static final String TABLE = "otp_users";
+
+	private static final String CREATE = "CREATE TABLE " + TABLE + " ( "
+		+ "login VARCHAR(255) NOT NULL PRIMARY KEY, sequence INTEGER NOT NULL, "
+		+ "seed VARCHAR(64) NOT NULL, hashid VARCHAR(16) NOT NULL, "
+		+ "hash BIGINT, access BIGINT NOT NULL )";
+	private static final String COLUMNS = "login, sequence, seed, hashid, hash, access";
+	private static final String SELECT = "SELECT " + COLUMNS + " FROM " + TABLE;
+	private static final String SELECT_LOGIN = SELECT + " WHERE login = ?";
+	private static final String EXISTS = "SELECT 1 FROM " + TABLE + " WHERE login = ?";
+	private static final String INSERT = "INSERT INTO " + TABLE + " ( " + COLUMNS + " ) VALUES ( ?, ?, ?, ?, ?, ? )";
+	private static final String DELETE = "DELETE FROM " + TABLE + " WHERE login = ?";
+	private static final String UPDATE = "UPDATE " + TABLE + " SET sequence = ?, hash = ?, access = ? WHERE login = ?";
+	private static final String UPDATE_CAS = UPDATE + " AND sequence = ?";
+	private static final String UPDATE_CAS_HASH = "UPDATE " + TABLE
+		+ " SET sequence = ?, hash = ? WHERE login = ? AND sequence = ? AND hash = ?";
+
+	/** L'URL JDBC de la base. **/
+	private String url;
+	/** L'utilisateur de la base. **/
+	private String user;
+	/** Le mot de passe de la base. **/
+	private String password;
+	/** Les connexions ouvertes, libres. **/
+	private ArrayBlockingQueue<Connection> pool;
+	/** Le nombre de connexions. **/
+	private int poolSize;
+	/** Les connexions sont ouvertes. **/
+	private volatile boolean open;
+	/** Les utilisateurs lus -> sequence lue, pour le compare-and-set de write(). **/
+	private Map<OTPUser,Integer> loaded;
+	/** Nombre d'ecritures refusees, la ligne ayant change entre temps. **/
+	private AtomicLong conflicts;
+
+// Constructeurs
+
+	/**
+	 * Construit un stockage SQL. La base est ouverte par loadData().
+	 * @param url L'URL JDBC ( par exemple jdbc:h2:./users ).
+	 * @param user L'utilisateur de la base, ou null.
+	 * @param password Le mot de passe de la base, ou null.
+	 * @param poolSize Le nombre de connexions ouvertes.
+	**/
+	public OTPSQLStore( String url, String user, String password, int poolSize ) {
+
+		if( poolSize<1 )
+			throw new IllegalArgumentException( "Nombre de connexions invalide : " + poolSize );
+
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.poolSize = poolSize;
+		pool = new ArrayBlockingQueue<Connection>( poolSize );
+		loaded = Collections.synchronizedMap( new WeakHashMap<OTPUser,Integer>() );
+		conflicts = new AtomicLong();
+	}
+
+// Methodes
+
+	/**
+	 * Ouvre les connexions, et cree la table si elle n'existe pas.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public synchronized boolean loadData() {
+
+		try {
+			while( pool.size()<poolSize )
+				pool.add( DriverManager.getConnection( url, user, password ) );
+			open = true;
+
+			Connection connection = acquire();
+			try {
+				Statement statement = connection.createStatement();
+				try {
+					statement.executeQuery( "SELECT COUNT(*) FROM " + TABLE ).close();
+				} catch( SQLException sqlexception ) {
+					statement.executeUpdate( CREATE );
+				} finally {
+					statement.close();
+				}
+			} finally {
+				release( connection );
+			}
+			return true;
+		} catch( SQLException sqlexception ) {
+			System.out.println( "[OTPSQLStore] loadData : " + sqlexception );
+			return false;
+		}
+	}
+
+	/**
+	 * Chaque modification est deja une ligne de la base.
+	 * @return boolean True.
+	**/
+	public boolean saveData() {
+		return true;
+	}
+
+	public boolean add( OTPUser otpuser ) {
+
+		int seq;
+		long h;
+		boolean defined;
+		synchronized( otpuser.getHash() ) {
+			seq = otpuser.getHash().getSequence();
+			h = otpuser.getHash().getValue();
+			defined = otpuser.getHash().isDefined();
+		}
+
+		Connection connection = null;
+		try {
+			connection = acquire();
+			if( exists( connection, otpuser.getLogin() ) )
+				return false;
+
+			PreparedStatement statement = connection.prepareStatement( INSERT );
+			try {
+				statement.setString( 1, otpuser.getLogin() );
+				statement.setInt( 2, seq );
+				statement.setString( 3, otpuser.getHash().getSeed() );
+				statement.setString( 4, OTPFactory.getHashID( otpuser.getHash() ) );
+				if( defined )
+					statement.setLong( 5, h );
+				else
+					statement.setNull( 5, Types.BIGINT );
+				statement.setLong( 6, otpuser.getDate().getTime() );
+				statement.executeUpdate();
+			} finally {
+				statement.close();
+			}
+			loaded.put( otpuser, seq );
+			return true;
+		} catch( SQLException sqlexception ) {
+			System.out.println( "[OTPSQLStore] add : " + sqlexception );
+			return false;
+		} finally {
+			release( connection );
+		}
+	}
+
+	public boolean contains( String username ) {
+
+		Connection connection = null;
+		try {
+			connection = acquire();
+			return exists( connection, username );
+		} catch( SQLException sqlexception ) {
+			System.out.println( "[OTPSQLStore] contains : " + sqlexception );
+			return false;
+		} finally {
+			release( connection );
+		}
+	}
+
+	public OTPUser delete( String username ) {
+
+		Connection connection = null;
+		try {
+			connection = acquire();
+			List<OTPUser> users = select( connection, SELECT_LOGIN, username );
+			if( users.isEmpty() )
+				return null;
+
+			PreparedStatement statement = connection.prepareStatement( DELETE );
+			try {
+				statement.setString( 1, username );
+				return statement.executeUpdate()>0 ? users.get( 0 ) : null;
+			} finally {
+				statement.close();
+			}
+		} catch( SQLException sqlexception ) {
+			System.out.println( "[OTPSQLStore] delete : " + sqlexception );
+			return null;
+		} finally {
+			release( connection );
+		}
+	}
+
+	public OTPUser get( String username ) {
+		List<OTPUser> users = query( SELECT_LOGIN, username, 1 );
+		return users.isEmpty() ? null : users.get( 0 );
+	}
+
+	public OTPUser getFirst() {
+		List<OTPUser> users = query( SELECT, null, 1 );
+		return users.isEmpty() ? null : users.get( 0 );
+	}
+
+	public List<OTPUser> getUsers() {
+		return query( SELECT, null, 0 );
+	}
+
+	public boolean isEmpty() {
+		return getFirst()==null;
+	}
+
+	/**
+	 * Ecrit la sequence, le hash et la date d'un utilisateur dans
+	 * sa ligne, si la sequence de la ligne est encore celle lue par
+	 * get(). Un utilisateur supprime n'a rien a ecrire.
+	 * @param otpuser L'objet OTPUser modifie.
+	 * @return long 0, -1 si la ligne a change entre temps ou en cas d'erreur.
+	**/
+	public long write( OTPUser otpuser ) {
+
+		int seq;
+		long h;
+		boolean defined;
+		synchronized( otpuser.getHash() ) {
+			seq = otpuser.getHash().getSequence();
+			h = otpuser.getHash().getValue();
+			defined = otpuser.getHash().isDefined();
+		}
+		Integer expected = loaded.get( otpuser );
+
+		Connection connection = null;
+		try {
+			connection = acquire();
+			PreparedStatement statement = connection.prepareStatement( expected==null ? UPDATE : UPDATE_CAS );
+			int n;
+			try {
+				statement.setInt( 1, seq );
+				if( defined )
+					statement.setLong( 2, h );
+				else
+					statement.setNull( 2, Types.BIGINT );
+				statement.setLong( 3, otpuser.getDate().getTime() );
+				statement.setString( 4, otpuser.getLogin() );
+				if( expected!=null )
+					statement.setInt( 5, expected.intValue() );
+				n = statement.executeUpdate();
+			} finally {
+				statement.close();
+			}
+
+			if( n>0 ) {
+				loaded.put( otpuser, seq );
+				return 0;
+			}
+			if( !exists( connection, otpuser.getLogin() ) )
+				return 0;
+			conflicts.incrementAndGet();
+			return -1;
+		} catch( SQLException sqlexception ) {
+			System.out.println( "[OTPSQLStore] write : " + sqlexception );
+			return -1;
+		} finally {
+			release( connection );
+		}
+	}
+
+	/**
+	 * Chaque ecriture est deja validee par la base.
+	 * @param ticket Un ticket retourne par write().
+	 * @return boolean False si l'ecriture a echoue.
+	**/
+	public boolean commit( long ticket ) {
+		return ticket>=0;
+	}
+
+	public boolean update( OTPUser otpuser ) {
+		return commit( write( otpuser ) );
+	}
+
+	public boolean compareAndUpdate( String username, int seq, long expected, int newSeq, long newHash ) {
+
+		Connection connection = null;
+		try {
+			connection = acquire();
+			PreparedStatement statement = connection.prepareStatement( UPDATE_CAS_HASH );
+			try {
+				statement.setInt( 1, newSeq );
+				statement.setLong( 2, newHash );
+				statement.setString( 3, username );
+				statement.setInt( 4, seq );
+				statement.setLong( 5, expected );
+				if( statement.executeUpdate()>0 )
+					return true;
+			} finally {
+				statement.close();
+			}
+			conflicts.incrementAndGet();
+			return false;
+		} catch( SQLException sqlexception ) {
+			System.out.println( "[OTPSQLStore] compareAndUpdate : " + sqlexception );
+			return false;
+		} finally {
+			release( connection );
+		}
+	}
+
+	/**
+	 * Sans effet : la durabilite est celle de la base ( voir la
+	 * documentation du pilote ).
+	**/
+	public void setDurability( int mode, long delay, int batch ) {
+	}
+
+	/**
+	 * Ferme les connexions.
+	**/
+	public synchronized void close() {
+
+		open = false;
+		Connection connection;
+		while( ( connection = pool.poll() )!=null ) {
+			try {
+				connection.close();
+			} catch( SQLException sqlexception ) {
+				System.out.println( "[OTPSQLStore] close : " + sqlexception );
+			}
+		}
+	}
+
+	/**
+	 * Lit des utilisateurs.
+	 * @param sql La requete.
+	 * @param login Le login recherche, ou null.
+	 * @param max Le nombre maximal d'utilisateurs, 0 pour tous.
+	 * @return List Les utilisateurs, vide en cas d'erreur.
+	**/
+	private List<OTPUser> query( String sql, String login, int max ) {
+
+		Connection connection = null;
+		try {
+			connection = acquire();
+			PreparedStatement statement = connection.prepareStatement( sql );
+			try {
+				statement.setMaxRows( max );
+				if( login!=null )
+					statement.setString( 1, login );
+				return read( statement.executeQuery() );
+			} finally {
+				statement.close();
+			}
+		} catch( SQLException sqlexception ) {
+			System.out.println( "[OTPSQLStore] query : " + sqlexception );
+			return new ArrayList<OTPUser>();
+		} finally {
+			release( connection );
+		}
+	}
+
+	/**
+	 * Lit des utilisateurs avec une connexion deja prise.
+	**/
+	private List<OTPUser> select( Connection connection, String sql, String login ) throws SQLException {
+
+		PreparedStatement statement = connection.prepareStatement( sql );
+		try {
+			statement.setString( 1, login );
+			return read( statement.executeQuery() );
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Construit les utilisateurs des lignes lues. La sequence lue
+	 * est retenue pour le compare-and-set de write().
+	**/
+	private List<OTPUser> read( ResultSet resultset ) throws SQLException {
+
+		List<OTPUser> users = new ArrayList<OTPUser>();
+		try {
+			while( resultset.next() ) {
+				int seq = resultset.getInt( 2 );
+				OTPUser otpuser = new OTPUser( resultset.getString( 1 ), resultset.getString( 4 ),
+					seq, resultset.getString( 3 ), null );
+				long h = resultset.getLong( 5 );
+				if( !resultset.wasNull() )
+					otpuser.getHash().setValue( h );
+				otpuser.setDate( new Date( resultset.getLong( 6 ) ) );
+				loaded.put( otpuser, seq );
+				users.add( otpuser );
+			}
+		} finally {
+			resultset.close();
+		}
+		return users;
+	}
+
+	/**
+	 * Teste si une ligne existe, avec une connexion deja prise.
+	**/
+	private boolean exists( Connection connection, String login ) throws SQLException {
+
+		PreparedStatement statement = connection.prepareStatement( EXISTS );
+		try {
+			statement.setString( 1, login );
+			ResultSet resultset = statement.executeQuery();
+			try {
+				return resultset.next();
+			} finally {
+				resultset.close();
+			}
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * Prend une connexion libre, en attendant si besoin.
+	 * @return Connection Une connexion.
+	**/
+	private Connection acquire() throws SQLException {
+
+		if( !open )
+			throw new SQLException( "Base fermee." );
+		try {
+			return pool.take();
+		} catch( InterruptedException interruptedexception ) {
+			Thread.currentThread().interrupt();
+			throw new SQLException( "Interrompu." );
+		}
+	}
+
+	/**
+	 * Rend une connexion.
+	 * @param connection Une connexion, ou null.
+	**/
+	private void release( Connection connection ) {
+		if( connection!=null )
+			pool.offer( connection );
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne l'URL JDBC de la base.
+	 * @return String L'URL.
+	**/
+	public String getURL() { return url; }
+
+	/**
+	 * Retourne le nombre d'ecritures refusees parce que la ligne
+	 * avait change entre temps.
+	 * @return long Le nombre de conflits.
+	**/
+	public long getConflicts() { return conflicts.get(); }
+
+}
@@ -1,7 +1,8 @@
 package otp.network;
 
 import otp.OTPAuth;
-import otp.OTPDatabase;
+import otp.OTPStore;
+import otp.OTPStoreFactory;
 import otp.OTPUser;
 
 import java.util.*;
@@ -18,7 +19,7 @@ public class OTPServer extends UnicastRemoteObject implements RMIOTPServer {
 	/** Service d'authentification. **/
 	private OTPAuth auth;
 	/** La base de donnees utilisateurs. **/
-	private OTPDatabase db;
+	private OTPStore db;
 	/** Les utilisateurs en attente. **/
 	private Hashtable<String,OTPUser> users;
 	/** Nombre de connexions simultanees. **/
@@ -35,13 +36,46 @@ public class OTPServer extends UnicastRemoteObject implements RMIOTPServer {
 	 * @param timeout Le nombre de secondes d'attente pour la réponse à un challenge.
 	**/
 	public OTPServer( String nomFichierDB, int max, int timeout ) throws RemoteException {
+		this( nomFichierDB, max, timeout, false );
+	}
+
+	/**
+	 * Cree un nouveau serveur OTP.
+	 * @param nomFichierDB Le nom du fichier de passwords.
+	 * @param max Le nombre de connexions simultanees autorisees.
+	 * @param timeout Le nombre de secondes d'attente pour la réponse à un challenge.
+	 * @param journaled True pour journaliser les connexions au lieu de reecrire le fichier.
+	**/
+	public OTPServer( String nomFichierDB, int max, int timeout, boolean journaled ) throws RemoteException {
+		this( nomFichierDB, max, timeout, journaled, false );
+	}
+
+	/**
+	 * Cree un nouveau serveur OTP.
+	 * @param nomFichierDB Le nom du fichier de passwords.
+	 * @param max Le nombre de connexions simultanees autorisees.
+	 * @param timeout Le nombre de secondes d'attente pour la réponse à un challenge.
+	 * @param journaled True pour journaliser les connexions au lieu de reecrire le fichier.
+	 * @param indexed True pour ne charger que l'index du fichier, et lire les utilisateurs a la demande.
+	**/
+	public OTPServer( String nomFichierDB, int max, int timeout, boolean journaled, boolean indexed ) throws RemoteException {
+		this( OTPStoreFactory.openFile( nomFichierDB, journaled, indexed ), max, timeout );
+	}
+
+	/**
+	 * Cree un nouveau serveur OTP.
+	 * @param store Le stockage des utilisateurs, pas encore ouvert ( voir OTPStoreFactory ).
+	 * @param max Le nombre de connexions simultanees autorisees.
+	 * @param timeout Le nombre de secondes d'attente pour la réponse à un challenge.
+	**/
+	public OTPServer( OTPStore store, int max, int timeout ) throws RemoteException {
 		
 		super();
 		
 		maxConnexions = max;
 		this.timeout = timeout;
 		users = new Hashtable<String,OTPUser>();
-		db = new OTPDatabase( nomFichierDB );
+		db = store;
 		auth = new OTPAuth();
 		
 		db.loadData();
@@ -63,14 +97,17 @@ public class OTPServer extends UnicastRemoteObject implements RMIOTPServer {
 
 		String challenge = null;
 
+		// Une seule lecture de la base, hors du verrou : elle peut
+		// aller jusqu'au disque.
+		OTPUser user = db.get( login );
+
 		// On synchronise le bloc d'instruction : aucun accès concurrent.
 		// Ceci est fait afin de garantir les bonnes valeurs pour la taille
 		// de la file d'attente.
 		synchronized( this ) {
 
-			if( !users.contains( login ) && db.contains( login ) && users.size()<maxConnexions ) {
+			if( !users.contains( login ) && user!=null && users.size()<maxConnexions ) {
 	
-				OTPUser user = db.get( login );
 				challenge = auth.getOTPChallenge( user );
 	
 				if( challenge!=null ) {
@@ -96,7 +133,9 @@ public class OTPServer extends UnicastRemoteObject implements RMIOTPServer {
 	 * Teste la reponse a un challenge d'un utilisateur
 	 * deja dans la file d'attente. Si la connexion est
 	 * reussie, les donnees de l'utilisateur sont mis a jour
-	 * et la base de donnees est sauvee.
+	 * et la base de donnees est sauvee ( ou journalisee ) ; la
+	 * connexion n'est reussie qu'une fois la garantie de durabilite
+	 * de la base atteinte.
 	 * Dans tous les cas, l'utilisateur est supprimé de la file.
 	 * De plus, on regarde si des utilisateurs sont encore dans la
 	 * file d'attente, et n'ont pas répondu au challenge depuis
@@ -110,14 +149,14 @@ public class OTPServer extends UnicastRemoteObject implements RMIOTPServer {
 	public boolean checkChallengeAnswer( String login, String otp ) throws RemoteException {
 
 		boolean result = false;
+		OTPUser user = null;
 		String message = "";
 
 		// On synchronise le bloc d'instruction suivant.
 		// Cette methode peut être appelée par plusieurs autres
 		// objets en même temps, il faut garantir que le code
 		// suivant ne soit exécuté que par un seul objet appelant
-		// à la fois. Il n'y a pas d'accès concurrent à l'authentification,
-		// le fichier n'est pas ecrit plusieurs en même temps.
+		// à la fois. Il n'y a pas d'accès concurrent à la file d'attente.
 		synchronized( this ) {
 
 			// On verifie si des utilisateurs sont depuis
@@ -127,23 +166,11 @@ public class OTPServer extends UnicastRemoteObject implements RMIOTPServer {
 
 			// On procède a l'authentification
 			if( users.containsKey( login ) ) {
-				OTPUser user = (OTPUser) users.get( login );
+				user = (OTPUser) users.get( login );
 
 				// L'authentification n'est valable qu'une fois.
 				// L'utilisateur est supprimé de la file d'attente.
 				users.remove( login );
-
-				if( auth.checkOTPAnswer( user, otp, false ) ) {
-					result = true;
-
-					// Si le numéro de séquence de l'utilisateur tombe
-					// à zéro, on le supprime de la base de données.
-					if( user.getHash().getSequence()==0 ) {
-						db.delete( login );
-					}
-
-					db.saveData();
-				}
 	
 			} else {
 				message += " (Time out)" ;
@@ -151,6 +178,26 @@ public class OTPServer extends UnicastRemoteObject implements RMIOTPServer {
 
 		}
 
+		// L'authentification, l'ecriture et l'attente du disque se font
+		// hors du verrou. Une autre connexion du meme login peut deja
+		// avoir recu un challenge : verify() ne consomme une reponse
+		// qu'une fois, et write() journalise les connexions d'un meme
+		// login dans l'ordre de leurs sequences. Les connexions simultanees
+		// partagent le meme fsync, ou ecrivent dans des shards differents.
+		if( user!=null && auth.checkOTPAnswer( user, otp, false ) ) {
+
+			// Si le numéro de séquence de l'utilisateur tombe
+			// à zéro, on le supprime de la base de données.
+			if( user.getHash().getSequence()==0 ) {
+				db.delete( login );
+			}
+
+			long ticket = db.write( user );
+			result = db.commit( ticket );
+			if( !result )
+				message += " (Database error)";
+		}
+
 		if( result ) {
 			message = "Connection succeeded for " + login + message;
 		} else {
@@ -192,4 +239,20 @@ public class OTPServer extends UnicastRemoteObject implements RMIOTPServer {
 		}
 	}
 
+// Accesseurs
+
+	/**
+	 * Retourne le service d'authentification, pour sa configuration
+	 * ( fenetre de verification ) et ses compteurs.
+	 * @return OTPAuth Le service d'authentification.
+	**/
+	public OTPAuth getAuth() { return auth; }
+
+	/**
+	 * Retourne la base de donnees utilisateurs, pour sa configuration
+	 * ( durabilite des ecritures ).
+	 * @return OTPStore La base de donnees.
+	**/
+	public OTPStore getDatabase() { return db; }
+
 }
\ No newline at end of file
@@ -0,0 +1,354 @@
+package otp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Base de donnees OTP repartie sur N fichiers ( shards ).
+ * Un utilisateur est range dans le shard fichier.i, ou i depend
+ * du hash de son login. Chaque shard est un OTPDatabase complet :
+ * son propre verrou, son journal, sa durabilite et son compactage.
+ * Les ecritures sur des shards differents ne s'attendent donc pas,
+ * et les shards sont charges en parallele.
+ * Le nombre de shards est ecrit dans fichier.shards.
+ *
+ * @version 0.1
+**/
+
+public class OTPShardedDatabase extends OTPDatabase {
+
+	/** Extension du fichier qui donne le nombre de shards. **/
+	public static final String SHARDS = ".shards";
+	/** Nombre maximal de shards. **/
+	public static final int MAX_SHARDS = 256;
+	/** Extension des fichiers de l'ancienne base pendant reshard(). **/
+	public static final String OLD = ".old";
+
+	/** Les shards. **/
+	private OTPDatabase shards[];
+
+// Constructeurs
+
+	/**
+	 * Construit une base repartie sur n shards.
+	 * @param filename Le nom de fichier de base des shards.
+	 * @param n Le nombre de shards.
+	 * @param journaled True pour journaliser chaque shard.
+	 * @param indexed True pour lire les utilisateurs a la demande.
+	**/
+	public OTPShardedDatabase( String filename, int n, boolean journaled, boolean indexed ) {
+
+		super( filename );
+
+		if( n<1 || n>MAX_SHARDS )
+			throw new IllegalArgumentException( "Nombre de shards invalide : " + n );
+
+		shards = new OTPDatabase[n];
+		for( int i = 0; i < n; i++ )
+			shards[i] = new OTPDatabase( getShardName( filename, i ), journaled, indexed );
+	}
+
+// Methodes
+
+	/**
+	 * Retourne le nom de fichier d'un shard.
+	 * @param filename Le nom de fichier de base.
+	 * @param i Le numero du shard.
+	 * @return String Le nom de fichier du shard.
+	**/
+	public static String getShardName( String filename, int i ) {
+		return filename + "." + i;
+	}
+
+	/**
+	 * Lit le nombre de shards d'une base.
+	 * @param filename Le nom de fichier de base.
+	 * @return int Le nombre de shards, 0 si la base n'est pas repartie.
+	**/
+	public static int readShards( String filename ) {
+
+		try {
+			Path path = Paths.get( filename + SHARDS );
+			if( !Files.exists( path ) )
+				return 0;
+			int n = Integer.parseInt( new String( Files.readAllBytes( path ), StandardCharsets.US_ASCII ).trim() );
+			return n>=1 && n<=MAX_SHARDS ? n : 0;
+		} catch( IOException | NumberFormatException exception ) {
+			System.out.println( "[OTPShardedDatabase] readShards : " + exception );
+			return 0;
+		}
+	}
+
+	/**
+	 * Ecrit le nombre de shards d'une base.
+	 * @param filename Le nom de fichier de base.
+	 * @param n Le nombre de shards.
+	**/
+	private static void writeShards( String filename, int n ) throws IOException {
+		Path tmp = Paths.get( filename + SHARDS + ".tmp" );
+		Files.write( tmp, ( n + System.lineSeparator() ).getBytes( StandardCharsets.US_ASCII ) );
+		Files.move( tmp, Paths.get( filename + SHARDS ),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/**
+	 * Retourne le shard d'un login. String.hashCode() est defini
+	 * par la specification Java : la repartition ne depend pas de
+	 * la JVM.
+	 * @param username Un nom d'utilisateur.
+	 * @return OTPDatabase Le shard.
+	**/
+	private OTPDatabase shard( String username ) {
+		return shards[getShard( username, shards.length )];
+	}
+
+	/**
+	 * Retourne le numero de shard d'un login.
+	 * @param username Un nom d'utilisateur.
+	 * @param n Le nombre de shards.
+	 * @return int Le numero du shard.
+	**/
+	public static int getShard( String username, int n ) {
+		int h = username.hashCode();
+		return Math.floorMod( h ^ ( h>>>16 ), n );
+	}
+
+	public boolean add( OTPUser user ) {
+		return shard( user.getLogin() ).add( user );
+	}
+
+	public boolean contains( String username ) {
+		return shard( username ).contains( username );
+	}
+
+	public OTPUser delete( String username ) {
+		return shard( username ).delete( username );
+	}
+
+	public OTPUser get( String username ) {
+		return shard( username ).get( username );
+	}
+
+	public OTPUser getFirst() {
+		for( OTPDatabase db : shards ) {
+			OTPUser user = db.getFirst();
+			if( user!=null )
+				return user;
+		}
+		return null;
+	}
+
+	public List<OTPUser> getUsers() {
+		List<OTPUser> users = new ArrayList<OTPUser>();
+		for( OTPDatabase db : shards )
+			users.addAll( db.getUsers() );
+		return users;
+	}
+
+	public boolean isEmpty() {
+		for( OTPDatabase db : shards )
+			if( !db.isEmpty() )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Charge tous les shards, en parallele. Un shard sans fichier
+	 * est une base vide.
+	 * @return boolean True si au moins un shard a ete charge, et
+	 * qu'aucun shard existant n'a echoue.
+	**/
+	public boolean loadData() {
+
+		boolean loaded[] = new boolean[shards.length];
+		IntStream.range( 0, shards.length ).parallel()
+			.forEach( i -> loaded[i] = shards[i].loadData() );
+
+		boolean any = false;
+		for( int i = 0; i < shards.length; i++ ) {
+			if( loaded[i] )
+				any = true;
+			else if( ( new File( getShardName( getFileName(), i ) ) ).exists() )
+				return false;
+		}
+		return any;
+	}
+
+	/**
+	 * Sauve tous les shards, en parallele.
+	 * @return boolean True si tous les shards ont ete sauves.
+	**/
+	public boolean saveData() {
+
+		boolean saved[] = new boolean[shards.length];
+		IntStream.range( 0, shards.length ).parallel()
+			.forEach( i -> saved[i] = shards[i].saveData() );
+
+		for( boolean ok : saved )
+			if( !ok )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Ecrit la modification d'un utilisateur dans son shard.
+	 * Le numero du shard est porte par les 8 bits de poids faible
+	 * du ticket.
+	 * @param user L'objet OTPUser modifie.
+	 * @return long Le ticket a passer a commit(), -1 en cas d'erreur.
+	**/
+	public long write( OTPUser user ) {
+
+		int i = getShard( user.getLogin(), shards.length );
+		long ticket = shards[i].write( user );
+		return ticket<0 ? -1 : ( ticket << 8 ) | i;
+	}
+
+	public boolean commit( long ticket ) {
+		if( ticket<0 )
+			return false;
+		return shards[(int) ( ticket & 0xff )].commit( ticket >>> 8 );
+	}
+
+	public void setDurability( int mode, long delay, int batch ) {
+		for( OTPDatabase db : shards )
+			db.setDurability( mode, delay, batch );
+	}
+
+	public void close() {
+		for( OTPDatabase db : shards )
+			db.close();
+	}
+
+	/**
+	 * Repartit une base sur n shards, hors ligne : la base existante
+	 * ( un seul fichier ou deja repartie ) est lue en entier, journaux
+	 * compris, puis ecrite dans les nouveaux fichiers. Avec n=1, la
+	 * base redevient un seul fichier.
+	 * Les nouveaux fichiers sont ecrits a cote ( fichier.reshard, ou
+	 * fichier.reshard.i ). Les anciens sont ensuite renommes en .old,
+	 * les nouveaux mis en place, et les .old supprimes a la fin ; en
+	 * cas d'erreur, les anciens sont remis en place. Apres un arret
+	 * pendant la mise en place, les fichiers .old sont l'ancienne
+	 * base : reshard() refuse de tourner tant qu'ils existent.
+	 * @param filename Le nom de fichier de base.
+	 * @param n Le nouveau nombre de shards.
+	 * @return int Le nombre d'utilisateurs repartis.
+	**/
+	public static int reshard( String filename, int n ) throws IOException {
+
+		if( n<1 || n>MAX_SHARDS )
+			throw new IllegalArgumentException( "Nombre de shards invalide : " + n );
+
+		// Lecture de l'existant.
+		int old = readShards( filename );
+		List<String> files = new ArrayList<String>();
+		if( old==0 ) {
+			files.add( filename );
+		} else {
+			for( int i = 0; i < old; i++ )
+				files.add( getShardName( filename, i ) );
+		}
+
+		String exts[] = { "", JOURNAL, JOURNAL + OTPJournal.ROTATED, OTPTextIndex.INDEX };
+		List<Path> existing = new ArrayList<Path>();
+		for( String file : files )
+			for( String ext : exts )
+				existing.add( Paths.get( file + ext ) );
+		existing.add( Paths.get( filename + SHARDS ) );
+		for( Path path : existing )
+			if( Files.exists( Paths.get( path + OLD ) ) )
+				throw new IOException( path + OLD + " existe : une repartition precedente a ete interrompue." );
+
+		List<OTPUser> users = new ArrayList<OTPUser>();
+		for( String file : files ) {
+			OTPDatabase db = new OTPDatabase( file, !OTPMappedStore.isMapped( file ) );
+			if( !db.loadData() && ( new File( file ) ).exists() )
+				throw new IOException( "Lecture de " + file + " impossible." );
+			users.addAll( db.getUsers() );
+			db.close();
+		}
+
+		// Ecriture des nouveaux fichiers a cote.
+		String tmp = filename + ".reshard";
+		OTPDatabase target = n==1 ? new OTPDatabase( tmp ) : new OTPShardedDatabase( tmp, n, false, false );
+		for( OTPUser user : users )
+			if( !target.add( user ) )
+				throw new IOException( "Utilisateur " + user.getLogin() + " en double." );
+		if( !target.saveData() )
+			throw new IOException( "Ecriture de " + tmp + " impossible." );
+		target.close();
+
+		// L'existant est mis de cote, puis les nouveaux fichiers en place.
+		List<Path> aside = new ArrayList<Path>();
+		List<Path> installed = new ArrayList<Path>();
+		try {
+			for( Path path : existing ) {
+				if( !Files.exists( path ) )
+					continue;
+				Files.move( path, Paths.get( path + OLD ), StandardCopyOption.ATOMIC_MOVE );
+				aside.add( path );
+			}
+
+			if( n==1 ) {
+				Files.move( Paths.get( tmp ), Paths.get( filename ), StandardCopyOption.ATOMIC_MOVE );
+				installed.add( Paths.get( filename ) );
+			} else {
+				for( int i = 0; i < n; i++ ) {
+					Files.move( Paths.get( getShardName( tmp, i ) ), Paths.get( getShardName( filename, i ) ),
+						StandardCopyOption.ATOMIC_MOVE );
+					installed.add( Paths.get( getShardName( filename, i ) ) );
+				}
+				installed.add( Paths.get( filename + SHARDS ) );
+				writeShards( filename, n );
+			}
+		} catch( IOException ioexception ) {
+			// Retour a l'ancienne base.
+			for( Path path : installed )
+				Files.deleteIfExists( path );
+			Files.deleteIfExists( Paths.get( tmp ) );
+			for( int i = 0; i < n; i++ )
+				Files.deleteIfExists( Paths.get( getShardName( tmp, i ) ) );
+			for( Path path : aside )
+				Files.move( Paths.get( path + OLD ), path, StandardCopyOption.ATOMIC_MOVE );
+			throw ioexception;
+		}
+
+		for( Path path : aside )
+			Files.deleteIfExists( Paths.get( path + OLD ) );
+
+		return users.size();
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le nombre de shards.
+	 * @return int Le nombre de shards.
+	**/
+	public int getShardCount() { return shards.length; }
+
+	/**
+	 * Retourne un shard.
+	 * @param i Le numero du shard.
+	 * @return OTPDatabase Le shard.
+	**/
+	public OTPDatabase getShard( int i ) { return shards[i]; }
+
+	/**
+	 * Une base repartie n'a pas de journal propre : voir getShard().
+	 * @return OTPJournal null.
+	**/
+	public OTPJournal getJournal() { return null; }
+
+	/**
+	 * Une base repartie n'a pas de fichier binaire propre : voir getShard().
+	 * @return OTPMappedStore null.
+	**/
+	public OTPMappedStore getMappedStore() { return null; }
+
+}
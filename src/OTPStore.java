@@ -0,0 +1,127 @@
+package otp;
+
+import java.util.List;
+
+/**
+ * Stockage des utilisateurs OTP.
+ * Le serveur n'utilise que cette interface : le stockage est
+ * choisi par configuration ( voir OTPStoreFactory ). Les
+ * implementations sont OTPDatabase ( fichier texte ou binaire ),
+ * OTPShardedDatabase ( plusieurs fichiers ), OTPPackedStore ( table
+ * compacte en memoire ), OTPOffHeapStore ( fichier projete hors du
+ * tas ) et OTPSQLStore ( base SQL embarquee, via JDBC ).
+ * Une modification se fait en deux temps : write() l'ecrit et
+ * retourne un ticket, commit( ticket ) attend qu'elle soit durable.
+ *
+ * @version 0.1
+**/
+
+public interface OTPStore {
+
+	/**
+	 * Ajoute un utilisateur.
+	 * @param user Un objet OTPUser.
+	 * @return boolean False si le login existe deja.
+	**/
+	public boolean add( OTPUser user );
+
+	/**
+	 * Teste si un utilisateur existe.
+	 * @param username Un nom d'utilisateur.
+	 * @return boolean True si l'utilisateur existe.
+	**/
+	public boolean contains( String username );
+
+	/**
+	 * Supprime un utilisateur.
+	 * @param username Un nom d'utilisateur.
+	 * @return OTPUser L'utilisateur supprime, null s'il n'existait pas.
+	**/
+	public OTPUser delete( String username );
+
+	/**
+	 * Retourne un utilisateur.
+	 * @param username Un nom d'utilisateur.
+	 * @return OTPUser L'utilisateur, null s'il n'existe pas.
+	**/
+	public OTPUser get( String username );
+
+	/**
+	 * Retourne un utilisateur quelconque.
+	 * @return OTPUser Un utilisateur, null si le stockage est vide.
+	**/
+	public OTPUser getFirst();
+
+	/**
+	 * Retourne tous les utilisateurs.
+	 * @return List Les utilisateurs.
+	**/
+	public List<OTPUser> getUsers();
+
+	/**
+	 * Teste si le stockage est vide.
+	 * @return boolean True s'il n'y a aucun utilisateur.
+	**/
+	public boolean isEmpty();
+
+	/**
+	 * Ouvre le stockage.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public boolean loadData();
+
+	/**
+	 * Rend persistants tous les utilisateurs.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public boolean saveData();
+
+	/**
+	 * Ecrit la modification d'un utilisateur deja present ( ou
+	 * qui vient d'etre supprime ), sans attendre sa durabilite.
+	 * @param user L'objet OTPUser modifie.
+	 * @return long Le ticket a passer a commit(), -1 en cas d'erreur.
+	**/
+	public long write( OTPUser user );
+
+	/**
+	 * Attend que la modification d'un ticket soit durable.
+	 * @param ticket Un ticket retourne par write().
+	 * @return boolean False si l'ecriture a echoue.
+	**/
+	public boolean commit( long ticket );
+
+	/**
+	 * Ecrit la modification d'un utilisateur et attend sa durabilite.
+	 * @param user L'objet OTPUser modifie.
+	 * @return boolean True si l'operation reussie.
+	**/
+	public boolean update( OTPUser user );
+
+	/**
+	 * Change la sequence et le hash d'un utilisateur s'ils valent
+	 * encore seq et expected, et rend la modification persistante.
+	 * @param username Un nom d'utilisateur.
+	 * @param seq La sequence attendue.
+	 * @param expected Le hash attendu.
+	 * @param newSeq La nouvelle sequence.
+	 * @param newHash Le nouveau hash.
+	 * @return boolean False si l'utilisateur a change entre temps.
+	**/
+	public boolean compareAndUpdate( String username, int seq, long expected, int newSeq, long newHash );
+
+	/**
+	 * Choisit la politique de durabilite des ecritures ( voir
+	 * OTPDurability ), si le stockage en a une.
+	 * @param mode OTPDurability.SYNC, GROUP ou ASYNC.
+	 * @param delay Delai maximal d'un groupe, en ms.
+	 * @param batch Taille maximale d'un groupe.
+	**/
+	public void setDurability( int mode, long delay, int batch );
+
+	/**
+	 * Ferme le stockage.
+	**/
+	public void close();
+
+}
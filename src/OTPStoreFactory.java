@@ -0,0 +1,110 @@
+package otp;
+
+import java.util.Properties;
+
+/**
+ * Cree le stockage des utilisateurs choisi par configuration.
+ * Les proprietes lues sont :
+ * <ul>
+ * <li>otp.store : file ( par defaut ), packed ( table compacte en
+ * memoire, OTPPackedStore ), offheap ( fichier projete hors du tas,
+ * OTPOffHeapStore, que plusieurs serveurs peuvent ouvrir ensemble )
+ * ou sql ;</li>
+ * <li>otp.file : le fichier d'utilisateurs ( users.db par defaut ),
+ * reparti si fichier.shards existe ;</li>
+ * <li>otp.journal, otp.index : true pour journaliser, ou lire
+ * les utilisateurs a la demande ( file seulement ) ;</li>
+ * <li>otp.reload : true pour relire le fichier quand un autre
+ * programme le remplace ( voir OTPDatabase.reload() ) ;</li>
+ * <li>otp.sql.url : l'URL JDBC ( jdbc:h2:./users par defaut ),
+ * otp.sql.user, otp.sql.password, et otp.sql.pool : le nombre
+ * de connexions ( 4 par defaut ) ;</li>
+ * <li>otp.cache : le nombre maximal d'utilisateurs gardes en
+ * memoire devant le stockage ( OTPCachedStore ), 0 par defaut
+ * pour aucun cache ; ignore pour un fichier hors tas, que d'autres
+ * serveurs modifient sans que le cache le sache.</li>
+ * </ul>
+ *
+ * @version 0.1
+**/
+
+public class OTPStoreFactory {
+
+	/** Les types de stockage. **/
+	public static final String STORES[] = { "file", "sql", "packed", "offheap" };
+
+// Methodes
+
+	/**
+	 * Cree un stockage, sans l'ouvrir ( voir OTPStore.loadData() ).
+	 * Un fichier hors tas n'a jamais de cache : il serait perime des
+	 * qu'un autre serveur connecte un utilisateur.
+	 * @param config La configuration, par exemple System.getProperties().
+	 * @return OTPStore Le stockage.
+	**/
+	public static OTPStore create( Properties config ) {
+
+		OTPStore store = createStore( config );
+
+		int cache = Integer.parseInt( config.getProperty( "otp.cache", "0" ) );
+		if( cache>0 && store instanceof OTPOffHeapStore ) {
+			System.out.println( "[OTPStoreFactory] create : otp.cache ignore pour un fichier hors tas." );
+			return store;
+		}
+		return cache>0 ? new OTPCachedStore( store, cache ) : store;
+	}
+
+	/**
+	 * Cree le stockage sur disque, sans cache.
+	 * @param config La configuration.
+	 * @return OTPStore Le stockage.
+	**/
+	private static OTPStore createStore( Properties config ) {
+
+		String store = config.getProperty( "otp.store", STORES[0] );
+
+		if( store.equals( "file" ) ) {
+			OTPStore file = openFile( config.getProperty( "otp.file", "users.db" ),
+				Boolean.parseBoolean( config.getProperty( "otp.journal" ) ),
+				Boolean.parseBoolean( config.getProperty( "otp.index" ) ) );
+			if( Boolean.parseBoolean( config.getProperty( "otp.reload" ) ) && file instanceof OTPDatabase )
+				( (OTPDatabase) file ).watch();
+			return file;
+		}
+
+		if( store.equals( "packed" ) )
+			return new OTPPackedStore( config.getProperty( "otp.file", "users.db" ),
+				Boolean.parseBoolean( config.getProperty( "otp.journal" ) ) );
+
+		if( store.equals( "offheap" ) )
+			return new OTPOffHeapStore( config.getProperty( "otp.file", "users.db" ) );
+
+		if( store.equals( "sql" ) )
+			return new OTPSQLStore( config.getProperty( "otp.sql.url", "jdbc:h2:./users" ),
+				config.getProperty( "otp.sql.user" ), config.getProperty( "otp.sql.password" ),
+				Integer.parseInt( config.getProperty( "otp.sql.pool", "4" ) ) );
+
+		throw new IllegalArgumentException( "Stockage inconnu : " + store );
+	}
+
+	/**
+	 * Cree le stockage d'un fichier d'utilisateurs. Une base
+	 * repartie est reconnue a son fichier .shards, un fichier
+	 * hors tas a ses premiers octets.
+	 * @param filename Le nom du fichier d'utilisateurs.
+	 * @param journaled True pour journaliser les modifications.
+	 * @param indexed True pour lire les utilisateurs a la demande.
+	 * @return OTPStore Le stockage.
+	**/
+	public static OTPStore openFile( String filename, boolean journaled, boolean indexed ) {
+
+		if( OTPOffHeapStore.isOffHeap( filename ) )
+			return new OTPOffHeapStore( filename );
+
+		int shards = OTPShardedDatabase.readShards( filename );
+		if( shards>0 )
+			return new OTPShardedDatabase( filename, shards, journaled, indexed );
+		return new OTPDatabase( filename, journaled, indexed );
+	}
+
+}
@@ -0,0 +1,393 @@
+package otp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Index login -> position d'un fichier texte d'utilisateurs.
+ * Chaque ligne est representee par deux long : le hash FNV-1a 64 bits
+ * de son login, et sa position ( 40 bits ) suivie de sa longueur
+ * ( 24 bits ). Les entrees sont triees par hash ; une recherche lit
+ * la ligne candidate et verifie son login.
+ * L'index est sauve a cote des donnees ( fichier.idx ), avec la
+ * taille et la date du fichier indexe : il n'est reconstruit que
+ * si le fichier a change.
+ *
+ * @version 0.1
+**/
+
+public class OTPTextIndex {
+
+	/** Extension du fichier index. **/
+	public static final String INDEX = ".idx";
+	/** Les premiers octets d'un fichier index. **/
+	private static final long MAGIC = 0x4f5450494458_0001L;
+	/** Taille de l'entete d'un fichier index. **/
+	private static final int HEADER = 32;
+
+	/** Le nom du fichier indexe. **/
+	private String nomFichier;
+	/** Le canal de lecture du fichier indexe. **/
+	private FileChannel channel;
+	/** Les hash des logins, croissants. **/
+	private long hashes[];
+	/** Les positions et longueurs des lignes. **/
+	private long entries[];
+
+// Constructeurs
+
+	/**
+	 * Cree un index a partir d'entrees deja calculees.
+	 * @param filename Le nom du fichier indexe.
+	 * @param hashes Les hash des logins.
+	 * @param entries Les positions et longueurs, dans le meme ordre.
+	 * @param n Le nombre d'entrees.
+	**/
+	private OTPTextIndex( String filename, long hashes[], long entries[], int n ) throws IOException {
+
+		nomFichier = filename;
+		this.hashes = hashes.length==n ? hashes : Arrays.copyOf( hashes, n );
+		this.entries = entries.length==n ? entries : Arrays.copyOf( entries, n );
+		sort( this.hashes, this.entries, 0, n - 1 );
+		channel = FileChannel.open( Paths.get( filename ), StandardOpenOption.READ );
+	}
+
+// Methodes
+
+	/**
+	 * Ouvre l'index d'un fichier texte : l'index sauve est relu
+	 * s'il correspond au fichier, sinon il est reconstruit et sauve.
+	 * @param filename Le nom du fichier indexe.
+	 * @return OTPTextIndex L'index.
+	**/
+	public static OTPTextIndex open( String filename ) throws IOException {
+
+		OTPTextIndex index = read( filename );
+		if( index==null ) {
+			index = build( filename );
+			index.save();
+		}
+		return index;
+	}
+
+	/**
+	 * Relit l'index sauve d'un fichier.
+	 * @param filename Le nom du fichier indexe.
+	 * @return OTPTextIndex L'index, null s'il est absent ou perime.
+	**/
+	private static OTPTextIndex read( String filename ) throws IOException {
+
+		Path path = Paths.get( filename + INDEX );
+		if( !Files.exists( path ) )
+			return null;
+
+		FileChannel in = FileChannel.open( path, StandardOpenOption.READ );
+		try {
+			ByteBuffer head = ByteBuffer.allocate( HEADER );
+			while( head.hasRemaining() && in.read( head )>=0 );
+			head.flip();
+			if( head.remaining()<HEADER || head.getLong()!=MAGIC
+					|| head.getLong()!=Files.size( Paths.get( filename ) )
+					|| head.getLong()!=Files.getLastModifiedTime( Paths.get( filename ) ).toMillis() )
+				return null;
+
+			int n = (int) head.getLong();
+			if( in.size()!=HEADER + 16L * n )
+				return null;
+
+			LongBuffer body = in.map( FileChannel.MapMode.READ_ONLY, HEADER, 16L * n ).asLongBuffer();
+			long hashes[] = new long[n];
+			long entries[] = new long[n];
+			body.get( hashes );
+			body.get( entries );
+			return new OTPTextIndex( filename, hashes, entries, n );
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Construit l'index d'un fichier en lisant seulement les logins.
+	 * @param filename Le nom du fichier indexe.
+	 * @return OTPTextIndex L'index.
+	**/
+	public static OTPTextIndex build( String filename ) throws IOException {
+
+		Builder builder = new Builder();
+		InputStream in = new FileInputStream( filename );
+		try {
+			byte buf[] = new byte[1 << 16];
+			long pos = 0;
+			long start = 0;
+			long hash = FNV_BASIS;
+			boolean inLogin = true;
+			int n;
+			while( ( n = in.read( buf ) )>0 ) {
+				for( int i = 0; i < n; i++, pos++ ) {
+					int c = buf[i] & 0xff;
+					if( c=='\n' ) {
+						builder.add( hash, start, pos );
+						start = pos + 1;
+						hash = FNV_BASIS;
+						inLogin = true;
+					} else if( inLogin ) {
+						if( c==';' )
+							inLogin = false;
+						else
+							hash = ( hash ^ c ) * FNV_PRIME;
+					}
+				}
+			}
+			builder.add( hash, start, pos );
+		} finally {
+			in.close();
+		}
+
+		return builder.create( filename );
+	}
+
+	/**
+	 * Sauve l'index a cote du fichier indexe.
+	**/
+	public void save() throws IOException {
+
+		Path path = Paths.get( nomFichier + INDEX );
+		Path tmp = Paths.get( nomFichier + INDEX + ".tmp" );
+
+		ByteBuffer buffer = ByteBuffer.allocate( HEADER + 16 * hashes.length );
+		buffer.putLong( MAGIC );
+		buffer.putLong( Files.size( Paths.get( nomFichier ) ) );
+		buffer.putLong( Files.getLastModifiedTime( Paths.get( nomFichier ) ).toMillis() );
+		buffer.putLong( hashes.length );
+		buffer.asLongBuffer().put( hashes ).put( entries );
+		buffer.position( 0 );
+
+		FileChannel out = FileChannel.open( tmp, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		try {
+			while( buffer.hasRemaining() )
+				out.write( buffer );
+		} finally {
+			out.close();
+		}
+		Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	/**
+	 * Retourne la ligne d'un login.
+	 * @param login Un nom d'utilisateur.
+	 * @return String La ligne, null si le login n'est pas indexe.
+	**/
+	public String get( String login ) throws IOException {
+
+		byte key[] = login.getBytes( Charset.defaultCharset() );
+		long hash = hash( key, 0, key.length );
+
+		// Premiere entree de ce hash, puis les suivantes.
+		int lo = 0;
+		int hi = hashes.length;
+		while( lo<hi ) {
+			int mid = ( lo + hi ) >>> 1;
+			if( hashes[mid]<hash )
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+
+		for( int i = lo; i < hashes.length && hashes[i]==hash; i++ ) {
+			byte line[] = bytes( entries[i] );
+			if( line.length>key.length && line[key.length]==';'
+					&& Arrays.equals( line, 0, key.length, key, 0, key.length ) )
+				return new String( line, Charset.defaultCharset() );
+		}
+
+		return null;
+	}
+
+	/**
+	 * Retourne la ligne d'une entree.
+	 * @param i Le numero de l'entree.
+	 * @return String La ligne.
+	**/
+	public String line( int i ) throws IOException {
+		return new String( bytes( entries[i] ), Charset.defaultCharset() );
+	}
+
+	/**
+	 * Lit les octets d'une ligne, sans la fin de ligne.
+	 * @param entry Une position et une longueur.
+	 * @return byte[] Les octets de la ligne.
+	**/
+	public byte[] bytes( long entry ) throws IOException {
+
+		int len = (int) ( entry & 0xffffff );
+		ByteBuffer buffer = ByteBuffer.allocate( len );
+		long pos = entry >>> 24;
+		while( buffer.hasRemaining() ) {
+			int n = channel.read( buffer, pos + buffer.position() );
+			if( n<0 )
+				throw new EOFException( nomFichier );
+		}
+
+		byte line[] = buffer.array();
+		if( len>0 && line[len - 1]=='\r' )
+			line = Arrays.copyOf( line, len - 1 );
+		return line;
+	}
+
+	/**
+	 * Retourne les entrees dans l'ordre du fichier.
+	 * @return long[] Les positions et longueurs, croissantes.
+	**/
+	public long[] fileOrder() {
+		long tab[] = entries.clone();
+		Arrays.sort( tab );
+		return tab;
+	}
+
+	/**
+	 * Ferme le fichier indexe.
+	**/
+	public void close() {
+
+		try {
+			channel.close();
+		} catch( IOException ioexception ) {
+			System.out.println( "[OTPTextIndex] close : " + ioexception );
+		}
+	}
+
+	private static final long FNV_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Hash FNV-1a 64 bits.
+	 * @param tab Des octets.
+	 * @param off Le debut.
+	 * @param len La longueur.
+	 * @return long Le hash.
+	**/
+	public static long hash( byte tab[], int off, int len ) {
+		long hash = FNV_BASIS;
+		for( int i = off; i < off + len; i++ )
+			hash = ( hash ^ ( tab[i] & 0xff ) ) * FNV_PRIME;
+		return hash;
+	}
+
+	/**
+	 * Trie deux tableaux paralleles par ( hash, entree ) croissants.
+	**/
+	private static void sort( long h[], long e[], int lo, int hi ) {
+
+		while( hi - lo>16 ) {
+			int mid = ( lo + hi ) >>> 1;
+			long ph = h[mid];
+			long pe = e[mid];
+			int i = lo;
+			int j = hi;
+			while( i<=j ) {
+				while( h[i]<ph || ( h[i]==ph && e[i]<pe ) ) i++;
+				while( h[j]>ph || ( h[j]==ph && e[j]>pe ) ) j--;
+				if( i<=j ) {
+					long t = h[i]; h[i] = h[j]; h[j] = t;
+					t = e[i]; e[i] = e[j]; e[j] = t;
+					i++;
+					j--;
+				}
+			}
+			// On trie la plus petite partie, et on boucle sur l'autre.
+			if( j - lo<hi - i ) {
+				sort( h, e, lo, j );
+				lo = i;
+			} else {
+				sort( h, e, i, hi );
+				hi = j;
+			}
+		}
+
+		for( int i = lo + 1; i <= hi; i++ ) {
+			long th = h[i];
+			long te = e[i];
+			int j = i - 1;
+			while( j>=lo && ( h[j]>th || ( h[j]==th && e[j]>te ) ) ) {
+				h[j + 1] = h[j];
+				e[j + 1] = e[j];
+				j--;
+			}
+			h[j + 1] = th;
+			e[j + 1] = te;
+		}
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne le nombre de lignes indexees.
+	 * @return int Le nombre de lignes.
+	**/
+	public int size() { return hashes.length; }
+
+	/**
+	 * Retourne le nom du fichier indexe.
+	 * @return String Le nom du fichier.
+	**/
+	public String getFileName() { return nomFichier; }
+
+	/**
+	 * Accumule les entrees d'un index pendant l'ecriture
+	 * ou la lecture d'un fichier texte.
+	**/
+	public static class Builder {
+
+		private long hashes[] = new long[1024];
+		private long entries[] = new long[1024];
+		private int size;
+
+		/**
+		 * Ajoute une ligne.
+		 * @param hash Le hash du login.
+		 * @param start La position de la ligne.
+		 * @param end La fin de la ligne ( avant '\n' ).
+		**/
+		public void add( long hash, long start, long end ) {
+
+			if( end==start )
+				return;
+
+			if( size==hashes.length ) {
+				hashes = Arrays.copyOf( hashes, size * 2 );
+				entries = Arrays.copyOf( entries, size * 2 );
+			}
+			hashes[size] = hash;
+			entries[size] = ( start << 24 ) | ( end - start );
+			size++;
+		}
+
+		/**
+		 * Ajoute une ligne dont on connait le login.
+		 * @param login Le login.
+		 * @param start La position de la ligne.
+		 * @param end La fin de la ligne ( avant '\n' ).
+		**/
+		public void add( String login, long start, long end ) {
+			byte key[] = login.getBytes( Charset.defaultCharset() );
+			add( hash( key, 0, key.length ), start, end );
+		}
+
+		/**
+		 * Cree l'index.
+		 * @param filename Le nom du fichier indexe.
+		 * @return OTPTextIndex L'index.
+		**/
+		public OTPTextIndex create( String filename ) throws IOException {
+			return new OTPTextIndex( filename, hashes, entries, size );
+		}
+
+	}
+
+}
@@ -4,13 +4,20 @@ import java.util.Date;
 import java.util.Calendar;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import otp.hash.OTPHash;
 
 /**
  * Represente un utilisateur.
+ * La date est ecrite au format ISO-8601 UTC, independant de la
+ * locale ; les dates en millisecondes ou au format DateFormat
+ * des anciennes versions sont encore lues.
  *
  * @author Thomas CHEMINEAU
- * @version 0.5
+ * @version 0.6
 **/
 
 public class OTPUser {
@@ -45,15 +52,21 @@ public class OTPUser {
 	**/
 	public OTPUser( String user ) {
 
-		String tmp[] = user.split( ";" );
-		login = tmp[0];
-		hash = OTPFactory.createOTPHash( tmp[3], Integer.parseInt( tmp[1] ), tmp[2], tmp[4] );
-		
-		try {
-			date = DateFormat.getDateTimeInstance().parse( tmp[5] );
-		} catch( ParseException parseexception ) {
-			date = Calendar.getInstance().getTime();
-		}
+		// Les champs sont decoupes sans expression reguliere.
+		int i1 = user.indexOf( ';' );
+		int i2 = user.indexOf( ';', i1 + 1 );
+		int i3 = user.indexOf( ';', i2 + 1 );
+		int i4 = user.indexOf( ';', i3 + 1 );
+		int i5 = user.indexOf( ';', i4 + 1 );
+		if( i1<0 || i2<0 || i3<0 || i4<0 )
+			throw new IllegalArgumentException( "Utilisateur invalide : " + user );
+
+		login = user.substring( 0, i1 );
+		hash = OTPFactory.createOTPHash( user.substring( i3 + 1, i4 ),
+			Integer.parseInt( user.substring( i1 + 1, i2 ) ),
+			user.substring( i2 + 1, i3 ),
+			user.substring( i4 + 1, i5<0 ? user.length() : i5 ) );
+		date = parseDate( i5<0 ? "" : user.substring( i5 + 1 ) );
 	}
 
 // Methodes
@@ -64,12 +77,105 @@ public class OTPUser {
 	**/
 	public String toString() {
 
+		// La sequence et le hash sont lus ensemble : une verification
+		// en cours ne peut pas les separer.
+		int seq;
+		String h;
+		synchronized( hash ) {
+			seq = hash.getSequence();
+			h = hash.getHash();
+		}
+
 		return login + ";"
-			+ hash.getSequence() + ";"
+			+ seq + ";"
 			+ hash.getSeed() + ";"
 			+ OTPFactory.getHashID( hash ) + ";"
-			+ hash.getHash() + ";"
-			+ DateFormat.getDateTimeInstance().format( date );
+			+ h + ";"
+			+ DateTimeFormatter.ISO_INSTANT.format( date.toInstant() );
+	}
+
+	/**
+	 * Lit une date : ISO-8601 ( "2006-01-31T12:00:00Z" ), millisecondes
+	 * depuis 1970, ou format DateFormat des anciennes versions.
+	 * @param str Une date.
+	 * @return Date La date, ou la date courante si illisible.
+	**/
+	public static Date parseDate( String str ) {
+
+		int len = str.length();
+		if( len==0 )
+			return Calendar.getInstance().getTime();
+
+		// Millisecondes depuis 1970.
+		boolean digits = true;
+		for( int i = 0; i < len && digits; i++ )
+			digits = str.charAt( i )>='0' && str.charAt( i )<='9';
+		if( digits && len<=18 )
+			return new Date( Long.parseLong( str ) );
+
+		// ISO-8601 : la forme ecrite par toString() est lue a la main,
+		// les autres par Instant.parse().
+		if( len>10 && str.charAt( 4 )=='-' && str.charAt( 10 )=='T' ) {
+			try {
+				long time = parseInstant( str );
+				return new Date( time!=Long.MIN_VALUE ? time : Instant.parse( str ).toEpochMilli() );
+			} catch( DateTimeException datetimeexception ) {
+				return Calendar.getInstance().getTime();
+			}
+		}
+
+		// Ancien format, dependant de la locale.
+		try {
+			return DateFormat.getDateTimeInstance().parse( str );
+		} catch( ParseException parseexception ) {
+			return Calendar.getInstance().getTime();
+		}
+	}
+
+	/**
+	 * Lit une date "aaaa-mm-jjThh:mm:ssZ" ou "aaaa-mm-jjThh:mm:ss.mmmZ".
+	 * @param str Une date ISO-8601.
+	 * @return long Les millisecondes depuis 1970, Long.MIN_VALUE si autre forme.
+	**/
+	private static long parseInstant( String str ) {
+
+		int len = str.length();
+		if( ( len!=20 && len!=24 ) || str.charAt( len - 1 )!='Z' || str.charAt( 7 )!='-'
+				|| str.charAt( 13 )!=':' || str.charAt( 16 )!=':' || ( len==24 && str.charAt( 19 )!='.' ) )
+			return Long.MIN_VALUE;
+
+		int year = digits( str, 0, 4 );
+		int month = digits( str, 5, 7 );
+		int day = digits( str, 8, 10 );
+		int hour = digits( str, 11, 13 );
+		int minute = digits( str, 14, 16 );
+		int second = digits( str, 17, 19 );
+		int milli = len==24 ? digits( str, 20, 23 ) : 0;
+		if( ( year | month | day | hour | minute | second | milli )<0 || hour>23 || minute>59 || second>59 )
+			return Long.MIN_VALUE;
+
+		// LocalDate.of() verifie le jour du mois.
+		return ( ( LocalDate.of( year, month, day ).toEpochDay() * 24 + hour ) * 60 + minute ) * 60000L
+			+ second * 1000L + milli;
+	}
+
+	/**
+	 * Lit un nombre decimal.
+	 * @param str Une chaine.
+	 * @param from Le debut du nombre.
+	 * @param to La fin du nombre.
+	 * @return int Le nombre, -1 si un caractere n'est pas un chiffre.
+	**/
+	private static int digits( String str, int from, int to ) {
+
+		int n = 0;
+		for( int i = from; i < to; i++ ) {
+			char c = str.charAt( i );
+			if( c<'0' || c>'9' )
+				return -1;
+			n = n * 10 + ( c - '0' );
+		}
+		return n;
 	}
 
 // Accesseurs et Modifieurs
@@ -0,0 +1,315 @@
+package otp;
+
+import java.util.HashMap;
+
+/**
+ * Cache borne d'utilisateurs, par login, avec une politique
+ * d'admission W-TinyLFU :
+ * <ul>
+ * <li>un nouvel utilisateur entre dans une petite fenetre LRU
+ * ( 1% de la capacite ) ;</li>
+ * <li>a sa sortie de la fenetre, il n'entre dans la partie
+ * principale que s'il a ete demande plus souvent que la victime
+ * qu'il remplacerait ;</li>
+ * <li>la partie principale est une LRU segmentee : un utilisateur
+ * demande une deuxieme fois passe de la zone d'essai a la zone
+ * protegee ( 80% de la partie principale ).</li>
+ * </ul>
+ * Les frequences sont estimees par un count-min sketch de compteurs
+ * de 4 bits, divises par deux toutes les 10 x capacite demandes :
+ * les comptes anciens s'effacent. Une suite de logins dormants, lus
+ * une seule fois, ne chasse donc pas les logins actifs.
+ * Toutes les operations sont en temps constant, sous le verrou
+ * du cache.
+ *
+ * @version 0.1
+**/
+
+public class OTPUserCache {
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	/** Un utilisateur du cache, dans une des trois listes. **/
+	private static class Node {
+		String login;
+		OTPUser user;
+		int queue;
+		Node prev;
+		Node next;
+	}
+
+	/** La capacite. **/
+	private int capacity;
+	/** Taille maximale de la fenetre. **/
+	private int maxWindow;
+	/** Taille maximale de la zone protegee. **/
+	private int maxProtected;
+	/** Les utilisateurs, par login. **/
+	private HashMap<String,Node> nodes;
+	/** Les trois listes, de la plus ancienne a la plus recente. **/
+	private Node heads[];
+	/** La taille des trois listes. **/
+	private int sizes[];
+	/** Les compteurs de frequence : 4 lignes de compteurs de 4 bits. **/
+	private long sketch[][];
+	/** Masque d'un numero de compteur dans une ligne. **/
+	private int mask;
+	/** Nombre de demandes avant de diviser les compteurs. **/
+	private int sample;
+	/** Nombre de demandes depuis la derniere division. **/
+	private int additions;
+	/** Compteurs. **/
+	private long hits, misses, evictions;
+
+	private static final long SEEDS[] = {
+		0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L };
+
+// Constructeurs
+
+	/**
+	 * Cree un cache vide.
+	 * @param capacity Le nombre maximal d'utilisateurs.
+	**/
+	public OTPUserCache( int capacity ) {
+
+		if( capacity<1 )
+			throw new IllegalArgumentException( "Capacite invalide : " + capacity );
+
+		this.capacity = capacity;
+		maxWindow = Math.max( 1, capacity / 100 );
+		maxProtected = ( capacity - maxWindow ) * 8 / 10;
+		nodes = new HashMap<String,Node>( Math.min( capacity, 1 << 20 ) * 4 / 3 + 1 );
+
+		heads = new Node[3];
+		sizes = new int[3];
+		for( int i = 0; i < 3; i++ ) {
+			heads[i] = new Node();
+			heads[i].prev = heads[i];
+			heads[i].next = heads[i];
+		}
+
+		// Une ligne a au moins autant de compteurs que le cache d'elements.
+		int width = Integer.highestOneBit( Math.max( 16, Math.min( capacity, 1 << 28 ) ) - 1 ) << 1;
+		sketch = new long[4][width / 16];
+		mask = width - 1;
+		sample = (int) Math.min( Integer.MAX_VALUE, 10L * capacity );
+	}
+
+// Methodes
+
+	/**
+	 * Retourne un utilisateur du cache. La demande est comptee
+	 * dans les frequences, qu'il soit present ou non.
+	 * @param login Un nom d'utilisateur.
+	 * @return OTPUser L'utilisateur, null s'il n'est pas dans le cache.
+	**/
+	public synchronized OTPUser get( String login ) {
+
+		record( login );
+
+		Node node = nodes.get( login );
+		if( node==null ) {
+			misses++;
+			return null;
+		}
+		hits++;
+		touch( node );
+		return node.user;
+	}
+
+	/**
+	 * Teste si un utilisateur est dans le cache, sans compter de demande.
+	 * @param login Un nom d'utilisateur.
+	 * @return boolean True s'il est dans le cache.
+	**/
+	public synchronized boolean contains( String login ) {
+		return nodes.containsKey( login );
+	}
+
+	/**
+	 * Met un utilisateur dans le cache. Un nouvel utilisateur entre
+	 * dans la fenetre ; le cache plein, le moins frequent entre celui
+	 * qui sort de la fenetre et la victime de la zone d'essai est
+	 * retire.
+	 * @param user Un utilisateur.
+	**/
+	public synchronized void put( OTPUser user ) {
+
+		Node node = nodes.get( user.getLogin() );
+		if( node!=null ) {
+			node.user = user;
+			touch( node );
+			return;
+		}
+
+		node = new Node();
+		node.login = user.getLogin();
+		node.user = user;
+		nodes.put( node.login, node );
+		link( node, WINDOW );
+
+		// La fenetre deborde : son plus ancien passe en zone d'essai.
+		if( sizes[WINDOW]>maxWindow ) {
+			Node candidate = heads[WINDOW].next;
+			unlink( candidate );
+			link( candidate, PROBATION );
+
+			// Le cache deborde : le candidat affronte la victime.
+			if( nodes.size()>capacity ) {
+				Node victim = heads[PROBATION].next;
+				if( victim==candidate )
+					victim = heads[PROTECTED].next;
+				if( victim!=heads[PROTECTED] && frequency( candidate.login )>frequency( victim.login ) )
+					evict( victim );
+				else
+					evict( candidate );
+			}
+		}
+	}
+
+	/**
+	 * Retire un utilisateur du cache.
+	 * @param login Un nom d'utilisateur.
+	**/
+	public synchronized void remove( String login ) {
+
+		Node node = nodes.remove( login );
+		if( node!=null )
+			unlink( node );
+	}
+
+	/**
+	 * Vide le cache. Les frequences sont gardees.
+	**/
+	public synchronized void clear() {
+
+		nodes.clear();
+		for( int i = 0; i < 3; i++ ) {
+			heads[i].prev = heads[i];
+			heads[i].next = heads[i];
+			sizes[i] = 0;
+		}
+	}
+
+	/**
+	 * Deplace un utilisateur demande : en tete de la fenetre ou de la
+	 * zone protegee ; de la zone d'essai vers la zone protegee, dont
+	 * le plus ancien redescend si elle deborde.
+	**/
+	private void touch( Node node ) {
+
+		int queue = node.queue;
+		unlink( node );
+		if( queue==WINDOW ) {
+			link( node, WINDOW );
+			return;
+		}
+
+		link( node, PROTECTED );
+		if( sizes[PROTECTED]>maxProtected ) {
+			Node demoted = heads[PROTECTED].next;
+			unlink( demoted );
+			link( demoted, PROBATION );
+		}
+	}
+
+	private void evict( Node node ) {
+		unlink( node );
+		nodes.remove( node.login );
+		evictions++;
+	}
+
+	private void link( Node node, int queue ) {
+		Node head = heads[queue];
+		node.queue = queue;
+		node.prev = head.prev;
+		node.next = head;
+		head.prev.next = node;
+		head.prev = node;
+		sizes[queue]++;
+	}
+
+	private void unlink( Node node ) {
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = null;
+		node.next = null;
+		sizes[node.queue]--;
+	}
+
+	/**
+	 * Compte une demande dans les 4 lignes du sketch.
+	**/
+	private void record( String login ) {
+
+		long h = login.hashCode();
+		for( int i = 0; i < 4; i++ ) {
+			int c = counter( h, i );
+			int shift = ( c & 15 ) << 2;
+			long word = sketch[i][c >>> 4];
+			if( ( ( word >>> shift ) & 15 )<15 )
+				sketch[i][c >>> 4] = word + ( 1L << shift );
+		}
+
+		if( ++additions>=sample ) {
+			additions = 0;
+			for( long row[] : sketch )
+				for( int j = 0; j < row.length; j++ )
+					row[j] = ( row[j] >>> 1 ) & 0x7777777777777777L;
+		}
+	}
+
+	/**
+	 * Estime la frequence d'un login : le plus petit de ses 4 compteurs.
+	**/
+	private int frequency( String login ) {
+
+		long h = login.hashCode();
+		int f = 15;
+		for( int i = 0; i < 4; i++ ) {
+			int c = counter( h, i );
+			f = Math.min( f, (int) ( sketch[i][c >>> 4] >>> ( ( c & 15 ) << 2 ) ) & 15 );
+		}
+		return f;
+	}
+
+	private int counter( long h, int i ) {
+		long x = ( h + SEEDS[i] ) * SEEDS[( i + 1 ) & 3];
+		return (int) ( x ^ ( x >>> 32 ) ) & mask;
+	}
+
+// Accesseurs et Modifieurs
+
+	/**
+	 * Retourne la capacite.
+	 * @return int Le nombre maximal d'utilisateurs.
+	**/
+	public int getCapacity() { return capacity; }
+
+	/**
+	 * Retourne le nombre d'utilisateurs du cache.
+	 * @return int Le nombre d'utilisateurs.
+	**/
+	public synchronized int size() { return nodes.size(); }
+
+	/**
+	 * Retourne le nombre de demandes trouvees dans le cache.
+	 * @return long Le nombre de hits.
+	**/
+	public synchronized long getHits() { return hits; }
+
+	/**
+	 * Retourne le nombre de demandes absentes du cache.
+	 * @return long Le nombre de misses.
+	**/
+	public synchronized long getMisses() { return misses; }
+
+	/**
+	 * Retourne le nombre d'utilisateurs retires pour faire de la place.
+	 * @return long Le nombre d'evictions.
+	**/
+	public synchronized long getEvictions() { return evictions; }
+
+}